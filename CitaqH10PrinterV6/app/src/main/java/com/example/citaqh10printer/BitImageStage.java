@@ -0,0 +1,221 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Merges runs of 24-dot ESC * bands into one GS v 0 raster image.
+ *
+ * Older drivers print images as column-format bands, one per line:
+ * <pre>
+ *   ESC 3 24  (ESC * 33 nL nH d1..d3n  LF) x bands  ESC 2
+ * </pre>
+ * and the printer stops between bands to feed. With line spacing at 24 dots
+ * the bands are contiguous, so a run of them is the same picture as one
+ * raster of 24 x bands rows, which the H10 prints in a single motion. Each
+ * band is transposed from column-major (3 bytes per column, MSB on top) to
+ * row-major packed rows as it arrives, eight columns by eight rows at a
+ * time with a 64-bit bit-matrix transpose.
+ *
+ * Only the 24-dot double-density mode (m = 33) is merged; the other modes
+ * have a different dot pitch than raster and pass through. A run ends at any
+ * byte that is not the next band of the same width; a band not followed by LF
+ * is sent as it was received. ESC 3 24 repeated inside a run is held and sent
+ * after the merged image, where it has the same effect.
+ */
+public class BitImageStage extends EscPosStage {
+
+    private static final int BAND_ROWS = 24;
+    /** Largest merged image; a longer run is sent as several. */
+    private static final int MAX_RUN_BYTES = 64 * 1024;
+
+    private int lineSpacing = -1;   // dots, -1 = printer default
+
+    private boolean inBand;         // collecting an ESC * 33 block
+    private boolean bandDone;       // band complete, waiting for its LF
+    private int columns;
+    private byte[] band = new byte[0];
+    private int bandFill;
+    private final byte[] bandHeader = new byte[3];
+
+    private int runColumns;         // width of the run, 0 = no run
+    private int runXBytes;
+    private int runRows;
+    private byte[] run = new byte[0];
+    private boolean spacingInRun;
+    private final byte[] params = new byte[6];
+
+    public BitImageStage(OutputStream out) {
+        super(out);
+    }
+
+    @Override protected void onJobBoundary() {
+        lineSpacing = -1;
+    }
+
+    @Override public void onText(byte[] b, int off, int len) throws IOException {
+        endRun();
+        super.onText(b, off, len);
+    }
+
+    @Override public void onControl(int c) throws IOException {
+        if (c == '\n' && bandDone) {
+            bandDone = false;
+            addBand();
+            return;
+        }
+        endRun();
+        super.onControl(c);
+    }
+
+    @Override public void onCommand(int cmd, byte[] p, int n) throws IOException {
+        if (cmd == EscPosParser.ESC_3 && n == 1 && (p[0] & 0xFF) == BAND_ROWS
+                && lineSpacing == BAND_ROWS && (runColumns > 0 || bandDone)) {
+            spacingInRun = true;
+            return;
+        }
+        endRun();
+        if (cmd == EscPosParser.ESC_3 && n == 1) lineSpacing = p[0] & 0xFF;
+        else if (cmd == EscPosParser.ESC_2 || cmd == EscPosParser.ESC_AT) lineSpacing = -1;
+        super.onCommand(cmd, p, n);
+    }
+
+    @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException {
+        int cols = EscPosParser.u16(p, 1);
+        if (cmd == EscPosParser.ESC_STAR && (p[0] & 0xFF) == 33 && cols > 0
+                && lineSpacing == BAND_ROWS && !bandDone) {
+            if (runColumns > 0 && cols != runColumns) endRun();
+            inBand = true;
+            columns = cols;
+            bandFill = 0;
+            System.arraycopy(p, 0, bandHeader, 0, 3);
+            if (band.length < cols * 3) band = new byte[cols * 3];
+            return;
+        }
+        endRun();
+        super.onBlockStart(cmd, p, n, dataLen);
+    }
+
+    @Override public void onBlockData(byte[] b, int off, int len) throws IOException {
+        if (!inBand) {
+            super.onBlockData(b, off, len);
+            return;
+        }
+        System.arraycopy(b, off, band, bandFill, len);
+        bandFill += len;
+    }
+
+    @Override public void onBlockEnd(int cmd) throws IOException {
+        if (!inBand) {
+            super.onBlockEnd(cmd);
+            return;
+        }
+        inBand = false;
+        if (bandFill < columns * 3) {
+            endRun();
+            writeBand(); // truncated stream
+            return;
+        }
+        bandDone = true;
+    }
+
+    @Override protected void writePending() throws IOException {
+        if (inBand) {
+            // Rest of the band passes through unchanged
+            inBand = false;
+            endRun();
+            writeBand();
+            return;
+        }
+        endRun();
+    }
+
+    /** Appends the completed band to the run as 24 raster rows. */
+    private void addBand() throws IOException {
+        if (runColumns == 0) {
+            runColumns = columns;
+            runXBytes = (columns + 7) / 8;
+            runRows = 0;
+        }
+        int need = (runRows + BAND_ROWS) * runXBytes;
+        if ((need > MAX_RUN_BYTES || runRows + BAND_ROWS > 0xFFFF) && runRows > 0) {
+            int cols = runColumns;
+            writeRun();
+            runColumns = cols;
+            runXBytes = (cols + 7) / 8;
+            need = BAND_ROWS * runXBytes;
+        }
+        if (run.length < need) {
+            byte[] bigger = new byte[Math.max(need, Math.min(MAX_RUN_BYTES, run.length * 2))];
+            System.arraycopy(run, 0, bigger, 0, runRows * runXBytes);
+            run = bigger;
+        }
+        transpose(band, columns, run, runRows * runXBytes, runXBytes);
+        runRows += BAND_ROWS;
+    }
+
+    /**
+     * Column-major 24-dot band to 24 packed rows. Each 8-column by 8-row tile
+     * is loaded into a long (one column byte per byte lane), transposed with
+     * three swap steps and stored as eight row bytes.
+     */
+    static void transpose(byte[] src, int columns, byte[] dst, int dstOff, int xBytes) {
+        for (int xb = 0; xb < xBytes; xb++) {
+            int c0 = xb * 8;
+            int n = Math.min(8, columns - c0);
+            for (int lane = 0; lane < 3; lane++) {
+                long x = 0;
+                for (int c = 0; c < 8; c++) {
+                    x = x << 8 | (c < n ? src[(c0 + c) * 3 + lane] & 0xFF : 0);
+                }
+                long t;
+                t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+                x = x ^ t ^ (t << 7);
+                t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+                x = x ^ t ^ (t << 14);
+                t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+                x = x ^ t ^ (t << 28);
+                int o = dstOff + lane * 8 * xBytes + xb;
+                for (int r = 0; r < 8; r++, o += xBytes) {
+                    dst[o] = (byte) (x >>> (56 - 8 * r));
+                }
+            }
+        }
+    }
+
+    private void endRun() throws IOException {
+        if (bandDone) {
+            // A band without its LF: send the run so far, then the band as it was
+            bandDone = false;
+            writeRun();
+            writeBand();
+        } else {
+            writeRun();
+        }
+    }
+
+    private void writeRun() throws IOException {
+        if (runColumns > 0) {
+            params[0] = '0';
+            params[1] = 0;
+            params[2] = (byte) runXBytes;
+            params[3] = (byte) (runXBytes >> 8);
+            params[4] = (byte) runRows;
+            params[5] = (byte) (runRows >> 8);
+            emitHeader(EscPosParser.GS_V, params, 6);
+            emit(run, 0, runRows * runXBytes);
+            runColumns = 0;
+            runRows = 0;
+        }
+        if (spacingInRun) {
+            spacingInRun = false;
+            params[0] = BAND_ROWS;
+            emitHeader(EscPosParser.ESC_3, params, 1);
+        }
+    }
+
+    private void writeBand() throws IOException {
+        emitHeader(EscPosParser.ESC_STAR, bandHeader, 3);
+        emit(band, 0, bandFill);
+    }
+}
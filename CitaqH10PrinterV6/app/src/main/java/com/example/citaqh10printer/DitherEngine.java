@@ -0,0 +1,307 @@
+package com.example.citaqh10printer;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Converts ARGB pixels to packed 1-bpp printer rows (8 px per byte, MSB
+ * first, black = 1).
+ *
+ * Pixels are fetched many rows per call through {@link PixelSource}, luma is
+ * integer BT.601 followed by a 256-entry tone table (gamma and contrast), and
+ * the bits are packed without per-pixel branches. Large pieces are spread over
+ * the cores:
+ * <ul>
+ *   <li>THRESHOLD, GAMMA_THRESHOLD and ORDERED rows are independent, so worker
+ *       threads take rows in stripes.</li>
+ *   <li>FLOYD_STEINBERG and ATKINSON run as a wavefront: every row is on its
+ *       own thread and stays {@link #BLOCK} columns behind the row above, which
+ *       is all the error it needs from there. The result is identical to a
+ *       single-threaded pass.</li>
+ * </ul>
+ * An engine is meant for one image, converted top to bottom in one or more
+ * calls; error diffusion state is carried from one call to the next. Not
+ * thread-safe.
+ */
+public final class DitherEngine {
+
+    public enum Mode { THRESHOLD, GAMMA_THRESHOLD, ORDERED, FLOYD_STEINBERG, ATKINSON }
+
+    /** Image pixels, fetched in bulk. */
+    public interface PixelSource {
+        int width();
+        int height();
+        /** Copies rows y .. y+rows-1 as ARGB into dst, width() ints per row. */
+        void getRows(int[] dst, int y, int rows);
+    }
+
+    /** Tone used by GAMMA_THRESHOLD unless {@link #setTone} says otherwise: lighter mid-tones, steeper. */
+    public static final float DEFAULT_GAMMA = 0.8f;
+    public static final float DEFAULT_CONTRAST = 1.2f;
+
+    /** Wavefront step in columns; a multiple of 8 so steps end on byte boundaries. */
+    private static final int BLOCK = 64;
+    private static final int PAD = 2;
+    /** Below this many pixels per call, threads cost more than they save. */
+    private static final int MIN_PARALLEL_PIXELS = 32 * 1024;
+    private static final int STRIPE_ROWS = 8;
+
+    // 8x8 Bayer matrix as thresholds 2..254
+    private static final int[] BAYER = new int[64];
+    static {
+        int[] m = {
+                 0, 32,  8, 40,  2, 34, 10, 42,
+                48, 16, 56, 24, 50, 18, 58, 26,
+                12, 44,  4, 36, 14, 46,  6, 38,
+                60, 28, 52, 20, 62, 30, 54, 22,
+                 3, 35, 11, 43,  1, 33,  9, 41,
+                51, 19, 59, 27, 49, 17, 57, 25,
+                15, 47,  7, 39, 13, 45,  5, 37,
+                63, 31, 55, 23, 61, 29, 53, 21 };
+        for (int i = 0; i < 64; i++) BAYER[i] = (2 * m[i] + 1) * 2;
+    }
+
+    private static ExecutorService pool;
+
+    private final int w;
+    private final int bytesPerRow;
+    private final Mode mode;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private final int[] tone = new int[256];
+
+    private int[] argb = new int[0];
+    // Error rows, PAD columns of slack on each side; [0] and [1] carry into the next call
+    private int[][] err;
+    private AtomicIntegerArray progress;
+
+    public DitherEngine(int width, Mode mode) {
+        this.w = width;
+        this.bytesPerRow = (width + 7) / 8;
+        this.mode = mode;
+        this.err = new int[][] { new int[w + 2 * PAD], new int[w + 2 * PAD] };
+        if (mode == Mode.GAMMA_THRESHOLD) setTone(DEFAULT_GAMMA, DEFAULT_CONTRAST);
+        else setTone(1f, 1f);
+    }
+
+    /**
+     * Tone curve applied to luma before dithering: gamma below 1 lightens the
+     * mid-tones (thermal dots spread, so photos print dark), contrast scales
+     * around mid-grey.
+     */
+    public DitherEngine setTone(float gamma, float contrast) {
+        for (int i = 0; i < 256; i++) {
+            double v = Math.pow(i / 255.0, gamma);
+            v = (v - 0.5) * contrast + 0.5;
+            tone[i] = (int) Math.max(0, Math.min(255, Math.round(v * 255)));
+        }
+        return this;
+    }
+
+    /** Upper bound on threads per call; 1 keeps everything on the caller's thread. */
+    public DitherEngine setThreads(int n) {
+        threads = Math.max(1, n);
+        return this;
+    }
+
+    public int bytesPerRow() { return bytesPerRow; }
+
+    /** Converts a whole image. */
+    public static byte[] convert(PixelSource src, Mode mode) {
+        DitherEngine e = new DitherEngine(src.width(), mode);
+        int h = src.height();
+        byte[] out = new byte[e.bytesPerRow * h];
+        for (int y = 0; y < h; y += 256) {
+            int rows = Math.min(256, h - y);
+            e.convert(src, y, rows, out, y * e.bytesPerRow);
+        }
+        return out;
+    }
+
+    /**
+     * Converts rows y0 .. y0+rows-1 into out at outOff, {@link #bytesPerRow()}
+     * bytes per row. Calls must go down the image in order.
+     */
+    public void convert(PixelSource src, int y0, int rows, byte[] out, int outOff) {
+        if (rows <= 0) return;
+        if (argb.length < rows * w) argb = new int[rows * w];
+        src.getRows(argb, y0, rows);
+        int t = threads > 1 && (long) rows * w >= MIN_PARALLEL_PIXELS ? Math.min(threads, rows) : 1;
+        if (mode == Mode.FLOYD_STEINBERG || mode == Mode.ATKINSON) {
+            diffuse(rows, out, outOff, t);
+        } else {
+            stripes(y0, rows, out, outOff, t);
+        }
+    }
+
+    // ---- Point modes: rows are independent ----
+
+    private void stripes(final int y0, final int rows, final byte[] out, final int outOff, int t) {
+        final AtomicInteger next = new AtomicInteger();
+        runOnWorkers(t, new Runnable() {
+            @Override public void run() {
+                int r;
+                while ((r = next.getAndAdd(STRIPE_ROWS)) < rows) {
+                    int end = Math.min(rows, r + STRIPE_ROWS);
+                    for (; r < end; r++) pointRow(y0 + r, r * w, out, outOff + r * bytesPerRow);
+                }
+            }
+        });
+    }
+
+    private void pointRow(int y, int in, byte[] out, int o) {
+        final int[] px = argb;
+        final int[] tn = tone;
+        final boolean ordered = mode == Mode.ORDERED;
+        final int by = (y & 7) * 8;
+        int acc = 0;
+        int x = 0;
+        for (; x < w; x++) {
+            int p = px[in + x];
+            int lum = tn[(77 * ((p >> 16) & 0xFF) + 150 * ((p >> 8) & 0xFF) + 29 * (p & 0xFF) + 128) >> 8];
+            int t = ordered ? BAYER[by + (x & 7)] : 128;
+            acc = acc << 1 | (lum - t) >>> 31;    // 1 = black when lum < t
+            if ((x & 7) == 7) {
+                out[o++] = (byte) acc;
+                acc = 0;
+            }
+        }
+        if ((x & 7) != 0) out[o] = (byte) (acc << (8 - (x & 7)));
+    }
+
+    // ---- Error diffusion: wavefront over rows ----
+
+    private void diffuse(final int rows, final byte[] out, final int outOff, int t) {
+        if (err.length < rows + 2) {
+            int[][] bigger = Arrays.copyOf(err, rows + 2);
+            for (int i = err.length; i < bigger.length; i++) bigger[i] = new int[w + 2 * PAD];
+            err = bigger;
+        }
+        for (int i = 2; i < rows + 2; i++) Arrays.fill(err[i], 0);
+        if (t > 1) {
+            if (progress == null || progress.length() < rows) progress = new AtomicIntegerArray(rows);
+            for (int i = 0; i < rows; i++) progress.set(i, 0);
+        }
+        final boolean wavefront = t > 1;
+        final AtomicInteger next = new AtomicInteger();
+        runOnWorkers(t, new Runnable() {
+            @Override public void run() {
+                int r;
+                // Rows are claimed in order, so the row a worker waits on is always being worked on
+                while ((r = next.getAndIncrement()) < rows) {
+                    diffuseRow(r, out, outOff + r * bytesPerRow, wavefront);
+                }
+            }
+        });
+        // Rows below this piece already hold error from its last rows
+        int[] c0 = err[rows], c1 = err[rows + 1];
+        err[rows] = err[0];
+        err[rows + 1] = err[1];
+        err[0] = c0;
+        err[1] = c1;
+    }
+
+    private void diffuseRow(int r, byte[] out, int o, boolean wavefront) {
+        final int[] px = argb;
+        final int[] tn = tone;
+        final int[] cur = err[r];
+        final int[] n1 = err[r + 1];
+        final int[] n2 = err[r + 2];
+        final boolean atkinson = mode == Mode.ATKINSON;
+        final int in = r * w;
+        int right1 = 0, right2 = 0;  // error pushed to x+1 and x+2 on this row
+        int acc = 0;
+
+        for (int bx = 0; bx < w; bx += BLOCK) {
+            int end = Math.min(w, bx + BLOCK);
+            if (wavefront && r > 0) {
+                // Pixel x takes error from x+1 on the row above
+                int need = Math.min(w, end + 1);
+                while (progress.get(r - 1) < need) Thread.yield();
+            }
+            for (int x = bx; x < end; x++) {
+                int p = px[in + x];
+                int lum = tn[(77 * ((p >> 16) & 0xFF) + 150 * ((p >> 8) & 0xFF) + 29 * (p & 0xFF) + 128) >> 8];
+                int v = lum + cur[x + PAD] + right1;
+                int bit;
+                int e;
+                if (atkinson) {
+                    bit = (v - 128) >>> 31;
+                    // Rounds toward zero, like the Floyd-Steinberg weights below
+                    e = (v - ((bit - 1) & 255)) / 8;
+                    right1 = right2 + e;
+                    right2 = e;
+                    n1[x + PAD - 1] += e;
+                    n1[x + PAD] += e;
+                    n1[x + PAD + 1] += e;
+                    n2[x + PAD] += e;
+                } else {
+                    v = v < 0 ? 0 : v > 255 ? 255 : v;
+                    bit = (v - 128) >>> 31;
+                    e = v - ((bit - 1) & 255);
+                    // Division, not a shift: >> rounds negative error down and darkens the image
+                    right1 = (e * 7) / 16;
+                    n1[x + PAD - 1] += (e * 3) / 16;
+                    n1[x + PAD] += (e * 5) / 16;
+                    n1[x + PAD + 1] += e / 16;
+                }
+                acc = acc << 1 | bit;
+                if ((x & 7) == 7) {
+                    out[o++] = (byte) acc;
+                    acc = 0;
+                }
+            }
+            if (wavefront) progress.set(r, end);
+        }
+        if ((w & 7) != 0) out[o] = (byte) (acc << (8 - (w & 7)));
+    }
+
+    // ---- Threads ----
+
+    /** Runs task on the caller and up to t-1 pool threads; returns when all are done. */
+    private static void runOnWorkers(int t, final Runnable task) {
+        if (t <= 1) {
+            task.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(t - 1);
+        ExecutorService p = pool();
+        for (int i = 1; i < t; i++) {
+            p.execute(new Runnable() {
+                @Override public void run() {
+                    try { task.run(); } finally { done.countDown(); }
+                }
+            });
+        }
+        task.run();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            int n = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            pool = Executors.newFixedThreadPool(n, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Dither-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+}
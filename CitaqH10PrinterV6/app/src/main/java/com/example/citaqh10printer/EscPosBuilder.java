@@ -0,0 +1,345 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes ESC/POS commands into one growable buffer, to be sent with a single
+ * write:
+ * <pre>
+ *   EscPosBuilder b = new EscPosBuilder()
+ *           .initialize().align(EscPosBuilder.ALIGN_CENTER)
+ *           .qr(url, 6, EscPosBuilder.QR_ECC_H).feed(3).cut();
+ *   b.writeTo(os);
+ * </pre>
+ * Commands are written straight into the buffer, with no array per command;
+ * {@link #reset()} keeps the buffer for the next receipt. Text is encoded as
+ * ISO-8859-1 ({@link PrinterEscPos#ESC_POS_CHARSET}), other characters become
+ * '?'. Not thread-safe.
+ */
+public final class EscPosBuilder {
+
+    public static final int ALIGN_LEFT = 0;
+    public static final int ALIGN_CENTER = 1;
+    public static final int ALIGN_RIGHT = 2;
+
+    public static final int QR_ECC_L = 48;
+    public static final int QR_ECC_M = 49;
+    public static final int QR_ECC_Q = 50;
+    public static final int QR_ECC_H = 51;
+
+    /** GS k function B barcode systems. */
+    public static final int BARCODE_UPC_A = 65;
+    public static final int BARCODE_EAN13 = 67;
+    public static final int BARCODE_EAN8 = 68;
+    public static final int BARCODE_CODE39 = 69;
+    public static final int BARCODE_ITF = 70;
+    public static final int BARCODE_CODABAR = 71;
+    public static final int BARCODE_CODE93 = 72;
+    public static final int BARCODE_CODE128 = 73;
+
+    /** GS H: where the human-readable digits go. */
+    public static final int HRI_NONE = 0;
+    public static final int HRI_ABOVE = 1;
+    public static final int HRI_BELOW = 2;
+
+    private static final int ESC = 0x1B;
+    private static final int GS = 0x1D;
+    private static final int LF = 0x0A;
+
+    private static final byte[] QR_MODEL_2 = {GS, '(', 'k', 4, 0, 0x31, 0x41, 0x32, 0};
+    private static final byte[] QR_PRINT = {GS, '(', 'k', 3, 0, 0x31, 0x51, 0x30};
+
+    private byte[] buf;
+    private int len;
+
+    public EscPosBuilder() {
+        this(256);
+    }
+
+    public EscPosBuilder(int initialCapacity) {
+        buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    // ---- Output ----
+
+    /** Bytes encoded so far. */
+    public int size() { return len; }
+
+    /** The buffer itself; valid up to {@link #size()} until the next call. */
+    public byte[] array() { return buf; }
+
+    public byte[] toByteArray() { return Arrays.copyOf(buf, len); }
+
+    /** Empties the builder, keeping its buffer. */
+    public EscPosBuilder reset() {
+        len = 0;
+        return this;
+    }
+
+    /** Sends everything in one write. Does not flush or reset. */
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(buf, 0, len);
+    }
+
+    // ---- Printer setup and layout ----
+
+    /** ESC @ */
+    public EscPosBuilder initialize() {
+        return put(ESC, '@');
+    }
+
+    /** ESC a n, one of ALIGN_LEFT / ALIGN_CENTER / ALIGN_RIGHT. */
+    public EscPosBuilder align(int align) {
+        return put(ESC, 'a', align);
+    }
+
+    /** ESC 3 n: line spacing in dots. */
+    public EscPosBuilder lineSpacing(int dots) {
+        return put(ESC, '3', Math.max(0, Math.min(255, dots)));
+    }
+
+    /** ESC 2: default line spacing. */
+    public EscPosBuilder defaultLineSpacing() {
+        return put(ESC, '2');
+    }
+
+    // ---- Character styles ----
+
+    /** ESC E n */
+    public EscPosBuilder bold(boolean on) {
+        return put(ESC, 'E', on ? 1 : 0);
+    }
+
+    /** ESC - n: 0 off, 1 thin, 2 thick. */
+    public EscPosBuilder underline(int dots) {
+        return put(ESC, '-', Math.max(0, Math.min(2, dots)));
+    }
+
+    /** ESC M n: 0 font A (12x24), 1 font B (9x17). */
+    public EscPosBuilder font(int font) {
+        return put(ESC, 'M', font);
+    }
+
+    /** GS ! n: width and height multipliers 1..8. */
+    public EscPosBuilder size(int width, int height) {
+        int w = Math.max(1, Math.min(8, width)) - 1;
+        int h = Math.max(1, Math.min(8, height)) - 1;
+        return put(GS, '!', w << 4 | h);
+    }
+
+    /** GS B n: white on black. */
+    public EscPosBuilder reverse(boolean on) {
+        return put(GS, 'B', on ? 1 : 0);
+    }
+
+    // ---- Text ----
+
+    public EscPosBuilder text(CharSequence s) {
+        int n = s.length();
+        ensure(n);
+        byte[] b = buf;
+        int o = len;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            b[o++] = (byte) (c <= 0xFF ? c : '?');
+        }
+        len = o;
+        return this;
+    }
+
+    /** Text followed by LF. */
+    public EscPosBuilder line(CharSequence s) {
+        return text(s).newline();
+    }
+
+    /** Pads or cuts text to exactly {@code width} columns, right-aligned if asked. */
+    public EscPosBuilder column(CharSequence s, int width, boolean alignRight) {
+        int n = Math.min(s.length(), width);
+        if (alignRight) spaces(width - n);
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            buf[len++] = (byte) (c <= 0xFF ? c : '?');
+        }
+        if (!alignRight) spaces(width - n);
+        return this;
+    }
+
+    public EscPosBuilder spaces(int n) {
+        if (n <= 0) return this;
+        ensure(n);
+        Arrays.fill(buf, len, len + n, (byte) ' ');
+        len += n;
+        return this;
+    }
+
+    public EscPosBuilder newline() {
+        return put(LF);
+    }
+
+    // ---- Paper ----
+
+    /** ESC d n: print and feed n lines. */
+    public EscPosBuilder feed(int lines) {
+        while (lines > 0) {
+            int k = Math.min(255, lines);
+            put(ESC, 'd', k);
+            lines -= k;
+        }
+        return this;
+    }
+
+    /** ESC J n: print and feed n dots. */
+    public EscPosBuilder feedDots(int dots) {
+        while (dots > 0) {
+            int k = Math.min(255, dots);
+            put(ESC, 'J', k);
+            dots -= k;
+        }
+        return this;
+    }
+
+    /** GS V 66 0: feed to the cutter and partial cut. */
+    public EscPosBuilder cut() {
+        return put(GS, 'V', 66, 0);
+    }
+
+    // ---- Codes ----
+
+    /**
+     * QR Code model 2 (GS ( k).
+     *
+     * @param size module size 1..16
+     * @param ecc  QR_ECC_L / M / Q / H
+     */
+    public EscPosBuilder qr(CharSequence data, int size, int ecc) {
+        if (size < 1) size = 6;
+        if (size > 16) size = 16;
+        if (ecc < QR_ECC_L || ecc > QR_ECC_H) ecc = QR_ECC_H;
+        int n = data.length();
+        ensure(40 + n);
+        raw(QR_MODEL_2);
+        put(GS, '(', 'k');
+        put(3, 0, 0x31, 0x43).put(size);                // module size
+        put(GS, '(', 'k');
+        put(3, 0, 0x31, 0x45).put(ecc);                 // error correction
+        int pl = n + 3;
+        put(GS, '(', 'k');
+        put(pl & 0xFF, (pl >> 8) & 0xFF, 0x31, 0x50).put(0x30);  // store
+        text(data);
+        return raw(QR_PRINT);
+    }
+
+    /**
+     * 1D barcode (GS k function B, 2..255 characters).
+     *
+     * @param type   BARCODE_* system
+     * @param height bar height in dots, 1..255
+     * @param width  module width 2..6
+     * @param hri    HRI_NONE / HRI_ABOVE / HRI_BELOW
+     */
+    public EscPosBuilder barcode(int type, CharSequence data, int height, int width, int hri) {
+        int n = Math.min(255, data.length());
+        ensure(12 + n);
+        put(GS, 'h', Math.max(1, Math.min(255, height)));
+        put(GS, 'w', Math.max(2, Math.min(6, width)));
+        put(GS, 'H', hri);
+        put(GS, 'k', type, n);
+        return text(n == data.length() ? data : data.subSequence(0, n));
+    }
+
+    // ---- Images ----
+
+    /** GS v 0 with packed 1-bpp rows (MSB left, black = 1). */
+    public EscPosBuilder raster(byte[] data, int off, int xBytes, int rows) {
+        ensure(8 + xBytes * rows);
+        putRasterHeader(xBytes, rows);
+        System.arraycopy(data, off, buf, len, xBytes * rows);
+        len += xBytes * rows;
+        return this;
+    }
+
+    /**
+     * Dithers an image straight into the buffer as GS v 0 bands of at most
+     * {@code bandRows} rows (0 = one command; see {@link RasterBandStage#rowsPerBand}).
+     */
+    public EscPosBuilder image(DitherEngine.PixelSource src, DitherEngine.Mode mode, int bandRows) {
+        int h = src.height();
+        if (src.width() <= 0 || h <= 0) return this;
+        DitherEngine dither = new DitherEngine(src.width(), mode);
+        int xBytes = dither.bytesPerRow();
+        if (bandRows <= 0) bandRows = h;
+        bandRows = Math.min(bandRows, 0xFFFF);
+        ensure(xBytes * h + 8 * ((h + bandRows - 1) / bandRows));
+        for (int y = 0; y < h; ) {
+            int rows = Math.min(bandRows, h - y);
+            putRasterHeader(xBytes, rows);
+            dither.convert(src, y, rows, buf, len);
+            len += xBytes * rows;
+            y += rows;
+        }
+        return this;
+    }
+
+    // ---- Raw bytes ----
+
+    public EscPosBuilder raw(byte[] b) {
+        return raw(b, 0, b.length);
+    }
+
+    public EscPosBuilder raw(byte[] b, int off, int n) {
+        ensure(n);
+        System.arraycopy(b, off, buf, len, n);
+        len += n;
+        return this;
+    }
+
+    public EscPosBuilder raw(int b) {
+        return put(b);
+    }
+
+    // ---- Internals ----
+
+    private void putRasterHeader(int xBytes, int rows) {
+        put(GS, 'v', '0', 0);
+        put(xBytes & 0xFF, (xBytes >> 8) & 0xFF, rows & 0xFF, (rows >> 8) & 0xFF);
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+        }
+    }
+
+    private EscPosBuilder put(int b0) {
+        ensure(1);
+        buf[len++] = (byte) b0;
+        return this;
+    }
+
+    private EscPosBuilder put(int b0, int b1) {
+        ensure(2);
+        buf[len++] = (byte) b0;
+        buf[len++] = (byte) b1;
+        return this;
+    }
+
+    private EscPosBuilder put(int b0, int b1, int b2) {
+        ensure(3);
+        buf[len++] = (byte) b0;
+        buf[len++] = (byte) b1;
+        buf[len++] = (byte) b2;
+        return this;
+    }
+
+    private EscPosBuilder put(int b0, int b1, int b2, int b3) {
+        ensure(4);
+        buf[len++] = (byte) b0;
+        buf[len++] = (byte) b1;
+        buf[len++] = (byte) b2;
+        buf[len++] = (byte) b3;
+        return this;
+    }
+}
@@ -0,0 +1,436 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Incremental ESC/POS tokenizer.
+ *
+ * Feed it arbitrary chunks with {@link #feed}; commands split across chunk
+ * boundaries are reassembled internally. Every input byte is reported in
+ * exactly one event, in order, so a listener that writes events back out with
+ * {@link #writeHeader} and the data slices reproduces the stream byte for byte.
+ * Rewrite stages rely on that to pass through what they do not change.
+ *
+ * No allocation happens while parsing: command parameters are collected into a
+ * fixed scratch array that is only valid during the callback, and text runs and
+ * block data are reported as slices of the caller's buffer.
+ *
+ * Commands are identified as {@code prefix << 8 | code}, e.g. {@link #GS_V} for
+ * GS v. Parameters exclude prefix and code: for GS v 0 they are
+ * {@code '0' m xL xH yL yH}.
+ */
+public class EscPosParser {
+
+    public static final int DLE = 0x10;
+    public static final int ESC = 0x1B;
+    public static final int FS = 0x1C;
+    public static final int GS = 0x1D;
+
+    public static final int ESC_AT = ESC << 8 | '@';     // initialize
+    public static final int ESC_BANG = ESC << 8 | '!';   // print mode
+    public static final int ESC_DASH = ESC << 8 | '-';   // underline
+    public static final int ESC_STAR = ESC << 8 | '*';   // column bit image (block)
+    public static final int ESC_2 = ESC << 8 | '2';      // default line spacing
+    public static final int ESC_3 = ESC << 8 | '3';      // line spacing n
+    public static final int ESC_E = ESC << 8 | 'E';      // emphasis
+    public static final int ESC_G = ESC << 8 | 'G';      // double strike
+    public static final int ESC_J = ESC << 8 | 'J';      // feed n dots
+    public static final int ESC_M = ESC << 8 | 'M';      // font
+    public static final int ESC_BACKSLASH = ESC << 8 | '\\'; // relative position
+    public static final int ESC_A = ESC << 8 | 'a';      // justification
+    public static final int ESC_D = ESC << 8 | 'd';      // feed n lines
+    public static final int ESC_T = ESC << 8 | 't';      // code page
+    public static final int GS_BANG = GS << 8 | '!';     // character size
+    public static final int GS_PAREN_K = GS << 8 | 'k' | 0x10000; // GS ( k (QR, 2D codes)
+    public static final int GS_PAREN_L = GS << 8 | 'L' | 0x10000; // GS ( L (graphics)
+    public static final int GS_8_L = GS << 8 | '8';      // GS 8 L (large graphics)
+    public static final int GS_B = GS << 8 | 'B';        // reverse
+    public static final int GS_V_CUT = GS << 8 | 'V';    // cut
+    public static final int GS_V = GS << 8 | 'v';        // GS v 0 raster (block)
+    public static final int GS_K = GS << 8 | 'k';        // barcode (block)
+
+    /** Flag or'ed into the id of "( X" family commands: GS ( k becomes GS<<8|'k'|PAREN. */
+    public static final int PAREN = 0x10000;
+
+    /** Receives tokens. Arrays passed in are only valid during the call. */
+    public interface Listener {
+        /** Printable bytes (0x20 and above) in one run. */
+        void onText(byte[] b, int off, int len) throws IOException;
+        /** Single control byte other than a command prefix: LF, CR, HT, FF, CAN... */
+        void onControl(int c) throws IOException;
+        /** Complete fixed-length command and its parameters. */
+        void onCommand(int cmd, byte[] p, int n) throws IOException;
+        /**
+         * Start of a command followed by a data block (images, QR/NV data, barcodes).
+         * @param dataLen bytes that follow in {@link #onBlockData}, or -1 if the
+         *                block is delimited (ESC &amp;, ESC D, GS k m 0..6, FS q)
+         */
+        void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException;
+        void onBlockData(byte[] b, int off, int len) throws IOException;
+        void onBlockEnd(int cmd) throws IOException;
+    }
+
+    /** Listener with empty methods; override what you need. */
+    public static class Adapter implements Listener {
+        @Override public void onText(byte[] b, int off, int len) {}
+        @Override public void onControl(int c) {}
+        @Override public void onCommand(int cmd, byte[] p, int n) {}
+        @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) {}
+        @Override public void onBlockData(byte[] b, int off, int len) {}
+        @Override public void onBlockEnd(int cmd) {}
+    }
+
+    // Parser states
+    private static final int S_IDLE = 0;
+    private static final int S_PREFIX = 1;      // got ESC/GS/FS/DLE, need code
+    private static final int S_PARAMS = 2;      // collecting fixed params
+    private static final int S_BLOCK = 3;       // counted block data
+    private static final int S_PAREN_CODE = 4;  // got "( ", need function letter
+    private static final int S_UNTIL_NUL = 5;   // delimited data ending with NUL
+    private static final int S_AMP_X = 6;       // ESC &: next char width byte
+    private static final int S_FSQ_HDR = 7;     // FS q: next image header
+
+    private final Listener listener;
+    private final byte[] p = new byte[16];
+    private int state = S_IDLE;
+    private int prefix;
+    private int cmd;
+    private int need;      // params still to collect
+    private int n;         // params collected
+    private long remain;   // block bytes left
+    private int repeat;    // ESC & chars / FS q images left
+
+    public EscPosParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Back to the start state, e.g. between jobs. Partial commands are dropped. */
+    public void reset() {
+        state = S_IDLE;
+        n = need = 0;
+        remain = 0;
+    }
+
+    /** True between commands: not inside a command header, its parameters or its data. */
+    public boolean isIdle() {
+        return state == S_IDLE;
+    }
+
+    /** Reports a command cut off by end of stream, so no input byte is lost. */
+    public void finish() throws IOException {
+        switch (state) {
+            case S_PREFIX:
+                listener.onControl(prefix);
+                break;
+            case S_PARAMS:
+            case S_PAREN_CODE:
+                listener.onCommand(cmd, p, n);
+                break;
+            case S_BLOCK:
+            case S_UNTIL_NUL:
+            case S_AMP_X:
+            case S_FSQ_HDR:
+                listener.onBlockEnd(cmd);
+                break;
+            default:
+                break;
+        }
+        reset();
+    }
+
+    public void feed(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            switch (state) {
+                case S_IDLE: {
+                    int c = b[i] & 0xFF;
+                    if (c >= 0x20) {
+                        int start = i;
+                        while (i < end && (b[i] & 0xFF) >= 0x20) i++;
+                        listener.onText(b, start, i - start);
+                        continue;
+                    }
+                    i++;
+                    if (c == ESC || c == GS || c == FS || c == DLE) {
+                        prefix = c;
+                        state = S_PREFIX;
+                    } else {
+                        listener.onControl(c);
+                    }
+                    break;
+                }
+                case S_PREFIX:
+                    startCommand(b[i++] & 0xFF);
+                    break;
+                case S_PAREN_CODE:
+                    cmd = prefix << 8 | (b[i++] & 0xFF) | PAREN;
+                    n = 0;
+                    need = 2;
+                    state = S_PARAMS;
+                    break;
+                case S_PARAMS:
+                    p[n++] = b[i++];
+                    if (--need == 0) paramsDone();
+                    break;
+                case S_BLOCK: {
+                    int k = (int) Math.min(remain, end - i);
+                    listener.onBlockData(b, i, k);
+                    i += k;
+                    remain -= k;
+                    if (remain == 0) blockDone();
+                    break;
+                }
+                case S_UNTIL_NUL: {
+                    int start = i;
+                    while (i < end && b[i] != 0) i++;
+                    if (i < end) {
+                        i++; // include the NUL
+                        listener.onBlockData(b, start, i - start);
+                        listener.onBlockEnd(cmd);
+                        state = S_IDLE;
+                    } else {
+                        listener.onBlockData(b, start, i - start);
+                    }
+                    break;
+                }
+                case S_AMP_X: {
+                    // ESC & y c1 c2 [x d1..d(y*x)]...
+                    int x = b[i] & 0xFF;
+                    listener.onBlockData(b, i, 1);
+                    i++;
+                    remain = (long) (p[0] & 0xFF) * x;
+                    state = S_BLOCK;
+                    if (remain == 0) blockDone();
+                    break;
+                }
+                case S_FSQ_HDR: {
+                    // FS q n [xL xH yL yH d1..d(x*y*8)]...
+                    p[n++] = b[i];
+                    listener.onBlockData(b, i, 1);
+                    i++;
+                    if (n == 5) {
+                        remain = (long) u16(p, 1) * u16(p, 3) * 8;
+                        n = 1;
+                        state = S_BLOCK;
+                        if (remain == 0) blockDone();
+                    }
+                    break;
+                }
+                default:
+                    state = S_IDLE;
+                    break;
+            }
+        }
+    }
+
+    private void startCommand(int code) throws IOException {
+        cmd = prefix << 8 | code;
+        n = 0;
+        need = paramCount(prefix, code);
+        if (need == PAREN_FAMILY) {
+            state = S_PAREN_CODE;
+            return;
+        }
+        if (need == 0) {
+            paramsOnly();
+            return;
+        }
+        state = S_PARAMS;
+    }
+
+    private static final int PAREN_FAMILY = -2;
+
+    /** Number of fixed parameter bytes after prefix+code; PAREN_FAMILY for "( X". */
+    private static int paramCount(int prefix, int code) {
+        switch (prefix) {
+            case ESC:
+                switch (code) {
+                    case ' ': case '!': case '%': case '-': case '3': case '=': case '?':
+                    case 'E': case 'G': case 'J': case 'M': case 'R': case 'T':
+                    case 'U': case 'V': case 'a': case 'd': case 'e': case 'r': case 't':
+                    case 'u': case '{': case 'f':
+                        return 1;
+                    case '$': case '\\': case 'c':
+                        return 2;
+                    case '*': case '&': case 'p':
+                        return 3;
+                    case 'W':
+                        return 8;
+                    case 'D':
+                        return 0; // NUL-terminated list, handled in paramsOnly
+                    case '(':
+                        return PAREN_FAMILY;
+                    default:
+                        return 0;
+                }
+            case GS:
+                switch (code) {
+                    case '!': case '/': case 'B': case 'E': case 'H': case 'I': case 'T':
+                    case 'a': case 'b': case 'f': case 'h': case 'r': case 'w': case 'V':
+                    case 'k':
+                        return 1;
+                    case '$': case 'L': case 'P': case 'W': case '\\': case '*':
+                        return 2;
+                    case '^':
+                        return 3;
+                    case 'g':
+                        return 4;
+                    case '8':
+                        return 5; // 'L' p1 p2 p3 p4
+                    case 'v':
+                        return 6; // '0' m xL xH yL yH
+                    case '(':
+                        return PAREN_FAMILY;
+                    default:
+                        return 0;
+                }
+            case FS:
+                switch (code) {
+                    case '!': case '-': case 'C': case 'W': case 'q':
+                        return 1;
+                    case '2': case 'S': case 'p':
+                        return 2;
+                    default:
+                        return 0;
+                }
+            case DLE:
+                switch (code) {
+                    case 0x04: case 0x05:
+                        return 1;
+                    case 0x14:
+                        return 3;
+                    default:
+                        return 0;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    /** Command with no parameters (or an ESC D list, which has no fixed part). */
+    private void paramsOnly() throws IOException {
+        if (cmd == (ESC << 8 | 'D')) {
+            listener.onBlockStart(cmd, p, 0, -1);
+            state = S_UNTIL_NUL;
+            return;
+        }
+        listener.onCommand(cmd, p, 0);
+        state = S_IDLE;
+    }
+
+    private void paramsDone() throws IOException {
+        long dataLen;
+        if ((cmd & PAREN) != 0) {
+            // "( X pL pH" : pL/pH count everything that follows
+            dataLen = u16(p, 0);
+            startBlock(dataLen);
+            return;
+        }
+        switch (cmd) {
+            case ESC_STAR: {
+                int m = p[0] & 0xFF;
+                dataLen = (long) u16(p, 1) * (m >= 32 ? 3 : 1);
+                startBlock(dataLen);
+                return;
+            }
+            case GS_V:
+                startBlock((long) u16(p, 2) * u16(p, 4));
+                return;
+            case GS << 8 | '*':
+                startBlock((long) (p[0] & 0xFF) * (p[1] & 0xFF) * 8);
+                return;
+            case GS_8_L:
+                startBlock((p[1] & 0xFFL) | (p[2] & 0xFFL) << 8 | (p[3] & 0xFFL) << 16 | (p[4] & 0xFFL) << 24);
+                return;
+            case FS << 8 | '2':
+                startBlock(72);
+                return;
+            case GS_V_CUT: {
+                int m = p[0] & 0xFF;
+                // GS V m n for the feed-and-cut variants
+                if ((m >= 65 && m <= 66) || (m >= 97 && m <= 98) || (m >= 103 && m <= 104)) {
+                    if (n == 1) { need = 1; return; }
+                }
+                break;
+            }
+            case GS_K: {
+                int m = p[0] & 0xFF;
+                if (m <= 6) {
+                    listener.onBlockStart(cmd, p, n, -1);
+                    state = S_UNTIL_NUL;
+                    return;
+                }
+                if (n == 1) { need = 1; return; } // GS k m n d1..dn
+                startBlock(p[1] & 0xFF);
+                return;
+            }
+            case ESC << 8 | '&': {
+                repeat = (p[2] & 0xFF) - (p[1] & 0xFF) + 1;
+                listener.onBlockStart(cmd, p, n, -1);
+                if (repeat <= 0) { listener.onBlockEnd(cmd); state = S_IDLE; }
+                else state = S_AMP_X;
+                return;
+            }
+            case FS << 8 | 'q': {
+                repeat = p[0] & 0xFF;
+                listener.onBlockStart(cmd, p, n, -1);
+                n = 1;
+                if (repeat == 0) { listener.onBlockEnd(cmd); state = S_IDLE; }
+                else state = S_FSQ_HDR;
+                return;
+            }
+            default:
+                break;
+        }
+        listener.onCommand(cmd, p, n);
+        state = S_IDLE;
+    }
+
+    private void startBlock(long dataLen) throws IOException {
+        listener.onBlockStart(cmd, p, n, dataLen);
+        if (dataLen <= 0) {
+            listener.onBlockEnd(cmd);
+            state = S_IDLE;
+        } else {
+            remain = dataLen;
+            state = S_BLOCK;
+        }
+    }
+
+    private void blockDone() throws IOException {
+        if (cmd == (ESC << 8 | '&') && --repeat > 0) {
+            state = S_AMP_X;
+            return;
+        }
+        if (cmd == (FS << 8 | 'q') && --repeat > 0) {
+            state = S_FSQ_HDR;
+            return;
+        }
+        listener.onBlockEnd(cmd);
+        state = S_IDLE;
+    }
+
+    /** Little-endian 16-bit parameter at p[i], p[i+1]. */
+    public static int u16(byte[] p, int i) {
+        return (p[i] & 0xFF) | (p[i + 1] & 0xFF) << 8;
+    }
+
+    /** Writes the bytes of a command header (prefix, code, params) back out. */
+    public static void writeHeader(OutputStream out, int cmd, byte[] p, int n) throws IOException {
+        out.write((cmd >> 8) & 0xFF);
+        if ((cmd & PAREN) != 0) out.write('(');
+        out.write(cmd & 0xFF);
+        out.write(p, 0, n);
+    }
+
+    /** Human-readable command name for logs, e.g. "GS v", "ESC *", "GS ( k". */
+    public static String name(int cmd) {
+        int pre = (cmd >> 8) & 0xFF;
+        int code = cmd & 0xFF;
+        String ps = pre == ESC ? "ESC" : pre == GS ? "GS" : pre == FS ? "FS" : pre == DLE ? "DLE" : "?";
+        String cs = code >= 0x21 && code < 0x7F ? String.valueOf((char) code) : String.format("%02X", code);
+        return ps + ((cmd & PAREN) != 0 ? " ( " : " ") + cs;
+    }
+}
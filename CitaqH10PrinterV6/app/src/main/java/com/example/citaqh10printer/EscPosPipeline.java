@@ -0,0 +1,110 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Chain of {@link EscPosStage}s a share service runs each client's bytes
+ * through before they reach the spool.
+ *
+ * One pipeline lives as long as the client connection; its output goes to
+ * whatever {@link #setTarget} last set, so a job cut short for a status query
+ * can continue into the next one without losing stage state. With no stage
+ * enabled the bytes go straight to the target.
+ */
+public final class EscPosPipeline {
+
+    /** Which stages to run. */
+    public static final class Options {
+        public boolean skipBlankRows;
+        public boolean trimRight;
+        /** Printable width in dots; wider GS v 0 images are scaled down. 0 = off. */
+        public int scaleToDots;
+        /** Shared NV graphics index; null = send every image in full. */
+        public LogoCache logos;
+        /** Merge 24-dot ESC * bands into GS v 0. */
+        public boolean mergeBitImages;
+        /** Cut tall GS v 0 images into bands sized to the printer's receive buffer. */
+        public boolean splitBands;
+        /** Rows per band; 0 = derive from {@link #printerBufferBytes}. */
+        public int bandRows;
+        public int printerBufferBytes = 4096;
+        /** Drop mode selects that change nothing and spaces before LF. */
+        public boolean optimizeModes;
+        /** Also replace long runs of spaces with ESC \. */
+        public boolean collapseSpaces;
+    }
+
+    private final Tail tail = new Tail();
+    private final OutputStream head;
+    private final LogoCacheStage logos;
+    private long bytesIn;
+
+    public EscPosPipeline(Options o) {
+        // Built from the target backwards: each stage wraps the ones that run after it
+        OutputStream s = tail;
+        // Last, so the offsets it notes are offsets in the spooled job
+        logos = o.logos != null ? new LogoCacheStage(s, o.logos) : null;
+        if (logos != null) s = logos;
+        if (o.splitBands) s = new RasterBandStage(s, o.bandRows, o.printerBufferBytes);
+        if (o.skipBlankRows || o.trimRight) {
+            s = new RasterBlankRowStage(s, o.skipBlankRows, o.trimRight);
+        }
+        if (o.scaleToDots > 0) s = new RasterScaleStage(s, o.scaleToDots);
+        if (o.mergeBitImages) s = new BitImageStage(s);
+        if (o.optimizeModes) s = new ModeOptimizerStage(s, o.collapseSpaces);
+        head = s;
+    }
+
+    /** Where rewritten bytes go from now on. */
+    public void setTarget(OutputStream out) {
+        tail.target = out;
+        if (head instanceof EscPosStage) ((EscPosStage) head).newJob();
+    }
+
+    /** What the writer thread must do to the current job as it prints (NV logos); null for nothing. */
+    public PrintSpooler.PrintFilter printFilter() {
+        return logos != null ? logos.sites() : null;
+    }
+
+    public boolean isPassThrough() {
+        return head == tail;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        bytesIn += len;
+        head.write(b, off, len);
+    }
+
+    /** Pushes everything the stages are holding to the current target. */
+    public void flush() throws IOException {
+        head.flush();
+    }
+
+    /** End of the client stream. */
+    public void finish() throws IOException {
+        if (head instanceof EscPosStage) ((EscPosStage) head).finish();
+    }
+
+    public long bytesIn() { return bytesIn; }
+
+    public long bytesOut() { return tail.count; }
+
+    /** Bytes the stages have removed so far; negative if they added some. */
+    public long bytesSaved() { return bytesIn - tail.count; }
+
+    private static final class Tail extends OutputStream {
+        OutputStream target;
+        long count;
+
+        @Override public void write(int b) throws IOException {
+            target.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.citaqh10printer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * One step of the in-line rewrite done by the share services between the
+ * client socket and the spool.
+ *
+ * Bytes written to a stage are tokenized by an {@link EscPosParser}; every
+ * listener method here re-emits its token unchanged, so a stage that
+ * overrides nothing is an exact pass-through. Subclasses override the events
+ * they rewrite and emit the replacement with the {@code emit} helpers.
+ *
+ * A stage that holds back output (a raster band, pending spaces) must write it
+ * in {@link #writePending()}: the services flush before cutting a job short for
+ * a status query, and the next job continues from where the stage left off.
+ */
+public abstract class EscPosStage extends FilterOutputStream implements EscPosParser.Listener {
+
+    protected final EscPosParser parser = new EscPosParser(this);
+    private final byte[] one = new byte[1];
+    private final byte[] hdr = new byte[3 + 16];
+    private long bytesIn;
+    private long bytesOut;
+
+    protected EscPosStage(OutputStream out) {
+        super(out);
+    }
+
+    @Override public void write(int b) throws IOException {
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        bytesIn += len;
+        parser.feed(b, off, len);
+    }
+
+    /**
+     * End of the stream: reports a truncated trailing command, writes anything
+     * held back and finishes the stages downstream. Does not close the target.
+     */
+    public void finish() throws IOException {
+        parser.finish();
+        writePending();
+        if (out instanceof EscPosStage) ((EscPosStage) out).finish();
+        else out.flush();
+    }
+
+    @Override public void flush() throws IOException {
+        writePending();
+        out.flush();
+    }
+
+    @Override public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * Output now goes to a new job. Other clients' jobs may print in between,
+     * so stages that track printer modes forget them in {@link #onJobBoundary}.
+     */
+    public void newJob() {
+        onJobBoundary();
+        if (out instanceof EscPosStage) ((EscPosStage) out).newJob();
+    }
+
+    /** Writes out whatever the stage is holding back. */
+    protected void writePending() throws IOException {}
+
+    protected void onJobBoundary() {}
+
+    public long bytesIn() { return bytesIn; }
+
+    public long bytesOut() { return bytesOut; }
+
+    // Pass-through defaults
+
+    @Override public void onText(byte[] b, int off, int len) throws IOException { emit(b, off, len); }
+
+    @Override public void onControl(int c) throws IOException { emit(c); }
+
+    @Override public void onCommand(int cmd, byte[] p, int n) throws IOException { emitHeader(cmd, p, n); }
+
+    @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException {
+        emitHeader(cmd, p, n);
+    }
+
+    @Override public void onBlockData(byte[] b, int off, int len) throws IOException { emit(b, off, len); }
+
+    @Override public void onBlockEnd(int cmd) throws IOException {}
+
+    protected final void emit(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesOut += len;
+    }
+
+    protected final void emit(int c) throws IOException {
+        out.write(c);
+        bytesOut++;
+    }
+
+    /** Writes a command header in one call, so the next stage sees it as one chunk. */
+    protected final void emitHeader(int cmd, byte[] p, int n) throws IOException {
+        int k = 0;
+        hdr[k++] = (byte) (cmd >> 8);
+        if ((cmd & EscPosParser.PAREN) != 0) hdr[k++] = '(';
+        hdr[k++] = (byte) cmd;
+        System.arraycopy(p, 0, hdr, k, n);
+        emit(hdr, 0, k + n);
+    }
+}
@@ -0,0 +1,299 @@
+package com.example.citaqh10printer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records what share clients send, byte for byte, for later replay.
+ *
+ * Every connection is written as it happens: an OPEN record, one DATA record
+ * per socket read (so chunk boundaries and their arrival times are kept) and a
+ * CLOSE record. Connections arriving at the same time are interleaved in one
+ * file, which keeps the traffic mix. File layout, all integers big-endian or
+ * unsigned LEB128 varints:
+ * <pre>
+ *   header: "EPCAP" version(1) startEpochMs(8)
+ *   record: type(1) conn(varint) dtMicros(varint, since the previous record)
+ *     OPEN  + localPort(varint) sourceLen(varint) source(UTF-8)
+ *     DATA  + len(varint) bytes
+ *     CLOSE
+ * </pre>
+ * A new file is started once the current one passes {@link #FILE_BYTES}; a
+ * connection stays in the file it was opened in. The oldest files are deleted
+ * to stay under the size limit. A write error stops capturing, never the job.
+ */
+public final class JobCapture implements Closeable {
+
+    public static final int OPEN = 1;
+    public static final int DATA = 2;
+    public static final int CLOSE = 3;
+
+    static final byte[] MAGIC = {'E', 'P', 'C', 'A', 'P'};
+    static final int VERSION = 1;
+    public static final String SUFFIX = ".epcap";
+
+    private static final long FILE_BYTES = 8L * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String tag;
+    private final File dir;
+    private final String prefix;
+    private final long maxBytes;
+    private final AtomicInteger nextConn = new AtomicInteger();
+
+    private CaptureFile current;
+    private boolean failed;
+
+    /**
+     * @param prefix   start of the file names, e.g. "tcp9100"
+     * @param maxBytes total size of the capture files with this prefix to keep
+     */
+    public JobCapture(String tag, File dir, String prefix, long maxBytes) {
+        this.tag = tag;
+        this.dir = dir;
+        this.prefix = prefix;
+        this.maxBytes = maxBytes;
+    }
+
+    public File dir() { return dir; }
+
+    /** Starts recording a connection; null once capturing has failed. */
+    public synchronized Session open(String source, int localPort) {
+        if (failed) return null;
+        try {
+            if (current == null || current.size() >= FILE_BYTES) rotate();
+            Session s = new Session(current, nextConn.incrementAndGet());
+            current.openSessions++;
+            current.record(OPEN, s.conn);
+            current.varint(localPort);
+            byte[] src = source.getBytes(UTF8);
+            current.varint(src.length);
+            current.out.write(src);
+            return s;
+        } catch (IOException e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    @Override public synchronized void close() {
+        if (current != null) {
+            current.retired = true;
+            if (current.openSessions == 0) current.close();
+            current = null;
+        }
+    }
+
+    /** One client connection. Calls after close() are ignored. */
+    public final class Session {
+        private final CaptureFile file;
+        final int conn;
+        private boolean closed;
+
+        private Session(CaptureFile file, int conn) {
+            this.file = file;
+            this.conn = conn;
+        }
+
+        /** Records bytes as read from the socket, one call per read. */
+        public void data(byte[] b, int off, int len) {
+            synchronized (JobCapture.this) {
+                if (closed || failed || len <= 0) return;
+                try {
+                    file.record(DATA, conn);
+                    file.varint(len);
+                    file.out.write(b, off, len);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        public void close() {
+            synchronized (JobCapture.this) {
+                if (closed) return;
+                closed = true;
+                try {
+                    if (!failed) {
+                        file.record(CLOSE, conn);
+                        // Completed connections reach the disk even if the app is killed later
+                        file.out.flush();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+                if (--file.openSessions == 0 && file.retired) file.close();
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (current != null) {
+            current.retired = true;
+            if (current.openSessions == 0) current.close();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date());
+        current = new CaptureFile(new File(dir, prefix + "-" + stamp + SUFFIX));
+        StatusLog.get().i(tag, "Capturing to " + current.file.getName());
+        trim();
+    }
+
+    /**
+     * Deletes this capture's oldest files until the rest fit in maxBytes. Other
+     * services capture into the same directory under their own prefix and may
+     * have their file open, so only names starting with ours are touched.
+     */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override public int compare(File a, File b) { return Long.compare(b.lastModified(), a.lastModified()); }
+        });
+        long total = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix + "-") || !name.endsWith(SUFFIX)) continue;
+            total += f.length();
+            if (total > maxBytes && !f.equals(current.file)) {
+                if (f.delete()) StatusLog.get().i(tag, "Capture limit reached, deleted " + f.getName());
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        failed = true;
+        StatusLog.get().w(tag, "Capture stopped: " + e.getMessage());
+        if (current != null) current.close();
+        current = null;
+    }
+
+    private static final class CaptureFile {
+        final File file;
+        final DataOutputStream out;
+        final long startNanos = System.nanoTime();
+        long lastMicros;
+        int openSessions;
+        boolean retired;
+
+        CaptureFile(File file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16 * 1024));
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.writeLong(System.currentTimeMillis());
+        }
+
+        long size() { return out.size(); }
+
+        void record(int type, int conn) throws IOException {
+            long now = (System.nanoTime() - startNanos) / 1000;
+            out.write(type);
+            varint(conn);
+            varint(Math.max(0, now - lastMicros));
+            lastMicros = Math.max(lastMicros, now);
+        }
+
+        void varint(long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        void close() {
+            try { out.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // ---- Reading ----
+
+    /** One record of a capture file. */
+    public static final class Record {
+        public int type;
+        public int conn;
+        /** Since the start of the file. */
+        public long timeMicros;
+        /** OPEN only. */
+        public int localPort;
+        public String source;
+        /** DATA only. */
+        public byte[] data;
+    }
+
+    /** Reads a capture file record by record. */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startEpochMs;
+        private long timeMicros;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            int version = this.in.read();
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+                throw new IOException("Not a capture file (version " + VERSION + ")");
+            }
+            startEpochMs = this.in.readLong();
+        }
+
+        public long startEpochMs() { return startEpochMs; }
+
+        /** The next record, or null at the end. A file cut short ends at its last whole record. */
+        public Record next() throws IOException {
+            int type = in.read();
+            if (type < 0) return null;
+            try {
+                Record r = new Record();
+                r.type = type;
+                r.conn = (int) varint();
+                timeMicros += varint();
+                r.timeMicros = timeMicros;
+                if (type == OPEN) {
+                    r.localPort = (int) varint();
+                    byte[] src = new byte[(int) varint()];
+                    in.readFully(src);
+                    r.source = new String(src, UTF8);
+                } else if (type == DATA) {
+                    r.data = new byte[(int) varint()];
+                    in.readFully(r.data);
+                } else if (type != CLOSE) {
+                    throw new IOException("Bad record type " + type);
+                }
+                return r;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Bad varint");
+        }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.citaqh10printer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-job timelines: spans for accept, each socket read, queueing, each
+ * serial write or USB transfer, drain and close, exported in Chrome's
+ * trace-event format (open the file in ui.perfetto.dev or chrome://tracing).
+ *
+ * A connection is traced when {@link #begin()} picks it (one in
+ * {@link #setSampleEvery N}) and returns a non-zero trace id; every span
+ * call with id 0 returns at once, so untraced jobs cost one volatile read.
+ * Each traced connection gets one of {@link #RECORDS} records, allocated
+ * once when tracing is turned on and reused oldest first, so the last
+ * RECORDS traced connections are kept whatever threads served them. The
+ * receiving thread and the writer thread add spans to the same record
+ * without locks; spans past {@link #SPANS} are counted as dropped.
+ * {@link #spoolJob} ties the record to the spool job numbers the status log
+ * prints, which is what {@link #toJson} filters on.
+ */
+public final class JobTrace {
+
+    public static final int ACCEPT = 0;
+    public static final int FIRST_BYTE = 1;
+    public static final int READ = 2;
+    public static final int RECEIVE = 3;
+    public static final int SUBMIT = 4;
+    public static final int CLOSE = 5;
+    public static final int QUEUE = 6;
+    public static final int PRINT = 7;
+    public static final int SERIAL_WRITE = 8;
+    public static final int SERIAL_STALL = 9;
+    public static final int SERIAL_DRAIN = 10;
+    public static final int USB_BULK = 11;
+
+    private static final String[] NAMES = {
+            "accept", "first byte", "read", "receive", "submit", "close",
+            "queue", "print", "serial write", "serial stall", "serial drain", "usb bulk" };
+
+    /** Traced connections kept; a power of two. */
+    static final int RECORDS = 16;
+    /** Spans kept per traced connection. */
+    static final int SPANS = 512;
+    /** Spool jobs one connection can be split into (status queries) that are named in its record. */
+    private static final int MAX_SPOOL_JOBS = 8;
+
+    private static volatile int sampleEvery;
+    private static final AtomicLong connections = new AtomicLong();
+    private static final AtomicLong traced = new AtomicLong();
+    private static volatile Record[] records;
+
+    private JobTrace() {}
+
+    /** 0 turns tracing off, 1 traces every connection, N one in N. */
+    public static void setSampleEvery(int n) {
+        if (n > 0) allocate();
+        sampleEvery = Math.max(0, n);
+    }
+
+    /** Call when a client connection starts; returns its trace id, or 0 if it is not traced. */
+    public static long begin() {
+        int every = sampleEvery;
+        if (every <= 0) return 0;
+        if (connections.incrementAndGet() % every != 0) return 0;
+        long id = traced.incrementAndGet();
+        records[(int) id & (RECORDS - 1)].reset(id);
+        return id;
+    }
+
+    /** Names the spool job a traced connection's bytes were queued as. */
+    public static void spoolJob(long trace, long spoolId) {
+        if (trace == 0) return;
+        Record r = records[(int) trace & (RECORDS - 1)];
+        if (r.trace != trace) return;
+        int k = r.jobCount.getAndIncrement();
+        if (k < MAX_SPOOL_JOBS) r.jobs.set(k, spoolId);
+    }
+
+    /** Records a span from startNanos to endNanos (System.nanoTime()); arg is a byte count or 0. */
+    public static void span(long trace, int name, long startNanos, long endNanos, long arg) {
+        if (trace == 0) return;
+        records[(int) trace & (RECORDS - 1)].add(trace, name, startNanos, endNanos - startNanos, arg);
+    }
+
+    /** Records a span from startNanos to now. */
+    public static void spanSince(long trace, int name, long startNanos, long arg) {
+        if (trace == 0) return;
+        span(trace, name, startNanos, System.nanoTime(), arg);
+    }
+
+    private static synchronized void allocate() {
+        if (records != null) return;
+        Record[] r = new Record[RECORDS];
+        for (int i = 0; i < RECORDS; i++) r[i] = new Record();
+        records = r;
+    }
+
+    /**
+     * One traced connection's spans. Writers claim a slot, fill it, then mark
+     * it with the trace id; {@link #toJson} only reads marked slots. If the
+     * record is reused while a very late writer of the old connection is
+     * still adding spans, that writer's spans are lost.
+     */
+    private static final class Record {
+        volatile long trace;
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLongArray written = new AtomicLongArray(SPANS);
+        final long[] start = new long[SPANS];
+        final long[] dur = new long[SPANS];
+        final long[] arg = new long[SPANS];
+        final byte[] name = new byte[SPANS];
+        final AtomicInteger jobCount = new AtomicInteger();
+        final AtomicLongArray jobs = new AtomicLongArray(MAX_SPOOL_JOBS);
+
+        void reset(long t) {
+            trace = 0;
+            count.set(0);
+            jobCount.set(0);
+            for (int i = 0; i < MAX_SPOOL_JOBS; i++) jobs.set(i, 0);
+            trace = t;
+        }
+
+        void add(long t, int n, long s, long d, long a) {
+            if (trace != t) return;
+            int i = count.getAndIncrement();
+            if (i >= SPANS) return;
+            start[i] = s;
+            dur[i] = d;
+            arg[i] = a;
+            name[i] = (byte) n;
+            written.set(i, t);
+        }
+
+        boolean hasJob(long spoolId) {
+            int n = Math.min(jobCount.get(), MAX_SPOOL_JOBS);
+            for (int i = 0; i < n; i++) {
+                if (jobs.get(i) == spoolId) return true;
+            }
+            return false;
+        }
+    }
+
+    // ---- Export ----
+
+    /**
+     * Chrome trace-event JSON with every record held, or only the one that
+     * spool job {@code spoolJob} came from (non-zero). Each traced connection
+     * is a process named after its spool jobs, with a receive and a print
+     * thread. Times are microseconds of System.nanoTime().
+     */
+    public static String toJson(long spoolJob) {
+        Record[] list = records;
+        StringBuilder sb = new StringBuilder(64 * 1024);
+        sb.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        if (list != null) {
+            for (Record r : list) {
+                long t = r.trace;
+                if (t == 0) continue;
+                if (spoolJob != 0 && !r.hasJob(spoolJob)) continue;
+                if (!first) sb.append(',');
+                first = false;
+                header(sb, r, t);
+                int n = Math.min(r.count.get(), SPANS);
+                for (int i = 0; i < n; i++) {
+                    if (r.written.get(i) != t) continue;
+                    long s = r.start[i], d = r.dur[i], a = r.arg[i];
+                    int name = r.name[i];
+                    // Reused for a newer connection while we read
+                    if (r.written.get(i) != t || r.trace != t) break;
+                    sb.append(",{\"name\":\"").append(NAMES[name]).append("\",\"cat\":\"job\",\"ph\":\"X\",\"pid\":")
+                            .append(t).append(",\"tid\":").append(name < QUEUE ? 1 : 2).append(",\"ts\":");
+                    micros(sb, s).append(",\"dur\":");
+                    micros(sb, d).append(",\"args\":{");
+                    if (a != 0) sb.append("\"bytes\":").append(a);
+                    sb.append("}}");
+                }
+            }
+        }
+        return sb.append("]}\n").toString();
+    }
+
+    /** Metadata naming a record's process ("job #12, #13") and its two threads. */
+    private static void header(StringBuilder sb, Record r, long t) {
+        sb.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(t).append(",\"args\":{\"name\":\"");
+        int jobs = Math.min(r.jobCount.get(), MAX_SPOOL_JOBS);
+        int named = 0;
+        for (int i = 0; i < jobs; i++) {
+            long id = r.jobs.get(i);
+            if (id == 0) continue;
+            sb.append(named++ == 0 ? "job #" : ", #").append(id);
+        }
+        if (named == 0) sb.append("connection ").append(t);
+        int dropped = r.count.get() - SPANS;
+        if (dropped > 0) sb.append(", ").append(dropped).append(" spans dropped");
+        sb.append("\"}}");
+        for (int tid = 1; tid <= 2; tid++) {
+            sb.append(",{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(t).append(",\"tid\":").append(tid)
+                    .append(",\"args\":{\"name\":\"").append(tid == 1 ? "receive" : "print").append("\"}}");
+        }
+    }
+
+    private static StringBuilder micros(StringBuilder sb, long nanos) {
+        sb.append(nanos / 1000).append('.');
+        long frac = Math.abs(nanos % 1000);
+        if (frac < 100) sb.append('0');
+        if (frac < 10) sb.append('0');
+        return sb.append(frac);
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.citaqh10printer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Which raster images have been stored in the printer's NV graphics memory.
+ *
+ * Images are identified by a 64-bit hash of their size and data. Each one
+ * printed is counted; once an image has come up {@code threshold} times it is
+ * given a key and stored in NV memory, and later copies are printed from
+ * there by {@link LogoCacheStage}. NV memory is small and wears with writes,
+ * so the threshold keeps one-off images out, and the least recently printed
+ * images are deleted to make room once {@code capacityBytes} is reached.
+ *
+ * Keys are {@code 'L' c} with c in 0x21..0x7E, so at most 94 images are
+ * stored. The index is saved to {@code file} whenever the stored set changes
+ * and reloaded on start, since the printer keeps its NV graphics across power
+ * cycles. If the printer is replaced or its NV memory cleared, delete the file
+ * (or turn the cache off and on) so images are stored again.
+ *
+ * {@link #use} is called by the share service's writer thread as each job
+ * prints, so decisions follow the order the printer sees. A store only counts
+ * once {@link #jobDone} reports that its job printed; if the job failed, the
+ * key is freed again and the image is stored the next time it comes up.
+ * Deletes are sent before the store that needs the room and count at once.
+ * Methods are synchronized.
+ */
+public class LogoCache {
+
+    private static final String TAG = "LogoCache";
+    private static final int VERSION = 1;
+    public static final int KEY1 = 'L';
+    private static final int FIRST_KEY2 = 0x21;
+    private static final int KEYS = 0x7E - FIRST_KEY2 + 1;
+    /** Hashes of images seen too rarely to store; oldest forgotten first. */
+    private static final int MAX_TRACKED = 256;
+    /** Bytes the printer spends per stored image besides the data (estimate). */
+    private static final int ENTRY_OVERHEAD = 16;
+
+    /** What to send for one image; filled by {@link #use}. */
+    public static final class Decision {
+        /** Second key byte to print from NV, or -1 to send the raster itself. */
+        public int key2 = -1;
+        /** True if the image has to be stored under {@link #key2} first. */
+        public boolean store;
+        /** Second key bytes of images to delete from NV before storing. */
+        public final int[] evicted = new int[KEYS];
+        public int evictedCount;
+    }
+
+    private static final class Slot {
+        final long id;
+        final int bytes;
+        int hits;
+        int key2 = -1;
+
+        Slot(long id, int bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File file;
+    private final long capacityBytes;
+    private final int threshold;
+    // Access order, so iteration starts at the least recently used image
+    private final LinkedHashMap<Long, Slot> slots = new LinkedHashMap<>(64, 0.75f, true);
+    private final boolean[] keyUsed = new boolean[KEYS];
+    private long usedBytes;
+    /** Images stored by the job now printing, until {@link #jobDone}. */
+    private final ArrayList<Slot> pending = new ArrayList<>();
+    private boolean dirty;
+
+    public LogoCache(File file, long capacityBytes, int threshold) {
+        this.file = file;
+        this.capacityBytes = capacityBytes;
+        this.threshold = Math.max(1, threshold);
+        load();
+    }
+
+    public long capacityBytes() { return capacityBytes; }
+
+    /**
+     * Counts one occurrence of an image and decides how to send it.
+     *
+     * @param id    hash of the image header and data
+     * @param bytes raster data size
+     */
+    public synchronized void use(long id, int bytes, Decision d) {
+        d.key2 = -1;
+        d.store = false;
+        d.evictedCount = 0;
+
+        Slot s = slots.get(id);
+        if (s == null) {
+            s = new Slot(id, bytes);
+            slots.put(id, s);
+            forgetRare();
+        }
+        if (s.key2 >= 0) {
+            d.key2 = s.key2;
+            return;
+        }
+        if (++s.hits < threshold || bytes + ENTRY_OVERHEAD > capacityBytes) return;
+
+        // Make room: delete the least recently printed stored images
+        Iterator<Slot> it = slots.values().iterator();
+        int freeKey = freeKey();
+        while ((usedBytes + bytes + ENTRY_OVERHEAD > capacityBytes || freeKey < 0) && it.hasNext()) {
+            Slot old = it.next();
+            if (old.key2 < 0 || old == s) continue;
+            d.evicted[d.evictedCount++] = old.key2;
+            keyUsed[old.key2 - FIRST_KEY2] = false;
+            usedBytes -= old.bytes + ENTRY_OVERHEAD;
+            old.key2 = -1;
+            old.hits = 0;
+            dirty = true;
+            if (freeKey < 0) freeKey = freeKey();
+        }
+        if (freeKey < 0 || usedBytes + bytes + ENTRY_OVERHEAD > capacityBytes) return;
+
+        s.key2 = freeKey;
+        keyUsed[freeKey - FIRST_KEY2] = true;
+        usedBytes += bytes + ENTRY_OVERHEAD;
+        d.key2 = freeKey;
+        d.store = true;
+        pending.add(s);
+        StatusLog.get().i(TAG, "Storing %d-byte image as NV graphic L%c (seen %dx, %d/%d bytes used)",
+                bytes, (char) freeKey, s.hits, usedBytes, capacityBytes);
+    }
+
+    /**
+     * The job that called {@link #use} since the last call has finished.
+     * Keeps its stores if it printed, forgets them if not, and saves the index
+     * if anything changed.
+     */
+    public synchronized void jobDone(boolean printed) {
+        if (!printed) {
+            for (Slot s : pending) {
+                if (s.key2 < 0) continue;
+                StatusLog.get().w(TAG, "Job failed, NV graphic L%c not counted as stored", (char) s.key2);
+                keyUsed[s.key2 - FIRST_KEY2] = false;
+                usedBytes -= s.bytes + ENTRY_OVERHEAD;
+                s.key2 = -1;
+            }
+        } else if (!pending.isEmpty()) {
+            dirty = true;
+        }
+        pending.clear();
+        if (dirty) {
+            save();
+            dirty = false;
+        }
+    }
+
+    private int freeKey() {
+        for (int i = 0; i < KEYS; i++) {
+            if (!keyUsed[i]) return FIRST_KEY2 + i;
+        }
+        return -1;
+    }
+
+    private void forgetRare() {
+        if (slots.size() <= MAX_TRACKED) return;
+        Iterator<Slot> it = slots.values().iterator();
+        while (slots.size() > MAX_TRACKED && it.hasNext()) {
+            if (it.next().key2 < 0) it.remove();
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) return;
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    Slot s = new Slot(in.readLong(), in.readInt());
+                    s.hits = in.readInt();
+                    int key2 = in.readInt();
+                    if (key2 >= FIRST_KEY2 && key2 < FIRST_KEY2 + KEYS && !keyUsed[key2 - FIRST_KEY2]) {
+                        s.key2 = key2;
+                        keyUsed[key2 - FIRST_KEY2] = true;
+                        usedBytes += s.bytes + ENTRY_OVERHEAD;
+                    }
+                    slots.put(s.id, s);
+                }
+            } finally {
+                in.close();
+            }
+            StatusLog.get().i(TAG, "Loaded " + slots.size() + " images, " + usedBytes + " bytes in NV");
+        } catch (IOException e) {
+            StatusLog.get().w(TAG, "Index unreadable, starting empty: " + e.getMessage());
+        }
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(slots.size());
+                // Oldest first, so load() rebuilds the same LRU order
+                for (Slot s : slots.values()) {
+                    out.writeLong(s.id);
+                    out.writeInt(s.bytes);
+                    out.writeInt(s.hits);
+                    out.writeInt(s.key2);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) throw new IOException("rename failed");
+        } catch (IOException e) {
+            StatusLog.get().w(TAG, "Index not saved: " + e.getMessage());
+        }
+    }
+}
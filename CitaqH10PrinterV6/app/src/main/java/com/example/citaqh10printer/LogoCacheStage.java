@@ -0,0 +1,229 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Prints repeated GS v 0 images (the store logo on every ticket) from the
+ * printer's NV graphics memory instead of resending them.
+ *
+ * Whether an image is in NV memory depends on the jobs printed before it, not
+ * on those received before it, so nothing is decided here. The stage runs
+ * last, passes every byte through to the spool unchanged and notes where each
+ * GS v 0 image small enough to store starts, with a hash of it (FNV-1a, 64
+ * bit, over mode, size and data). The notes travel with the job as its
+ * {@link Sites}; when the writer thread prints the job, they ask the shared
+ * {@link LogoCache} what to send for each image and splice it in:
+ * <pre>
+ *   GS v 0 ...                          not (yet) worth storing
+ *   GS ( L 04 00 30 42 'L' k            delete an evicted image (fn 66)
+ *   GS ( L pL pH 30 43 30 'L' k 01 xL xH yL yH 31 d...
+ *                                       store the image (fn 67, raster format)
+ *   GS ( L 06 00 30 45 'L' k sx sy      print it from NV (fn 69)
+ * </pre>
+ * A logo of a few KB becomes 11 bytes on the wire after it has been stored.
+ */
+public class LogoCacheStage extends EscPosStage {
+
+    /** Largest image GS ( L fn 67 can carry: pL pH count the 11 bytes before the data. */
+    private static final int MAX_IMAGE_BYTES = 0xFFFF - 11;
+    /** GS v 0 m xL xH yL yH */
+    private static final int RASTER_HEADER = 8;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final LogoCache cache;
+    private Sites sites;
+    private long jobStart;
+
+    private boolean tracking;
+    private final byte[] header = new byte[6];
+    private long offset;
+    private int fill;
+    private int expected;
+    private long hash;
+
+    public LogoCacheStage(OutputStream out, LogoCache cache) {
+        super(out);
+        this.cache = cache;
+    }
+
+    /** Images noted in the current job, or null if it has none. */
+    public Sites sites() { return sites; }
+
+    @Override protected void onJobBoundary() {
+        jobStart = bytesOut();
+        sites = null;
+        tracking = false;
+    }
+
+    @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException {
+        if (cmd == EscPosParser.GS_V && dataLen > 0 && dataLen <= MAX_IMAGE_BYTES
+                && dataLen <= cache.capacityBytes()) {
+            tracking = true;
+            offset = bytesOut() - jobStart;
+            System.arraycopy(p, 0, header, 0, 6);
+            expected = (int) dataLen;
+            fill = 0;
+            long h = FNV_OFFSET;
+            for (int i = 1; i < 6; i++) h = (h ^ (header[i] & 0xFF)) * FNV_PRIME;
+            hash = h;
+        }
+        super.onBlockStart(cmd, p, n, dataLen);
+    }
+
+    @Override public void onBlockData(byte[] b, int off, int len) throws IOException {
+        if (tracking) {
+            long h = hash;
+            for (int i = off, end = off + len; i < end; i++) h = (h ^ (b[i] & 0xFF)) * FNV_PRIME;
+            hash = h;
+            fill += len;
+        }
+        super.onBlockData(b, off, len);
+    }
+
+    @Override public void onBlockEnd(int cmd) throws IOException {
+        super.onBlockEnd(cmd);
+        if (!tracking) return;
+        tracking = false;
+        // A truncated image prints as received
+        if (fill < expected) return;
+        if (sites == null) sites = new Sites(cache);
+        sites.add(offset, header, expected, hash);
+    }
+
+    /**
+     * The cacheable images of one job, by offset in its spooled bytes. As a
+     * {@link PrintSpooler.PrintFilter} it replaces them on the writer thread,
+     * and keeps the images it stored only if the job printed.
+     */
+    public static final class Sites implements PrintSpooler.PrintFilter {
+        private final LogoCache cache;
+        private long[] offsets = new long[4];
+        private long[] hashes = new long[4];
+        private int[] lengths = new int[4];
+        private byte[] headers = new byte[4 * 6];
+        private int count;
+
+        Sites(LogoCache cache) {
+            this.cache = cache;
+        }
+
+        void add(long offset, byte[] header, int dataLen, long hash) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                headers = Arrays.copyOf(headers, count * 2 * 6);
+            }
+            offsets[count] = offset;
+            hashes[count] = hash;
+            lengths[count] = dataLen;
+            System.arraycopy(header, 0, headers, count * 6, 6);
+            count++;
+        }
+
+        @Override public SpoolStore.Segments open(SpoolStore.Segments in) {
+            return new Splicer(in);
+        }
+
+        @Override public void done(boolean printed) {
+            cache.jobDone(printed);
+        }
+
+        /** The spooled bytes with each noted image replaced by what the cache decides. */
+        private final class Splicer implements SpoolStore.Segments {
+            private final SpoolStore.Segments in;
+            private final LogoCache.Decision decision = new LogoCache.Decision();
+            private final ArrayDeque<ByteBuffer> inserts = new ArrayDeque<>();
+            private ByteBuffer seg;
+            /** Job offset of seg's position. */
+            private long pos;
+            private int next;
+            /** Spooled bytes before this offset are dropped. */
+            private long skipTo;
+            /** Where fn 69 follows a stored image, or -1. */
+            private long printAt = -1;
+            private byte[] printCommand;
+
+            Splicer(SpoolStore.Segments in) {
+                this.in = in;
+            }
+
+            @Override public ByteBuffer next() throws IOException {
+                while (true) {
+                    if (!inserts.isEmpty()) return inserts.poll();
+                    if (pos == printAt) {
+                        printAt = -1;
+                        return ByteBuffer.wrap(printCommand);
+                    }
+                    if (seg == null || !seg.hasRemaining()) {
+                        seg = in.next();
+                        if (seg == null) return null;
+                    }
+                    if (pos < skipTo) {
+                        pos += advance((int) Math.min(seg.remaining(), skipTo - pos));
+                        continue;
+                    }
+                    if (next < count && pos == offsets[next]) {
+                        resolve(next++);
+                        continue;
+                    }
+                    long stop = next < count ? offsets[next] : Long.MAX_VALUE;
+                    if (printAt >= 0) stop = Math.min(stop, printAt);
+                    int n = (int) Math.min(seg.remaining(), stop - pos);
+                    ByteBuffer out = seg.duplicate();
+                    out.limit(out.position() + n);
+                    pos += advance(n);
+                    return out;
+                }
+            }
+
+            private int advance(int n) {
+                seg.position(seg.position() + n);
+                return n;
+            }
+
+            private void resolve(int i) {
+                cache.use(hashes[i], lengths[i], decision);
+                for (int k = 0; k < decision.evictedCount; k++) {
+                    inserts.add(ByteBuffer.wrap(new byte[] {
+                            0x1D, '(', 'L', 4, 0, 48, 66, (byte) LogoCache.KEY1, (byte) decision.evicted[k] }));
+                }
+                // Not stored: the spooled GS v 0 goes out as it is
+                if (decision.key2 < 0) return;
+                int h = i * 6;
+                int mode = headers[h + 1] & 0xFF;
+                byte[] print = {
+                        0x1D, '(', 'L', 6, 0, 48, 69, (byte) LogoCache.KEY1, (byte) decision.key2,
+                        (byte) ((mode & 1) != 0 ? 2 : 1),   // GS v 0 double width
+                        (byte) ((mode & 2) != 0 ? 2 : 1) }; // and double height
+                if (decision.store) {
+                    int dots = EscPosParser.u16(headers, h + 2) * 8;
+                    int len = 11 + lengths[i];
+                    inserts.add(ByteBuffer.wrap(new byte[] {
+                            0x1D, '(', 'L', (byte) len, (byte) (len >> 8), 48, 67, 48,
+                            (byte) LogoCache.KEY1, (byte) decision.key2,
+                            1,                                  // one colour
+                            (byte) dots, (byte) (dots >> 8),
+                            headers[h + 4], headers[h + 5],     // rows
+                            49 }));                             // colour 1
+                    // The raster data itself comes from the spool, then fn 69
+                    skipTo = pos + RASTER_HEADER;
+                    printAt = skipTo + lengths[i];
+                    printCommand = print;
+                } else {
+                    inserts.add(ByteBuffer.wrap(print));
+                    skipTo = pos + RASTER_HEADER + lengths[i];
+                }
+            }
+
+            @Override public void close() {
+                in.close();
+            }
+        }
+    }
+}
@@ -23,7 +23,15 @@ public class MainActivity extends Activity {
 
     private static final String DEFAULT_PATH = "/dev/ttyS1";
     private static final int DEFAULT_BAUD = 115200;
+    private static final int DEFAULT_IDLE_SEC = 30;
     private static final String URL = "http://www.ihavealongdomainnameandilikeitverymuchthankyou.com";
+    private static final String TEST_RECEIPT =
+            "@init\n"
+            + "@center\n"
+            + "@qr url 6 H\n"
+            + "${device} @ ${baud} baud\n"
+            + "@feed 3\n"
+            + "@cut\n";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,6 +47,9 @@ public class MainActivity extends Activity {
         Button btnStatus = findViewById(R.id.btnStatus);
         btnStatus.setOnClickListener(v ->
                 startActivity(new Intent(MainActivity.this, StatusActivity.class)));
+        Button btnMetrics = findViewById(R.id.btnMetrics);
+        btnMetrics.setOnClickListener(v ->
+                startActivity(new Intent(MainActivity.this, MetricsActivity.class)));
 
         btnPrint.setOnClickListener(new View.OnClickListener() {
             @Override public void onClick(View v) { doPrint(); }
@@ -71,27 +82,41 @@ public class MainActivity extends Activity {
     private void doPrint() {
         final String path = prefs.getString("device_path", DEFAULT_PATH);
         final int baud = prefs.getInt("baud_rate", DEFAULT_BAUD);
+        final int idleSec = prefs.getInt("serial_idle_sec", DEFAULT_IDLE_SEC);
+        final int flags = SerialPort.flowFlags(prefs.getBoolean("flow_rtscts", false),
+                prefs.getBoolean("flow_xonxoff", false));
 
         tvStatus.setText(R.string.status_printing);
         btnPrint.setEnabled(false);
 
+        // Encoded up front and sent in one write: each write on the tty is a synchronous syscall
+        ReceiptTemplate template = ReceiptTemplate.cached(TEST_RECEIPT, prefs.getInt("paper_width", 576));
+        final EscPosBuilder receipt = new EscPosBuilder();
+        template.render(template.newReceipt()
+                .set("url", URL)
+                .set("device", path)
+                .set("baud", String.valueOf(baud)), receipt);
+
         new AsyncTask<Void, Void, String>() {
             @Override protected String doInBackground(Void... voids) {
-                SerialPort sp = null;
+                // Shared with the network share service; waits if a job is printing
+                SerialSession session = SerialSession.get();
+                session.setIdleTimeoutMs(idleSec * 1000L);
                 try {
-                    sp = new SerialPort(path, baud, 0);
-                    OutputStream os = sp.getOutputStream();
-                    PrinterEscPos.initialize(os);
-                    PrinterEscPos.setAlignCenter(os);
-                    PrinterEscPos.printQr(os, URL, 6, 51);
-                    PrinterEscPos.feed(os, 3);
-                    PrinterEscPos.cut(os);
-                    os.flush();
+                    SerialPort sp = session.acquire(path, baud, flags);
+                    boolean failed = true;
+                    try {
+                        session.setReplyChannel(null);
+                        OutputStream os = sp.getOutputStream();
+                        receipt.writeTo(os);
+                        os.flush();
+                        failed = false;
+                    } finally {
+                        session.release(failed);
+                    }
                     return null;
                 } catch (Throwable t) {
                     return t.getClass().getSimpleName() + ": " + (t.getMessage() == null ? "error" : t.getMessage());
-                } finally {
-                    if (sp != null) sp.close();
                 }
             }
 
@@ -0,0 +1,172 @@
+package com.example.citaqh10printer;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Numbers for the print path: counters, latency histograms and gauges, by
+ * name ("tcp9100.bytes_in", "serial.write_stall_us", ...).
+ *
+ * Look a metric up once, when the component is created, and keep it in a
+ * field; recording into it is a few atomic adds and never allocates or locks.
+ * Histograms count values in log-spaced buckets, four per power of two, so
+ * percentiles are within about 20% for any range of values. Durations are
+ * recorded in microseconds and names end in "_us".
+ */
+public final class Metrics {
+
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() { value.incrementAndGet(); }
+        public void add(long n) { value.addAndGet(n); }
+        public long get() { return value.get(); }
+    }
+
+    /** Current value of something, read when the metrics are shown. */
+    public interface Gauge {
+        long value();
+    }
+
+    public static final class Histogram {
+        private static final int SUB_BITS = 2;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long v) {
+            if (v < 0) v = 0;
+            counts.incrementAndGet(bucket(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            long m;
+            while (v > (m = max.get()) && !max.compareAndSet(m, v)) { /* retry */ }
+        }
+
+        /** Records the microseconds since startNanos (a System.nanoTime() value). */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long count() { return count.get(); }
+        public long sum() { return sum.get(); }
+        public long max() { return max.get(); }
+
+        /** Upper edge of the bucket holding the p-th percentile (0..100), capped at the maximum. */
+        public long percentile(double p) {
+            long n = count.get();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts.get(b);
+                if (seen >= rank) return Math.min(max.get(), lowerBound(b + 1) - 1);
+            }
+            return max.get();
+        }
+
+        static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        static long lowerBound(int b) {
+            if (b < SUB) return b;
+            if (b >= BUCKETS) return Long.MAX_VALUE;
+            int exp = b / SUB + SUB_BITS - 1;
+            return (1L << exp) + ((long) (b % SUB) << (exp - SUB_BITS));
+        }
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+    public static Metrics get() { return INSTANCE; }
+
+    private final TreeMap<String, Object> metrics = new TreeMap<>();
+
+    private Metrics() {}
+
+    public synchronized Counter counter(String name) {
+        Object m = metrics.get(name);
+        if (m instanceof Counter) return (Counter) m;
+        Counter c = new Counter();
+        metrics.put(name, c);
+        return c;
+    }
+
+    public synchronized Histogram histogram(String name) {
+        Object m = metrics.get(name);
+        if (m instanceof Histogram) return (Histogram) m;
+        Histogram h = new Histogram();
+        metrics.put(name, h);
+        return h;
+    }
+
+    /** Registers or replaces a gauge; a service that restarts registers its new one. */
+    public synchronized void gauge(String name, Gauge g) {
+        metrics.put(name, g);
+    }
+
+    // ---- Output ----
+
+    /** One metric per line: "name value", histograms as count, mean and percentiles. */
+    public synchronized String toText() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            sb.append(e.getKey()).append(' ');
+            Object m = e.getValue();
+            if (m instanceof Histogram) {
+                Histogram h = (Histogram) m;
+                long n = h.count();
+                sb.append("count=").append(n)
+                        .append(" mean=").append(n == 0 ? 0 : h.sum() / n)
+                        .append(" p50=").append(h.percentile(50))
+                        .append(" p90=").append(h.percentile(90))
+                        .append(" p99=").append(h.percentile(99))
+                        .append(" max=").append(h.max());
+            } else {
+                sb.append(value(m));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** {"counters":{...},"gauges":{...},"histograms":{"name":{"count":..,"p50":..},...}} */
+    public synchronized String toJson() {
+        StringBuilder c = new StringBuilder(), g = new StringBuilder(), h = new StringBuilder();
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            Object m = e.getValue();
+            if (m instanceof Histogram) {
+                Histogram x = (Histogram) m;
+                sep(h).append('"').append(e.getKey()).append("\":").append(String.format(Locale.US,
+                        "{\"count\":%d,\"sum\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"max\":%d}",
+                        x.count(), x.sum(), x.percentile(50), x.percentile(90), x.percentile(99), x.max()));
+            } else {
+                sep(m instanceof Counter ? c : g).append('"').append(e.getKey()).append("\":").append(value(m));
+            }
+        }
+        return "{\"counters\":{" + c + "},\"gauges\":{" + g + "},\"histograms\":{" + h + "}}\n";
+    }
+
+    private static StringBuilder sep(StringBuilder sb) {
+        return sb.length() > 0 ? sb.append(',') : sb;
+    }
+
+    private static long value(Object m) {
+        if (m instanceof Counter) return ((Counter) m).get();
+        try {
+            return ((Gauge) m).value();
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.citaqh10printer;
+
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The {@link Metrics} summary, refreshed every second while visible, and a
+ * button that saves the {@link JobTrace} spans held as a Chrome trace file.
+ */
+public class MetricsActivity extends Activity {
+
+    private static final long REFRESH_MS = 1000;
+
+    private final Handler handler = new Handler();
+    private TextView tvMetrics;
+
+    private final Runnable refresh = new Runnable() {
+        @Override public void run() {
+            tvMetrics.setText("Durations (_us) in microseconds\n\n" + Metrics.get().toText());
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        tvMetrics = findViewById(R.id.tvMetrics);
+        Button btnSaveTrace = findViewById(R.id.btnSaveTrace);
+        btnSaveTrace.setOnClickListener(v -> saveTrace());
+    }
+
+    @Override protected void onResume() {
+        super.onResume();
+        refresh.run();
+    }
+
+    @Override protected void onPause() {
+        handler.removeCallbacks(refresh);
+        super.onPause();
+    }
+
+    /** Writes traces/trace-&lt;time&gt;.json next to the captures; open it in ui.perfetto.dev. */
+    private void saveTrace() {
+        final File dir = new File(SettingsActivity.captureDir(this).getParentFile(), "traces");
+        new AsyncTask<Void, Void, String>() {
+            @Override protected String doInBackground(Void... voids) {
+                File f = new File(dir, "trace-" + System.currentTimeMillis() + ".json");
+                try {
+                    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+                    try (OutputStream out = new FileOutputStream(f)) {
+                        out.write(JobTrace.toJson(0).getBytes("UTF-8"));
+                    }
+                    return "Saved " + f.getPath();
+                } catch (IOException e) {
+                    return "Trace not saved: " + e.getMessage();
+                }
+            }
+
+            @Override protected void onPostExecute(String result) {
+                Toast.makeText(MetricsActivity.this, result, Toast.LENGTH_LONG).show();
+            }
+        }.execute();
+    }
+}
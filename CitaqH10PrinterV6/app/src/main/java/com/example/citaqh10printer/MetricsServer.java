@@ -0,0 +1,140 @@
+package com.example.citaqh10printer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Serves {@link Metrics} over HTTP on the loopback interface only:
+ * {@code GET /metrics} as text, {@code GET /metrics.json} as JSON, and
+ * {@code GET /trace.json[?job=N]} for the {@link JobTrace} spans held, N being
+ * the spool job number the status log prints. From a
+ * PC: {@code adb forward tcp:9180 tcp:9180 && curl localhost:9180/metrics}.
+ *
+ * Both share services use it; it runs while at least one of them holds it.
+ */
+public final class MetricsServer {
+
+    private static final String TAG = "Metrics";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static MetricsServer instance;
+    private static int users;
+
+    private final int port;
+    private volatile ServerSocket server;
+    private volatile boolean running = true;
+
+    private MetricsServer(int port) {
+        this.port = port;
+    }
+
+    /** Starts the server on first use; port 0 leaves it off. */
+    public static synchronized void retain(int port) {
+        if (port <= 0) return;
+        users++;
+        if (instance == null) {
+            instance = new MetricsServer(port);
+            instance.start();
+        }
+    }
+
+    public static synchronized void release() {
+        if (users == 0 || --users > 0) return;
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    private void start() {
+        Thread t = new Thread(new Runnable() {
+            @Override public void run() { serve(); }
+        }, "Metrics-Server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void stop() {
+        running = false;
+        ServerSocket s = server;
+        if (s != null) try { s.close(); } catch (IOException ignored) {}
+    }
+
+    private void serve() {
+        try (ServerSocket s = new ServerSocket(port, 4, InetAddress.getByName("127.0.0.1"))) {
+            server = s;
+            if (!running) return;
+            StatusLog.get().i(TAG, "Metrics on http://127.0.0.1:" + port + "/metrics");
+            while (running) {
+                // Requests are tiny and rare; answered one at a time on this thread
+                try (Socket c = s.accept()) {
+                    c.setSoTimeout(2000);
+                    handle(c);
+                } catch (IOException e) {
+                    if (running) StatusLog.get().w(TAG, "Request failed: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            if (running) StatusLog.get().e(TAG, "Metrics server on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private static void handle(Socket c) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), UTF8));
+        String request = in.readLine();
+        if (request == null) return;
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) { /* skip headers */ }
+
+        String[] parts = request.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        String query = "";
+        int q = path.indexOf('?');
+        if (q >= 0) {
+            query = path.substring(q + 1);
+            path = path.substring(0, q);
+        }
+
+        String status = "200 OK", type = "text/plain; charset=utf-8", body;
+        if (!parts[0].equals("GET")) {
+            status = "405 Method Not Allowed";
+            body = "GET only\n";
+        } else if (path.equals("/metrics.json")) {
+            type = "application/json";
+            body = Metrics.get().toJson();
+        } else if (path.equals("/trace.json")) {
+            type = "application/json";
+            body = JobTrace.toJson(jobParam(query));
+        } else if (path.equals("/") || path.equals("/metrics")) {
+            body = Metrics.get().toText();
+        } else {
+            status = "404 Not Found";
+            body = "Try /metrics, /metrics.json or /trace.json\n";
+        }
+        byte[] b = body.getBytes(UTF8);
+        OutputStream out = c.getOutputStream();
+        out.write(("HTTP/1.0 " + status + "\r\nContent-Type: " + type + "\r\nContent-Length: " + b.length
+                + "\r\nConnection: close\r\n\r\n").getBytes(UTF8));
+        out.write(b);
+        out.flush();
+    }
+
+    /** The job=N query parameter, or 0 for all jobs. */
+    private static long jobParam(String query) {
+        for (String kv : query.split("&")) {
+            if (!kv.startsWith("job=")) continue;
+            try {
+                return Long.parseLong(kv.substring(4));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+}
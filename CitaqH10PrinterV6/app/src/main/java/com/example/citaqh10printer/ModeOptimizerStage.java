@@ -0,0 +1,254 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Drops ESC/POS commands that would not change anything.
+ *
+ * Drivers re-send the same modes on every line: justification, emphasis,
+ * font, underline, code page, character size, and ESC @ resets right after
+ * one another. The stage tracks what the printer's mode currently is and
+ * drops a select that asks for the mode already in effect. A mode is only
+ * trusted once this stream has set it (or sent ESC @); at the start of each
+ * job everything is unknown again, because other clients' jobs may have been
+ * printed in between.
+ *
+ * Spaces right before LF are dropped while printing left-aligned without
+ * underline or reverse, where they leave no mark. With {@code collapseSpaces}
+ * a run of spaces inside a line becomes ESC \ (relative position) when that is
+ * shorter; this assumes the default motion unit of one dot and 12/9-dot fonts
+ * A/B, and is off while GS P, ESC SP or an unknown font is in effect.
+ */
+public class ModeOptimizerStage extends EscPosStage {
+
+    private static final int UNKNOWN = -1;
+    private static final int SPACING_DEFAULT = 0x100;   // ESC 2
+    /** ESC \ costs 4 bytes; shorter runs stay spaces. */
+    private static final int MIN_COLLAPSE = 5;
+    private static final int FONT_A_DOTS = 12;
+    private static final int FONT_B_DOTS = 9;
+
+    private final boolean collapseSpaces;
+
+    private int align, emphasis, doubleStrike, font, underline, codePage;
+    private int charSize, printMode, reverse, lineSpacing, charSpacing;
+    private boolean defaultMotion;
+    /** Nothing but LF sent since the last ESC @, so another ESC @ would do nothing. */
+    private boolean fresh;
+    private int pendingSpaces;
+
+    private final byte[] spaces = new byte[64];
+    private final byte[] params = new byte[2];
+
+    public ModeOptimizerStage(OutputStream out, boolean collapseSpaces) {
+        super(out);
+        this.collapseSpaces = collapseSpaces;
+        Arrays.fill(spaces, (byte) ' ');
+        forget();
+    }
+
+    @Override protected void onJobBoundary() {
+        forget();
+    }
+
+    @Override public void onText(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int t = end;
+        while (t > off && b[t - 1] == ' ') t--;
+        if (t > off) {
+            writeSpaces();
+            writeText(b, off, t - off);
+            fresh = false;
+        }
+        // Trailing spaces wait: dropped if LF follows
+        pendingSpaces += end - t;
+    }
+
+    @Override public void onControl(int c) throws IOException {
+        if (c == '\n' && pendingSpaces > 0 && spacesInvisible()) {
+            pendingSpaces = 0;
+        } else {
+            writeSpaces();
+        }
+        if (c != '\n') fresh = false;
+        super.onControl(c);
+    }
+
+    @Override public void onCommand(int cmd, byte[] p, int n) throws IOException {
+        int v = n > 0 ? p[0] & 0xFF : 0;
+        switch (cmd) {
+            case EscPosParser.ESC_AT:
+                // ESC @ clears the print buffer, pending spaces included
+                pendingSpaces = 0;
+                if (fresh) return;
+                super.onCommand(cmd, p, n);
+                reset();
+                return;
+            case EscPosParser.ESC_A:
+                v = select012(v);
+                if (v == align && v != UNKNOWN) return;
+                align = v;
+                break;
+            case EscPosParser.ESC_E:
+                if ((v & 1) == emphasis) return;
+                emphasis = v & 1;
+                printMode = UNKNOWN;
+                break;
+            case EscPosParser.ESC_G:
+                if ((v & 1) == doubleStrike) return;
+                doubleStrike = v & 1;
+                break;
+            case EscPosParser.ESC_M:
+                v = select012(v);
+                if (v == font && v != UNKNOWN) return;
+                font = v;
+                printMode = UNKNOWN;
+                break;
+            case EscPosParser.ESC_DASH:
+                v = select012(v);
+                if (v == underline && v != UNKNOWN) return;
+                underline = v;
+                printMode = UNKNOWN;
+                break;
+            case EscPosParser.ESC_T:
+                if (v == codePage) return;
+                codePage = v;
+                break;
+            case EscPosParser.GS_BANG:
+                if (v == charSize) return;
+                charSize = v;
+                printMode = UNKNOWN;  // both set the character size; the last one wins
+                break;
+            case EscPosParser.ESC_BANG:
+                if (v == printMode) return;
+                printMode = v;
+                font = v & 1;
+                emphasis = (v >> 3) & 1;
+                underline = (v & 0x80) != 0 ? 1 : 0;
+                charSize = UNKNOWN;
+                break;
+            case EscPosParser.GS_B:
+                if ((v & 1) == reverse) return;
+                reverse = v & 1;
+                break;
+            case EscPosParser.ESC_2:
+                if (lineSpacing == SPACING_DEFAULT) return;
+                lineSpacing = SPACING_DEFAULT;
+                break;
+            case EscPosParser.ESC_3:
+                if (v == lineSpacing) return;
+                lineSpacing = v;
+                break;
+            case EscPosParser.ESC << 8 | ' ':
+                if (v == charSpacing) return;
+                charSpacing = v;
+                break;
+            case EscPosParser.GS << 8 | 'P':
+                defaultMotion = false;
+                break;
+            default:
+                break;
+        }
+        writeSpaces();
+        fresh = false;
+        super.onCommand(cmd, p, n);
+    }
+
+    @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException {
+        writeSpaces();
+        fresh = false;
+        super.onBlockStart(cmd, p, n, dataLen);
+    }
+
+    @Override protected void writePending() throws IOException {
+        writeSpaces();
+    }
+
+    /** ESC a / ESC M / ESC - take 0..2 or '0'..'2'. */
+    private static int select012(int v) {
+        if (v >= '0' && v <= '2') return v - '0';
+        return v <= 2 ? v : UNKNOWN;
+    }
+
+    /** After ESC @: the documented defaults, except the code page, which comes from the memory switches. */
+    private void reset() {
+        align = emphasis = doubleStrike = font = underline = 0;
+        charSize = printMode = reverse = charSpacing = 0;
+        codePage = UNKNOWN;
+        lineSpacing = SPACING_DEFAULT;
+        defaultMotion = true;
+        fresh = true;
+    }
+
+    private void forget() {
+        align = emphasis = doubleStrike = font = underline = codePage = UNKNOWN;
+        charSize = printMode = reverse = lineSpacing = charSpacing = UNKNOWN;
+        defaultMotion = false;
+        fresh = false;
+    }
+
+    private boolean spacesInvisible() {
+        return align == 0 && underline == 0 && reverse == 0;
+    }
+
+    /** Dots one space advances, or UNKNOWN. */
+    private int spaceDots() {
+        if (!defaultMotion || charSpacing != 0 || font == UNKNOWN || font > 1) return UNKNOWN;
+        int w;
+        if (charSize != UNKNOWN) w = ((charSize >> 4) & 7) + 1;
+        else if (printMode != UNKNOWN) w = (printMode & 0x20) != 0 ? 2 : 1;
+        else return UNKNOWN;
+        return (font == 0 ? FONT_A_DOTS : FONT_B_DOTS) * w;
+    }
+
+    private void writeSpaces() throws IOException {
+        int n = pendingSpaces;
+        if (n == 0) return;
+        pendingSpaces = 0;
+        writeSpaceRun(n);
+    }
+
+    private void writeSpaceRun(int n) throws IOException {
+        if (collapseSpaces && n >= MIN_COLLAPSE && spacesInvisible()) {
+            int dots = spaceDots();
+            if (dots != UNKNOWN && (long) n * dots <= 0xFFFF) {
+                int d = n * dots;
+                params[0] = (byte) d;
+                params[1] = (byte) (d >> 8);
+                emitHeader(EscPosParser.ESC_BACKSLASH, params, 2);
+                return;
+            }
+        }
+        while (n > 0) {
+            int k = Math.min(n, spaces.length);
+            emit(spaces, 0, k);
+            n -= k;
+        }
+    }
+
+    private void writeText(byte[] b, int off, int len) throws IOException {
+        if (!collapseSpaces) {
+            emit(b, off, len);
+            return;
+        }
+        int end = off + len;
+        int start = off;
+        int i = off;
+        while (i < end) {
+            if (b[i] != ' ') {
+                i++;
+                continue;
+            }
+            int run = i;
+            while (i < end && b[i] == ' ') i++;
+            if (i - run >= MIN_COLLAPSE) {
+                emit(b, start, run - start);
+                writeSpaceRun(i - run);
+                start = i;
+            }
+        }
+        emit(b, start, end - start);
+    }
+}
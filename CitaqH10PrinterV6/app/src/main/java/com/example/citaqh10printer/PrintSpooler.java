@@ -0,0 +1,349 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded job queue between network clients and one printer.
+ *
+ * Each client thread receives its whole job into a {@link JobWriter} at network
+ * speed and hands it over with {@link #submit}; a single writer thread drains
+ * the queue into the {@link Sink} in arrival order. Receiving job N+1 therefore
+ * overlaps with printing job N, and clients are released as soon as their job
+ * is queued instead of waiting for the paper.
+ *
+ * Job bytes live in a {@link SpoolStore} on disk, so the queue only holds small
+ * handles. Jobs left in the store by a previous run are printed first on
+ * {@link #start()}.
+ */
+public class PrintSpooler {
+
+    /** What to do with a finished job when the queue is already full. */
+    public enum OverflowPolicy { REJECT, BLOCK }
+
+    /** Printer side of the spooler. Only ever called from the writer thread. */
+    public interface Sink {
+        void print(PrintJob job) throws IOException;
+    }
+
+    /**
+     * Rewrites a job's bytes on the writer thread while it prints, for changes
+     * that depend on the printer's state at that moment (see {@link LogoCacheStage.Sites}).
+     */
+    public interface PrintFilter {
+        SpoolStore.Segments open(SpoolStore.Segments in);
+        /** The job printed (printed = true), or failed and will not be retried this run. */
+        void done(boolean printed);
+    }
+
+    /** Return path for printer responses (status bytes) to the client that sent a job. */
+    public interface ReplyChannel {
+        boolean isOpen();
+        void send(byte[] b, int off, int len);
+    }
+
+    /** {@link ReplyChannel} over the client's TCP socket; closes itself on the first write error. */
+    public static final class SocketReplyChannel implements ReplyChannel {
+        private final Socket socket;
+        private volatile boolean open = true;
+
+        public SocketReplyChannel(Socket socket) { this.socket = socket; }
+
+        @Override public boolean isOpen() {
+            return open && !socket.isClosed() && !socket.isOutputShutdown();
+        }
+
+        @Override public synchronized void send(byte[] b, int off, int len) {
+            if (!isOpen()) return;
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(b, off, len);
+                out.flush();
+            } catch (IOException e) {
+                open = false;
+            }
+        }
+
+        public void close() { open = false; }
+    }
+
+    /** A fully received job, immutable once queued. */
+    public final class PrintJob {
+        public final long id;
+        public final String source;
+        public final long receivedAtMs;
+        public final long length;
+        /** Where printer responses go while this job prints; null for replayed jobs. */
+        public final ReplyChannel reply;
+        /** The job ends with a status query whose client is waiting for the answer. */
+        public final boolean awaitsReply;
+        /** System.nanoTime() when the client's job was started; 0 for replayed jobs. */
+        public final long startedNanos;
+        /** {@link JobTrace} id of the job, 0 when it is not traced. */
+        public final long trace;
+        final long queuedNanos = System.nanoTime();
+        final SpoolStore.Entry entry;
+        /** Not kept in the spool: a job replayed after a restart prints its bytes as received. */
+        final PrintFilter filter;
+
+        PrintJob(SpoolStore.Entry e, ReplyChannel reply, boolean awaitsReply, long startedNanos, long trace,
+                 PrintFilter filter) {
+            this.id = e.id;
+            this.source = e.source;
+            this.receivedAtMs = e.receivedAtMs;
+            this.length = e.length;
+            this.reply = reply;
+            this.awaitsReply = awaitsReply;
+            this.startedNanos = startedNanos;
+            this.trace = trace;
+            this.entry = e;
+            this.filter = filter;
+        }
+
+        /** Sequential access to the job bytes, through its {@link PrintFilter} if any. Close when done. */
+        public SpoolStore.Segments open() throws IOException {
+            SpoolStore.Segments in = store.open(entry);
+            return filter != null ? filter.open(in) : in;
+        }
+    }
+
+    /** Collects one job's bytes into the spool; enforces the per-job size limit. */
+    public final class JobWriter extends OutputStream {
+        private final String source;
+        private final ReplyChannel reply;
+        private final SpoolStore.Appender appender;
+        private final long startedNanos = System.nanoTime();
+        private final byte[] one = new byte[1];
+        private long trace;
+        private PrintFilter filter;
+        private boolean awaitsReply;
+        private boolean handedOver;
+
+        JobWriter(String source, ReplyChannel reply, SpoolStore.Appender appender) {
+            this.source = source;
+            this.reply = reply;
+            this.appender = appender;
+        }
+
+        @Override public void write(int b) throws IOException {
+            one[0] = (byte) b;
+            write(one, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int n) throws IOException {
+            if (appender.length() + n > maxJobBytes) {
+                throw new IOException("Job exceeds " + maxJobBytes + " bytes");
+            }
+            appender.write(b, off, n);
+        }
+
+        public long length() { return appender.length(); }
+
+        /** Tags the job with the client's {@link JobTrace} id so the writer thread traces it too. */
+        public void setTrace(long trace) { this.trace = trace; }
+
+        /** Rewrite the writer thread applies when the job prints; null for none. */
+        public void setFilter(PrintFilter filter) { this.filter = filter; }
+
+        /** The job ends with a status query; the sink keeps the reply channel until it is answered. */
+        public void setAwaitsReply(boolean awaitsReply) { this.awaitsReply = awaitsReply; }
+
+        /** Discards the job unless it was already submitted. */
+        public void abort() {
+            if (!handedOver) appender.abort();
+        }
+    }
+
+    /** How long stop() waits for the writer to finish the job it is printing. */
+    private static final long STOP_WAIT_MS = 2000;
+
+    private final String tag;
+    private final SpoolStore store;
+    private final Sink sink;
+    private final BlockingQueue<PrintJob> queue;
+    private final int maxJobBytes;
+    private final OverflowPolicy policy;
+
+    private Thread writerThread;
+    private volatile boolean running;
+
+    private final Metrics.Counter jobsQueued, jobsRejected, jobsPrinted, jobsFailed, bytesPrinted;
+    private final Metrics.Histogram queueWait, printTime, endToEnd;
+
+    /**
+     * @param metricsPrefix start of this spooler's {@link Metrics} names, e.g. "tcp9100"
+     */
+    public PrintSpooler(String tag, String metricsPrefix, SpoolStore store, int queueDepth, int maxJobBytes,
+                        OverflowPolicy policy, Sink sink) {
+        this.tag = tag;
+        this.store = store;
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+        this.maxJobBytes = Math.max(1, maxJobBytes);
+        this.policy = policy;
+
+        Metrics m = Metrics.get();
+        String p = metricsPrefix + ".";
+        jobsQueued = m.counter(p + "jobs_queued");
+        jobsRejected = m.counter(p + "jobs_rejected");
+        jobsPrinted = m.counter(p + "jobs_printed");
+        jobsFailed = m.counter(p + "jobs_failed");
+        bytesPrinted = m.counter(p + "bytes_printed");
+        queueWait = m.histogram(p + "queue_wait_us");
+        printTime = m.histogram(p + "print_us");
+        endToEnd = m.histogram(p + "job_end_to_end_us");
+        m.gauge(p + "queue_depth", new Metrics.Gauge() {
+            @Override public long value() { return queue.size(); }
+        });
+        m.gauge(p + "spool_bytes", new Metrics.Gauge() {
+            @Override public long value() { return PrintSpooler.this.store.usedBytes(); }
+        });
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        final List<PrintJob> recovered = new ArrayList<>();
+        try {
+            for (SpoolStore.Entry e : store.recover()) recovered.add(new PrintJob(e, null, false, 0, 0, null));
+        } catch (IOException e) {
+            StatusLog.get().e(tag, "Spool recovery failed: " + e.getMessage());
+        }
+        if (!recovered.isEmpty()) {
+            StatusLog.get().i(tag, "Replaying " + recovered.size() + " spooled job(s) from last run");
+        }
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            @Override public void run() { drain(recovered); }
+        }, tag + "-Writer");
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread. Queued jobs stay in the spool for the next start.
+     * The store is closed once the writer has finished the job it was printing,
+     * so a job that completes during shutdown is still marked done.
+     */
+    public synchronized void stop() {
+        running = false;
+        Thread w = writerThread;
+        writerThread = null;
+        if (w != null) {
+            w.interrupt();
+            try {
+                w.join(STOP_WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int left = queue.size();
+        queue.clear();
+        if (w == null) {
+            store.close();
+        } else if (w.isAlive()) {
+            StatusLog.get().w(tag, "Writer still busy after " + STOP_WAIT_MS + " ms; spool closes when it ends");
+        }
+        if (left > 0) StatusLog.get().i(tag, "Spooler stopped, " + left + " job(s) kept on disk");
+    }
+
+    /**
+     * @param reply where the printer's responses to this job should go, or null
+     */
+    public JobWriter newJob(String source, ReplyChannel reply) throws IOException {
+        return new JobWriter(source, reply, store.append());
+    }
+
+    /**
+     * Commit a received job to the spool and queue it for printing.
+     *
+     * @return false if the queue was full and the policy is {@link OverflowPolicy#REJECT}
+     *         (or the job was empty); the job is discarded in that case
+     * @throws InterruptedException if interrupted while blocked on a full queue
+     */
+    public boolean submit(JobWriter w) throws IOException, InterruptedException {
+        if (w.length() == 0) {
+            w.abort();
+            return false;
+        }
+        if (policy == OverflowPolicy.REJECT && queue.remainingCapacity() == 0) {
+            StatusLog.get().w(tag, "Queue full (%d), rejected job from %s", queue.size(), w.source);
+            jobsRejected.inc();
+            w.abort();
+            return false;
+        }
+        w.handedOver = true;
+        SpoolStore.Entry entry = w.appender.commit(w.source, System.currentTimeMillis());
+        JobTrace.spoolJob(w.trace, entry.id);
+        PrintJob job = new PrintJob(entry, w.reply, w.awaitsReply, w.startedNanos, w.trace, w.filter);
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                queue.put(job);
+            } catch (InterruptedException e) {
+                // The client is told the job failed, so it must not print after a restart either
+                store.complete(entry);
+                throw e;
+            }
+        } else if (!queue.offer(job)) {
+            // Lost the race for the last slot; drop it from the spool as well, since the client sees a refusal
+            StatusLog.get().w(tag, "Queue full (%d), rejected job from %s", queue.size(), w.source);
+            jobsRejected.inc();
+            store.complete(entry);
+            return false;
+        }
+        jobsQueued.inc();
+        StatusLog.get().i(tag, "Queued job #%d (%d bytes) from %s, pending=%d, spool=%d KB", job.id, job.length,
+                job.source, queue.size(), store.usedBytes() >> 10);
+        return true;
+    }
+
+    public int pending() { return queue.size(); }
+
+    private void drain(List<PrintJob> recovered) {
+        try {
+            for (PrintJob job : recovered) {
+                if (!running) return;
+                printOne(job);
+            }
+            while (running) {
+                PrintJob job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                printOne(job);
+            }
+        } finally {
+            // Only after the last complete(); stop() may have returned already
+            store.close();
+        }
+    }
+
+    private void printOne(PrintJob job) {
+        long t0 = System.currentTimeMillis();
+        long start = System.nanoTime();
+        queueWait.record((t0 - job.receivedAtMs) * 1000);
+        JobTrace.span(job.trace, JobTrace.QUEUE, job.queuedNanos, start, 0);
+        try {
+            sink.print(job);
+            printTime.recordSince(start);
+            JobTrace.spanSince(job.trace, JobTrace.PRINT, start, job.length);
+            if (job.startedNanos != 0) endToEnd.recordSince(job.startedNanos);
+            if (job.filter != null) job.filter.done(true);
+            jobsPrinted.inc();
+            bytesPrinted.add(job.length);
+            StatusLog.get().i(tag, "Printed job #%d (%d bytes) in %d ms, waited %d ms", job.id, job.length,
+                    System.currentTimeMillis() - t0, t0 - job.receivedAtMs);
+        } catch (Throwable t) {
+            if (job.filter != null) job.filter.done(false);
+            if (!running) return; // interrupted by stop(); keep it for replay
+            jobsFailed.inc();
+            StatusLog.get().e(tag, "Job #%d failed: %s", job.id, t.getMessage());
+        }
+        store.complete(job.entry);
+    }
+}
@@ -8,7 +8,13 @@ import android.graphics.Bitmap;
 public class PrinterEscPos {
 
     public static final Charset ESC_POS_CHARSET = Charset.forName("ISO-8859-1");
-    public enum DitherMode { THRESHOLD, FLOYD_STEINBERG }
+    /**
+     * THRESHOLD: fastest, text and line art. GAMMA_THRESHOLD: threshold after a
+     * lightening tone curve. ORDERED: 8x8 Bayer pattern, fast and even.
+     * FLOYD_STEINBERG: best for photos. ATKINSON: error diffusion that drops a
+     * quarter of the error, crisper on thermal paper. See {@link DitherEngine}.
+     */
+    public enum DitherMode { THRESHOLD, FLOYD_STEINBERG, ORDERED, ATKINSON, GAMMA_THRESHOLD }
 
     public static void initialize(OutputStream os) throws IOException {
         os.write(new byte[]{0x1B, '@'}); // ESC @
@@ -29,14 +35,32 @@ public class PrinterEscPos {
 
     /**
      * Print a monochrome bitmap using ESC/POS raster bit image (GS v 0).
-     * Converts the bitmap to 1-bpp (packed) and sends it to the printer.
+     * Converts the bitmap to 1-bpp (packed) and sends it to the printer, each
+     * {@link #STREAM_ROWS}-row piece as its own GS v 0 command.
      *
      * @param os         printer OutputStream
      * @param bmp        source bitmap (ARGB_8888 recommended)
-     * @param mode       dithering mode (THRESHOLD = fastest, FLOYD_STEINBERG = best quality)
+     * @param mode       dithering mode (THRESHOLD = fastest, FLOYD_STEINBERG = best quality, see {@link DitherMode})
      * @throws IOException if writing fails
      */
     public static void printBitmap(OutputStream os, Bitmap bmp, DitherMode mode) throws IOException {
+        printBitmap(os, bmp, mode, 0);
+    }
+
+    /**
+     * Sends the image as back-to-back GS v 0 bands of {@code bandRows} rows, so
+     * the printer prints one band while it receives the next (see
+     * {@link RasterBandStage#rowsPerBand}). 0 uses one band per
+     * {@link #STREAM_ROWS} rows.
+     *
+     * The bitmap is converted {@link #STREAM_ROWS} rows at a time and each piece
+     * is written as soon as it is ready, so the printer starts on the top of the
+     * image while the rest is still being dithered, and memory use depends on
+     * the width only. Printers that take a whole GS v 0 command before printing
+     * any of it start after the first band, not after the whole image. Error
+     * diffusion is carried from one piece to the next.
+     */
+    public static void printBitmap(OutputStream os, Bitmap bmp, DitherMode mode, int bandRows) throws IOException {
         if (bmp == null || bmp.getWidth() <= 0 || bmp.getHeight() <= 0) return;
 
         final int width = bmp.getWidth();
@@ -46,19 +70,29 @@ public class PrinterEscPos {
         // 1) Center align
         setAlignCenter(os);
 
-        // 2) Convert to packed 1-bpp (leftmost pixel = MSB)
-        byte[] mono = (mode == DitherMode.FLOYD_STEINBERG)
-                ? toMono1bppFloydSteinberg(bmp)
-                : toMono1bppThreshold(bmp);
-
-        // 3) ESC/POS raster header: GS v 0 m xL xH yL yH, with m=0 (normal)
-        int xL = (bytesPerRow) & 0xFF;
-        int xH = (bytesPerRow >> 8) & 0xFF;
-        int yL = (height) & 0xFF;
-        int yH = (height >> 8) & 0xFF;
-
-        os.write(new byte[]{0x1D, 0x76, 0x30, 0x00, (byte) xL, (byte) xH, (byte) yL, (byte) yH});
-        os.write(mono);
+        // 2) ESC/POS raster header per band: GS v 0 m xL xH yL yH, with m=0 (normal)
+        if (bandRows <= 0) bandRows = STREAM_ROWS;
+        bandRows = Math.min(bandRows, 0xFFFF); // yL yH limit
+        final byte[] header = {0x1D, 0x76, 0x30, 0x00,
+                (byte) (bytesPerRow & 0xFF), (byte) ((bytesPerRow >> 8) & 0xFF), 0, 0};
+
+        // 3) Convert to packed 1-bpp (leftmost pixel = MSB) a piece at a time
+        final DitherEngine dither = new DitherEngine(width, DitherEngine.Mode.valueOf(mode.name()));
+        final BitmapSource src = new BitmapSource(bmp);
+        final byte[] piece = new byte[bytesPerRow * Math.min(STREAM_ROWS, height)];
+
+        for (int y = 0; y < height; ) {
+            int rows = Math.min(bandRows, height - y);
+            header[6] = (byte) (rows & 0xFF);
+            header[7] = (byte) ((rows >> 8) & 0xFF);
+            os.write(header);
+            for (int end = y + rows; y < end; ) {
+                int n = Math.min(STREAM_ROWS, end - y);
+                dither.convert(src, y, n, piece, 0);
+                os.write(piece, 0, n * bytesPerRow);
+                y += n;
+            }
+        }
     }
 
     /** Convenience overload: default to THRESHOLD (fast). */
@@ -66,110 +100,32 @@ public class PrinterEscPos {
         printBitmap(os, bmp, DitherMode.THRESHOLD);
     }
 
-    /** Global threshold to 1-bpp (fast). Packed 8 px per byte, MSB first. */
-    private static byte[] toMono1bppThreshold(Bitmap src) {
-        final int w = src.getWidth();
-        final int h = src.getHeight();
-        final int bytesPerRow = (w + 7) / 8;
-        final byte[] out = new byte[bytesPerRow * h];
-
-        final int[] row = new int[w];
-        for (int y = 0; y < h; y++) {
-            src.getPixels(row, 0, w, 0, y, w, 1);
-            int byteIndex = y * bytesPerRow;
-            int bit = 7;
-            int acc = 0;
-            for (int x = 0; x < w; x++) {
-                final int p = row[x];
-                final int r = (p >> 16) & 0xFF;
-                final int g = (p >> 8)  & 0xFF;
-                final int b = (p)       & 0xFF;
-                // Luma BT.601
-                final int y8 = (int)(0.299 * r + 0.587 * g + 0.114 * b);
-                final boolean black = (y8 < 128);
-                if (black) acc |= (1 << bit);
-                bit--;
-                if (bit < 0) { out[byteIndex++] = (byte) acc; bit = 7; acc = 0; }
-            }
-            if (bit != 7) out[byteIndex] = (byte) acc;
+    /** Rows converted and written at a time by printBitmap; enough for the engine to use all cores. */
+    private static final int STREAM_ROWS = 64;
+
+    /** Bitmap rows for {@link DitherEngine}, fetched with one getPixels call per piece. */
+    static final class BitmapSource implements DitherEngine.PixelSource {
+        private final Bitmap bmp;
+
+        BitmapSource(Bitmap bmp) {
+            this.bmp = bmp;
         }
-        return out;
-    }
 
-    /** Floyd–Steinberg error diffusion to 1-bpp (quality). Packed 8 px per byte, MSB first. */
-    private static byte[] toMono1bppFloydSteinberg(Bitmap src) {
-        final int w = src.getWidth();
-        final int h = src.getHeight();
-        final int bytesPerRow = (w + 7) / 8;
-        final byte[] out = new byte[bytesPerRow * h];
-
-        final int[] argbRow = new int[w];
-        final int[] cur = new int[w];   // current row (luma + error)
-        final int[] nxt = new int[w];   // next row error
-
-        for (int y = 0; y < h; y++) {
-            // Load ARGB and compute luma + carry error from previous step
-            src.getPixels(argbRow, 0, w, 0, y, w, 1);
-            for (int x = 0; x < w; x++) {
-                final int p = argbRow[x];
-                final int r = (p >> 16) & 0xFF;
-                final int g = (p >> 8)  & 0xFF;
-                final int b = (p)       & 0xFF;
-                cur[x] = (int)(0.299 * r + 0.587 * g + 0.114 * b) + cur[x]; // add carried error
-            }
+        @Override public int width() { return bmp.getWidth(); }
 
-            int bit = 7;
-            int acc = 0;
-            int byteIndex = y * bytesPerRow;
-
-            for (int x = 0; x < w; x++) {
-                int old = cur[x];
-                if (old < 0) old = 0; else if (old > 255) old = 255;
-                final int newPix = (old < 128) ? 0 : 255;
-                final int err = old - newPix;
-
-                if (newPix == 0) acc |= (1 << bit); // black=1
-                bit--;
-                if (bit < 0) { out[byteIndex++] = (byte) acc; bit = 7; acc = 0; }
-
-                // propagate error (classic FS: 7/16, 3/16, 5/16, 1/16)
-                if (x + 1 < w)    cur[x + 1] += (err * 7) / 16;
-                if (y + 1 < h) {
-                    if (x > 0)    nxt[x - 1] += (err * 3) / 16;
-                    nxt[x]        += (err * 5) / 16;
-                    if (x + 1 < w) nxt[x + 1] += (err * 1) / 16;
-                }
-            }
-            if (bit != 7) out[byteIndex] = (byte) acc;
+        @Override public int height() { return bmp.getHeight(); }
 
-            // Move next-row errors down and clear
-            java.util.Arrays.fill(cur, 0);
-            System.arraycopy(nxt, 0, cur, 0, w);
-            java.util.Arrays.fill(nxt, 0);
+        @Override public void getRows(int[] dst, int y, int rows) {
+            int w = bmp.getWidth();
+            bmp.getPixels(dst, 0, w, 0, y, w, rows);
         }
-        return out;
     }
 
     /**
      * ESC/POS QR Code (Model 2). size: 1..16; ecc: 48=L,49=M,50=Q,51=H
      */
     public static void printQr(OutputStream os, String data, int size, int ecc) throws IOException {
-        byte[] bytes = data.getBytes(ESC_POS_CHARSET);
-        // Select model 2
-        os.write(new byte[]{0x1D, 0x28, 0x6B, 0x04, 0x00, 0x31, 0x41, 0x32, 0x00});
-        // Module size
-        if (size < 1) size = 6; if (size > 16) size = 16;
-        os.write(new byte[]{0x1D, 0x28, 0x6B, 0x03, 0x00, 0x31, 0x43, (byte) size});
-        // ECC level
-        if (ecc < 48 || ecc > 51) ecc = 51;
-        os.write(new byte[]{0x1D, 0x28, 0x6B, 0x03, 0x00, 0x31, 0x45, (byte) ecc});
-        // Store data
-        int len = bytes.length + 3;
-        byte pL = (byte) (len & 0xFF);
-        byte pH = (byte) ((len >> 8) & 0xFF);
-        os.write(new byte[]{0x1D, 0x28, 0x6B, pL, pH, 0x31, 0x50, 0x30});
-        os.write(bytes);
-        // Print
-        os.write(new byte[]{0x1D, 0x28, 0x6B, 0x03, 0x00, 0x31, 0x51, 0x30});
+        // Model 2, module size, ECC level, store data, print: one write
+        new EscPosBuilder(48 + data.length()).qr(data, size, ecc).writeTo(os);
     }
 }
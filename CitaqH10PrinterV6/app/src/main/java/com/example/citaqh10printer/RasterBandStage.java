@@ -0,0 +1,94 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Cuts tall GS v 0 images into back-to-back bands of a few rows.
+ *
+ * A single GS v 0 with the full image height makes the printer buffer a large
+ * part of the image before the head moves, and can overrun its receive buffer.
+ * Bands of at most half the receive buffer let it print band k while band k+1
+ * arrives, so the head keeps moving. Splitting is done on the fly: a new
+ * header is written every N rows and the data passes straight through.
+ */
+public class RasterBandStage extends EscPosStage {
+
+    private final int bandRows;
+    private final int bufferBytes;
+
+    private boolean splitting;
+    private final byte[] params = new byte[6];
+    private int xBytes;
+    private int rowsLeft;      // image rows not yet given a header
+    private int rowsPerBand;
+    private long bandLeft;     // data bytes left in the current band
+
+    /**
+     * @param bandRows    rows per band, or 0 to derive it from {@code bufferBytes}
+     * @param bufferBytes printer receive buffer size
+     */
+    public RasterBandStage(OutputStream out, int bandRows, int bufferBytes) {
+        super(out);
+        this.bandRows = bandRows;
+        this.bufferBytes = bufferBytes;
+    }
+
+    /**
+     * Rows per band for an image {@code xBytes} wide: {@code bandRows} if set,
+     * otherwise as many rows as fit in half the printer's receive buffer.
+     */
+    public static int rowsPerBand(int xBytes, int bandRows, int bufferBytes) {
+        if (bandRows > 0) return bandRows;
+        return Math.max(1, bufferBytes / 2 / Math.max(1, xBytes));
+    }
+
+    @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException {
+        if (cmd != EscPosParser.GS_V || dataLen <= 0) {
+            super.onBlockStart(cmd, p, n, dataLen);
+            return;
+        }
+        xBytes = EscPosParser.u16(p, 2);
+        rowsLeft = EscPosParser.u16(p, 4);
+        rowsPerBand = rowsPerBand(xBytes, bandRows, bufferBytes);
+        if (rowsLeft <= rowsPerBand) {
+            super.onBlockStart(cmd, p, n, dataLen);
+            return;
+        }
+        splitting = true;
+        System.arraycopy(p, 0, params, 0, 6);
+        startBand();
+    }
+
+    @Override public void onBlockData(byte[] b, int off, int len) throws IOException {
+        if (!splitting) {
+            super.onBlockData(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (bandLeft == 0) startBand();
+            int k = (int) Math.min(len, bandLeft);
+            emit(b, off, k);
+            bandLeft -= k;
+            off += k;
+            len -= k;
+        }
+    }
+
+    @Override public void onBlockEnd(int cmd) throws IOException {
+        if (!splitting) {
+            super.onBlockEnd(cmd);
+            return;
+        }
+        splitting = false;
+    }
+
+    private void startBand() throws IOException {
+        int rows = Math.min(rowsPerBand, rowsLeft);
+        params[4] = (byte) rows;
+        params[5] = (byte) (rows >> 8);
+        emitHeader(EscPosParser.GS_V, params, 6);
+        rowsLeft -= rows;
+        bandLeft = (long) rows * xBytes;
+    }
+}
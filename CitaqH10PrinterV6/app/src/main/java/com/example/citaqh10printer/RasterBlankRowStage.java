@@ -0,0 +1,198 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Turns the white rows of GS v 0 images into paper feeds.
+ *
+ * Drivers that rasterize a whole receipt send every blank line and margin as
+ * rows of zeros, xBytes each (72 at 576 dots). The image is cut into bands of
+ * printed rows; each run of blank rows between them becomes ESC J n, which
+ * advances the paper the same distance for three bytes. Runs shorter than a
+ * new band header plus the feed are cheaper as data and stay in the band.
+ *
+ * With {@code trimRight}, columns blank in every row of a band are dropped
+ * from its right edge. That is only done while justification is left
+ * (ESC a 0): a narrower centred or right-aligned image would move.
+ *
+ * ESC J counts vertical motion units, which on the H10 default to one dot of
+ * the 203 dpi head; a driver that changes them with GS P would see different
+ * spacing, so leave the stage off for such clients.
+ */
+public class RasterBlankRowStage extends EscPosStage {
+
+    /** Largest band sent as one GS v 0; also bounds the memory held per client. */
+    private static final int BAND_BYTES = 32 * 1024;
+    /** Bytes a split costs: a new GS v 0 header and an ESC J. */
+    private static final int SPLIT_COST = 8 + 3;
+
+    private final boolean skipBlank;
+    private final boolean trimRight;
+    private int align = -1;      // unknown until ESC a / ESC @
+
+    private boolean inRaster;
+    private int mode;
+    private int xBytes;
+    private int rowDots;     // paper dots per image row; 2 in the double-height modes
+    private byte[] row = new byte[0];
+    private int rowFill;
+    private byte[] band = new byte[0];
+    private int bandRows;
+    private int maxBandRows;
+    private int blankRun;
+    private final byte[] params = new byte[6];
+    private final byte[] feed = {EscPosParser.ESC, 'J', 0};
+    private long rowsSkipped;
+
+    public RasterBlankRowStage(OutputStream out, boolean skipBlank, boolean trimRight) {
+        super(out);
+        this.skipBlank = skipBlank;
+        this.trimRight = trimRight;
+    }
+
+    @Override protected void onJobBoundary() {
+        align = -1;
+    }
+
+    /** Blank rows replaced by feeds so far. */
+    public long rowsSkipped() { return rowsSkipped; }
+
+    @Override public void onCommand(int cmd, byte[] p, int n) throws IOException {
+        if (cmd == EscPosParser.ESC_AT) {
+            align = 0;
+        } else if (cmd == EscPosParser.ESC_A && n == 1) {
+            int v = p[0] & 0xFF;
+            align = v >= '0' ? v - '0' : v;
+        }
+        super.onCommand(cmd, p, n);
+    }
+
+    @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException {
+        if (cmd != EscPosParser.GS_V || dataLen <= 0) {
+            super.onBlockStart(cmd, p, n, dataLen);
+            return;
+        }
+        inRaster = true;
+        mode = p[1] & 0xFF;
+        xBytes = EscPosParser.u16(p, 2);
+        rowDots = (mode & 2) != 0 ? 2 : 1;
+        maxBandRows = Math.max(1, BAND_BYTES / xBytes);
+        if (row.length < xBytes) row = new byte[xBytes];
+        if (band.length < maxBandRows * xBytes) band = new byte[maxBandRows * xBytes];
+        rowFill = 0;
+        bandRows = 0;
+        blankRun = 0;
+    }
+
+    @Override public void onBlockData(byte[] b, int off, int len) throws IOException {
+        if (!inRaster) {
+            super.onBlockData(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int k = Math.min(len, xBytes - rowFill);
+            System.arraycopy(b, off, row, rowFill, k);
+            rowFill += k;
+            off += k;
+            len -= k;
+            if (rowFill == xBytes) {
+                endRow();
+                rowFill = 0;
+            }
+        }
+    }
+
+    @Override public void onBlockEnd(int cmd) throws IOException {
+        if (!inRaster) {
+            super.onBlockEnd(cmd);
+            return;
+        }
+        // A partial last row only happens on a truncated stream; it is dropped
+        writeBand();
+        writeFeed();
+        inRaster = false;
+    }
+
+    @Override protected void writePending() throws IOException {
+        if (inRaster) {
+            writeBand();
+            writeFeed();
+        }
+    }
+
+    private void endRow() throws IOException {
+        if (skipBlank && isBlank(row, xBytes)) {
+            blankRun++;
+            return;
+        }
+        if (blankRun > 0) {
+            if (bandRows > 0 && (long) blankRun * xBytes <= SPLIT_COST && bandRows + blankRun < maxBandRows) {
+                Arrays.fill(band, bandRows * xBytes, (bandRows + blankRun) * xBytes, (byte) 0);
+                bandRows += blankRun;
+                blankRun = 0;
+            } else {
+                writeBand();
+                writeFeed();
+            }
+        }
+        if (bandRows == maxBandRows) writeBand();
+        System.arraycopy(row, 0, band, bandRows * xBytes, xBytes);
+        bandRows++;
+    }
+
+    private void writeBand() throws IOException {
+        if (bandRows == 0) return;
+        int w = xBytes;
+        if (trimRight && align == 0) {
+            w = usedWidth();
+            for (int r = 1; r < bandRows; r++) {
+                System.arraycopy(band, r * xBytes, band, r * w, w);
+            }
+        }
+        params[0] = '0';
+        params[1] = (byte) mode;
+        params[2] = (byte) w;
+        params[3] = (byte) (w >> 8);
+        params[4] = (byte) bandRows;
+        params[5] = (byte) (bandRows >> 8);
+        emitHeader(EscPosParser.GS_V, params, 6);
+        emit(band, 0, w * bandRows);
+        bandRows = 0;
+    }
+
+    private void writeFeed() throws IOException {
+        int dots = blankRun * rowDots;
+        rowsSkipped += blankRun;
+        blankRun = 0;
+        while (dots > 0) {
+            int n = Math.min(255, dots);
+            feed[2] = (byte) n;
+            emit(feed, 0, 3);
+            dots -= n;
+        }
+    }
+
+    /** Bytes up to and including the rightmost non-zero byte of any band row. */
+    private int usedWidth() {
+        int w = 1;
+        for (int r = 0; r < bandRows && w < xBytes; r++) {
+            int base = r * xBytes;
+            for (int c = xBytes - 1; c >= w; c--) {
+                if (band[base + c] != 0) {
+                    w = c + 1;
+                    break;
+                }
+            }
+        }
+        return w;
+    }
+
+    private static boolean isBlank(byte[] b, int len) {
+        for (int i = 0; i < len; i++) {
+            if (b[i] != 0) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Shrinks GS v 0 images wider than the print head to the paper width.
+ *
+ * The printer clips or rejects a raster wider than its head, so an image of
+ * more than {@code maxDots} printed dots is scaled down by maxDots/width in
+ * both directions. The output header is computed from the input header and
+ * written straight away; rows are then produced as the input arrives, so only
+ * one input row and one output row of state are held, however tall the image.
+ *
+ * Scaling is an area average in integer arithmetic: every input dot adds its
+ * overlap with each output dot (at most 2 x 2 of them, since the scale is
+ * below 1) in 1/256ths per axis. Each finished output row is turned back into
+ * dots by Floyd-Steinberg error diffusion, which keeps the grey level of
+ * dithered photos and logos instead of letting them fill in or drop out.
+ */
+public class RasterScaleStage extends EscPosStage {
+
+    private final int maxDots;
+
+    private boolean scaling;
+    private int srcW;          // input dots per row
+    private int dstW;          // output dots per row
+    private int srcXBytes;
+    private int dstXBytes;
+    private int dstRows;
+    private int srcY;          // input rows consumed
+    private int dstY;          // output rows written
+
+    // Per input column: the output column it starts in and its weight there
+    // (1/256ths); the rest of its weight goes to the next column
+    private int[] colOut = new int[0];
+    private int[] colW = new int[0];
+    private int[] colW2 = new int[0];
+
+    private byte[] row = new byte[0];
+    private int rowFill;
+    private int[] acc = new int[0];   // ink of the output row being built
+    private int rowWeight;            // vertical coverage of that row so far, 1/256ths
+    private int[] err = new int[0];   // diffusion error for the current and next row
+    private int[] errNext = new int[0];
+    private byte[] dst = new byte[0];
+    private final byte[] params = new byte[6];
+
+    /** @param maxDots printable width, e.g. the paper_width setting (576 on 80 mm) */
+    public RasterScaleStage(OutputStream out, int maxDots) {
+        super(out);
+        this.maxDots = maxDots;
+    }
+
+    @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) throws IOException {
+        if (cmd != EscPosParser.GS_V || dataLen <= 0) {
+            super.onBlockStart(cmd, p, n, dataLen);
+            return;
+        }
+        int mode = p[1] & 0xFF;
+        int xBytes = EscPosParser.u16(p, 2);
+        int rows = EscPosParser.u16(p, 4);
+        // Double-width modes print every dot twice
+        int limit = (mode & 1) != 0 ? maxDots / 2 : maxDots;
+        if (xBytes * 8 <= limit || limit < 8) {
+            super.onBlockStart(cmd, p, n, dataLen);
+            return;
+        }
+        scaling = true;
+        srcXBytes = xBytes;
+        srcW = xBytes * 8;
+        dstW = limit;
+        dstXBytes = (dstW + 7) / 8;
+        dstRows = (int) (((long) rows * dstW + srcW - 1) / srcW);
+        srcY = 0;
+        dstY = 0;
+        rowFill = 0;
+        setUpColumns();
+
+        params[0] = '0';
+        params[1] = (byte) mode;
+        params[2] = (byte) dstXBytes;
+        params[3] = (byte) (dstXBytes >> 8);
+        params[4] = (byte) dstRows;
+        params[5] = (byte) (dstRows >> 8);
+        emitHeader(EscPosParser.GS_V, params, 6);
+    }
+
+    @Override public void onBlockData(byte[] b, int off, int len) throws IOException {
+        if (!scaling) {
+            super.onBlockData(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int k = Math.min(len, srcXBytes - rowFill);
+            System.arraycopy(b, off, row, rowFill, k);
+            rowFill += k;
+            off += k;
+            len -= k;
+            if (rowFill == srcXBytes) {
+                addRow();
+                rowFill = 0;
+            }
+        }
+    }
+
+    @Override public void onBlockEnd(int cmd) throws IOException {
+        if (!scaling) {
+            super.onBlockEnd(cmd);
+            return;
+        }
+        if (rowWeight > 0) writeRow();
+        // Keep the byte count promised by the header even if the input was cut short
+        while (dstY < dstRows) {
+            Arrays.fill(dst, 0, dstXBytes, (byte) 0);
+            emit(dst, 0, dstXBytes);
+            dstY++;
+        }
+        scaling = false;
+    }
+
+    private void setUpColumns() {
+        if (colOut.length < srcW) {
+            colOut = new int[srcW];
+            colW = new int[srcW];
+            colW2 = new int[srcW];
+        }
+        // Input column x covers [x*dstW, (x+1)*dstW) in units of 1/srcW output dots
+        for (int x = 0; x < srcW; x++) {
+            long start = (long) x * dstW;
+            int ox = (int) (start / srcW);
+            long boundary = (long) (ox + 1) * srcW;
+            long first = Math.min(dstW, boundary - start);
+            colOut[x] = ox;
+            colW[x] = (int) (first * 256 / srcW);
+            colW2[x] = (int) ((dstW - first) * 256 / srcW);
+        }
+        if (row.length < srcXBytes) row = new byte[srcXBytes];
+        if (acc.length < dstW + 1) {
+            acc = new int[dstW + 1];
+            err = new int[dstW + 2];
+            errNext = new int[dstW + 2];
+        }
+        if (dst.length < dstXBytes) dst = new byte[dstXBytes];
+        Arrays.fill(acc, 0);
+        Arrays.fill(err, 0);
+        Arrays.fill(errNext, 0);
+        rowWeight = 0;
+    }
+
+    private void addRow() throws IOException {
+        long start = (long) srcY * dstW;
+        long boundary = (start / srcW + 1) * srcW;
+        long first = Math.min(dstW, boundary - start);
+        int w1 = (int) (first * 256 / srcW);
+        int w2 = (int) ((dstW - first) * 256 / srcW);
+        srcY++;
+
+        accumulate(w1);
+        rowWeight += w1;
+        if (w2 > 0 || start + dstW == boundary) {
+            writeRow();
+            if (w2 > 0) {
+                accumulate(w2);
+                rowWeight += w2;
+            }
+        }
+    }
+
+    private void accumulate(int wy) {
+        if (wy == 0) return;
+        for (int i = 0; i < srcXBytes; i++) {
+            int v = row[i] & 0xFF;
+            if (v == 0) continue;
+            int x = i * 8;
+            for (int bit = 0x80; bit != 0; bit >>= 1, x++) {
+                if ((v & bit) == 0) continue;
+                int ox = colOut[x];
+                acc[ox] += colW[x] * wy;
+                acc[ox + 1] += colW2[x] * wy;
+            }
+        }
+    }
+
+    /** Diffuses the accumulated row to dots and sends it. */
+    private void writeRow() throws IOException {
+        if (dstY < dstRows) diffuseRow();
+        Arrays.fill(acc, 0);
+        rowWeight = 0;
+    }
+
+    private void diffuseRow() throws IOException {
+        long full = Math.max(1L, (long) rowWeight * 256);
+        Arrays.fill(dst, 0, dstXBytes, (byte) 0);
+        for (int x = 0; x < dstW; x++) {
+            // Ink level 0..255 plus the error pushed here from the left and above
+            int v = (int) (acc[x] * 255L / full) + err[x + 1];
+            int e;
+            if (v >= 128) {
+                dst[x >> 3] |= (byte) (0x80 >> (x & 7));
+                e = v - 255;
+            } else {
+                e = v;
+            }
+            err[x + 2] += e * 7 / 16;
+            errNext[x] += e * 3 / 16;
+            errNext[x + 1] += e * 5 / 16;
+            errNext[x + 2] += e / 16;
+        }
+        emit(dst, 0, dstXBytes);
+        dstY++;
+
+        int[] t = err;
+        err = errNext;
+        errNext = t;
+        Arrays.fill(errNext, 0);
+    }
+}
@@ -3,27 +3,37 @@ package com.example.citaqh10printer;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
 import android.net.wifi.WifiManager;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
-import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Raw9100ShareService extends Service {
     private static final String TAG = "Raw9100Share";
     private static final String DEFAULT_PATH = "/dev/ttyS1";
     private static final int DEFAULT_BAUD = 115200;
-
-    private Thread serverThread;
-    private final AtomicBoolean running = new AtomicBoolean(false);
+    private static final int DEFAULT_IDLE_SEC = 30;
+    private static final int DEFAULT_INFLIGHT_BYTES = 4096;
+
+    private static final int DEFAULT_QUEUE_DEPTH = 16;
+    private static final int DEFAULT_MAX_JOB_KB = 1024;
+    private static final int DEFAULT_SPOOL_MB = 64;
+    private static final int SPOOL_SEGMENT_BYTES = 256 * 1024;
+    private static final int DEFAULT_NV_CAPACITY_KB = 64;
+    private static final int DEFAULT_LOGO_THRESHOLD = 3;
+    private static final int DEFAULT_CAPTURE_MB = 32;
+    private static final int DEFAULT_METRICS_PORT = 9180;
+
+    private RawJobServer server;
+    private PrintSpooler spooler;
+    private LogoCache logoCache;
+    private JobCapture capture;
+    private int metricsPort;
 
     // NSD / mDNS
     private NsdManager nsdManager;
@@ -34,13 +44,50 @@ public class Raw9100ShareService extends Service {
     public void onCreate() {
         super.onCreate();
 
-        final int port = PreferenceManager.getDefaultSharedPreferences(this)
-                .getInt("share_port", 9100);
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final int port = prefs.getInt("share_port", 9100);
+
+        // Spooler: clients hand over whole jobs, one writer thread feeds the serial port
+        try {
+            SpoolStore store = new SpoolStore(new File(getFilesDir(), "spool-serial"),
+                    SPOOL_SEGMENT_BYTES, prefs.getInt("spool_max_mb", DEFAULT_SPOOL_MB) * 1024L * 1024L);
+            spooler = new PrintSpooler(TAG, "tcp" + port, store,
+                    prefs.getInt("spool_queue_depth", DEFAULT_QUEUE_DEPTH),
+                    prefs.getInt("spool_max_job_kb", DEFAULT_MAX_JOB_KB) * 1024,
+                    prefs.getBoolean("spool_block_when_full", false)
+                            ? PrintSpooler.OverflowPolicy.BLOCK : PrintSpooler.OverflowPolicy.REJECT,
+                    new SerialPrintSink(TAG, new PrefsSerialSettings()));
+            spooler.start();
+        } catch (IOException e) {
+            StatusLog.get().e(TAG, "Spool unavailable: " + e.getMessage());
+        }
+
+        logoCache = new LogoCache(new File(getFilesDir(), "nv-logos-serial.dat"),
+                prefs.getInt("nv_capacity_kb", DEFAULT_NV_CAPACITY_KB) * 1024L,
+                prefs.getInt("nv_logo_threshold", DEFAULT_LOGO_THRESHOLD));
+
+        capture = new JobCapture(TAG, SettingsActivity.captureDir(this), "tcp" + port,
+                prefs.getInt("capture_max_mb", DEFAULT_CAPTURE_MB) * 1024L * 1024L);
 
         // Start server loop
-        running.set(true);
-        serverThread = new Thread(new ServerRunnable(port), "Raw9100-Server");
-        serverThread.start();
+        server = new RawJobServer(TAG, "Raw9100", port, spooler, new RawJobServer.Config() {
+            @Override public EscPosPipeline.Options rewriteOptions() {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(Raw9100ShareService.this);
+                EscPosPipeline.Options opts = SettingsActivity.rewriteOptions(prefs, "serial");
+                if (prefs.getBoolean("rw_serial_logo_cache", false)) opts.logos = logoCache;
+                return opts;
+            }
+
+            @Override public JobCapture capture() {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(Raw9100ShareService.this);
+                return prefs.getBoolean("capture_enabled", false) ? capture : null;
+            }
+        });
+        server.start();
+
+        metricsPort = prefs.getInt("metrics_port", DEFAULT_METRICS_PORT);
+        MetricsServer.retain(metricsPort);
+        JobTrace.setSampleEvery(prefs.getInt("trace_sample_every", 0));
 
         // Acquire MulticastLock (helps NSD/mDNS on many Wi‑Fi stacks)
         try {
@@ -82,62 +129,23 @@ public class Raw9100ShareService extends Service {
         }
     }
 
-    /** Return a hex preview of the first up-to-`max` bytes from buffer. */
-    private static String hexHead(byte[] b, int len, int max) {
-        int n = Math.min(len, max);
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < n; i++) {
-            sb.append(String.format("%02X ", b[i] & 0xFF));
+    @Override
+    public void onDestroy() {
+        if (server != null) {
+            server.stop();
+            server = null;
         }
-        return sb.toString().trim();
-    }
-
-    /** Return index of a pattern in b[0..len), or -1 if not found. */
-    private static int indexOf(byte[] b, int len, byte[] pat) {
-        outer: for (int i = 0; i <= len - pat.length; i++) {
-            for (int j = 0; j < pat.length; j++) {
-                if (b[i + j] != pat[j]) continue outer;
-            }
-            return i;
+        if (spooler != null) {
+            spooler.stop();
+            spooler = null;
         }
-        return -1;
-    }
-
-    /** Quick detector: GS v 0 vs ESC * vs QR GS ( k. */
-    private static String detectCmd(byte[] buf, int n) {
-        int gsV0 = indexOf(buf, n, new byte[]{0x1D, 0x76, 0x30});  // GS v 0
-        int start = 33; // you reported GS_v0@33
-        if (buf.length >= start + 8) {
-            int m   = buf[start + 3] & 0xFF;
-            int xL  = buf[start + 4] & 0xFF;
-            int xH  = buf[start + 5] & 0xFF;
-            int yL  = buf[start + 6] & 0xFF;
-            int yH  = buf[start + 7] & 0xFF;
-
-            int xBytes = xL | (xH << 8);
-            int rows   = yL | (yH << 8);
-            int expect = xBytes * rows;
-            StatusLog.get().i(TAG, "GS v0 header: m=" + m +
-                    ", xBytes=" + xBytes + " (width=" + (xBytes*8) + " px)" +
-                    ", rows=" + rows + ", expectedData=" + expect + " bytes");
+        if (capture != null) {
+            capture.close();
+            capture = null;
         }
-        if (gsV0 >= 0) return "GS_v0@" + gsV0;
-
-        int escStar = indexOf(buf, n, new byte[]{0x1B, 0x2A});     // ESC *
-        if (escStar >= 0) return "ESC_*@" + escStar;
-
-        int gsK = indexOf(buf, n, new byte[]{0x1D, 0x28, 0x6B});   // GS ( k (QR/NV variants)
-        if (gsK >= 0) return "GS_(k)@" + gsK;
-
-        return "unknown";
-    }
-
-    @Override
-    public void onDestroy() {
-        running.set(false);
-        if (serverThread != null) {
-            serverThread.interrupt();
-            serverThread = null;
+        if (metricsPort > 0) {
+            MetricsServer.release();
+            metricsPort = 0;
         }
 
         try { if (nsdManager != null && registrationListener != null)
@@ -156,79 +164,27 @@ public class Raw9100ShareService extends Service {
 
     @Override public IBinder onBind(Intent intent) { return null; }
 
-    private class ServerRunnable implements Runnable {
-        private final int port;
-        ServerRunnable(int port) { this.port = port; }
-
-        @Override public void run() {
-            ServerSocket server = null;
-            try {
-                server = new ServerSocket(port);
-                StatusLog.get().i(TAG, "Listening on tcp/" + port + " for raw ESC/POS");
-
-                while (running.get()) {
-                    Socket socket = null;
-                    try {
-                        socket = server.accept(); // one connection handled per thread
-                        handleClient(socket);
-                    } catch (IOException e) {
-                        if (running.get()) Log.w(TAG, "Accept error: " + e.getMessage());
-                    } finally {
-                        if (socket != null) try { socket.close(); } catch (IOException ignored) {}
-                    }
-                }
-            } catch (Throwable t) {
-                Log.e(TAG, "Server error: " + t.getMessage(), t);
-            } finally {
-                if (server != null) try { server.close(); } catch (IOException ignored) {}
-            }
+    /** Serial settings for the writer thread, read from the preferences for every job. */
+    private class PrefsSerialSettings implements SerialPrintSink.Settings {
+        private SharedPreferences prefs() {
+            return PreferenceManager.getDefaultSharedPreferences(Raw9100ShareService.this);
         }
 
-        /**
-         * Bridges the TCP input to the serial printer output.
-         * Simple flow control: open serial per connection; write through; close on EOF.
-         */
-
-        private void handleClient(Socket socket) {
-            StatusLog.get().i(TAG, "===== New client: " + socket.getInetAddress().getHostAddress());
-            String path = PreferenceManager.getDefaultSharedPreferences(Raw9100ShareService.this)
-                    .getString("device_path", DEFAULT_PATH);
-            int baud  = PreferenceManager.getDefaultSharedPreferences(Raw9100ShareService.this)
-                    .getInt("baud_rate", DEFAULT_BAUD);
-
-            SerialPort sp = null;
-            try {
-                sp = new SerialPort(path, baud, 0);
-                BufferedOutputStream printerOut = new BufferedOutputStream(sp.getOutputStream());
-                BufferedInputStream clientIn = new BufferedInputStream(socket.getInputStream());
-
-                byte[] buf = new byte[4096];
-                int n;
-                boolean first = true;
-                int state = 0;
-                int xBytes = 0, rows = 0, expected = 0, got = 0;
-
-                while ((n = clientIn.read(buf)) != -1) {
-
-                    if (first) {
-                        String found = detectCmd(buf, n);
-                        StatusLog.get().i(TAG, "Image command detected: " + found);
-                        StatusLog.get().i(TAG, "Raw data " + hexHead(buf, n, 64));
-                        StatusLog.get().i(TAG, "Wrote " + n + " bytes to serial");
-                        first = false;
-                    }
-
-                    
-
-                    printerOut.write(buf, 0, n);
-                }
-                printerOut.flush();
-            } catch (Throwable t) {
-                StatusLog.get().i(TAG, "Client session error: " + t.getMessage());
-            } finally {
-                try { if (sp != null) sp.close(); } catch (Throwable ignored) {}
-                StatusLog.get().i(TAG, "Client disconnected");
-            }
+        @Override public String devicePath() { return prefs().getString("device_path", DEFAULT_PATH); }
+
+        @Override public int baudRate() { return prefs().getInt("baud_rate", DEFAULT_BAUD); }
+
+        @Override public int flowFlags() {
+            return SerialPort.flowFlags(prefs().getBoolean("flow_rtscts", false),
+                    prefs().getBoolean("flow_xonxoff", false));
+        }
+
+        @Override public long idleTimeoutMs() {
+            return prefs().getInt("serial_idle_sec", DEFAULT_IDLE_SEC) * 1000L;
+        }
+
+        @Override public int inFlightBytes() {
+            return prefs().getInt("serial_inflight_bytes", DEFAULT_INFLIGHT_BYTES);
         }
     }
-}
\ No newline at end of file
+}
@@ -11,20 +11,29 @@ import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Raw9101UsbShareService extends Service {
     private static final String TAG = "Raw9101UsbShare";
     private static final String ACTION_USB_PERMISSION =
             "com.example.citaqh10printer.USB_PERMISSION";
 
-    private Thread serverThread;
-    private final AtomicBoolean running = new AtomicBoolean(false);
+    private static final int DEFAULT_QUEUE_DEPTH = 16;
+    private static final int DEFAULT_MAX_JOB_KB = 1024;
+    private static final int DEFAULT_SPOOL_MB = 64;
+    private static final int SPOOL_SEGMENT_BYTES = 256 * 1024;
+    private static final long REPLY_LINGER_MS = 1000;
+    private static final int DEFAULT_CAPTURE_MB = 32;
+    private static final int DEFAULT_METRICS_PORT = 9180;
+
+    private RawJobServer server;
+    private PrintSpooler spooler;
+    private JobCapture capture;
+    private int metricsPort;
 
     // NSD (Bonjour)
     private NsdManager nsdManager;
@@ -43,12 +52,44 @@ public class Raw9101UsbShareService extends Service {
                 this, 0, new Intent(ACTION_USB_PERMISSION), PendingIntent.FLAG_IMMUTABLE);
         registerReceiver(usbReceiver, new IntentFilter(ACTION_USB_PERMISSION));
 
-        int port = PreferenceManager.getDefaultSharedPreferences(this)
-                .getInt("share_usb_port", 9101);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int port = prefs.getInt("share_usb_port", 9101);
+
+        // Jobs are spooled to disk and sent to the USB printer by one writer thread
+        try {
+            SpoolStore store = new SpoolStore(new File(getFilesDir(), "spool-usb"),
+                    SPOOL_SEGMENT_BYTES, prefs.getInt("spool_max_mb", DEFAULT_SPOOL_MB) * 1024L * 1024L);
+            spooler = new PrintSpooler(TAG, "tcp" + port, store,
+                    prefs.getInt("spool_queue_depth", DEFAULT_QUEUE_DEPTH),
+                    prefs.getInt("spool_max_job_kb", DEFAULT_MAX_JOB_KB) * 1024,
+                    prefs.getBoolean("spool_block_when_full", false)
+                            ? PrintSpooler.OverflowPolicy.BLOCK : PrintSpooler.OverflowPolicy.REJECT,
+                    new UsbSink());
+            spooler.start();
+        } catch (IOException e) {
+            StatusLog.get().e(TAG, "Spool unavailable: " + e.getMessage());
+        }
+
+        capture = new JobCapture(TAG, SettingsActivity.captureDir(this), "tcp" + port,
+                prefs.getInt("capture_max_mb", DEFAULT_CAPTURE_MB) * 1024L * 1024L);
+
+        // Same receive path as the serial share; only the rewrite options and the sink differ
+        server = new RawJobServer(TAG, "RawUSB", port, spooler, new RawJobServer.Config() {
+            @Override public EscPosPipeline.Options rewriteOptions() {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(Raw9101UsbShareService.this);
+                return SettingsActivity.rewriteOptions(prefs, "usb");
+            }
+
+            @Override public JobCapture capture() {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(Raw9101UsbShareService.this);
+                return prefs.getBoolean("capture_enabled", false) ? capture : null;
+            }
+        });
+        server.start();
 
-        running.set(true);
-        serverThread = new Thread(new ServerRunnable(port), "RawUSB-Server");
-        serverThread.start();
+        metricsPort = prefs.getInt("metrics_port", DEFAULT_METRICS_PORT);
+        MetricsServer.retain(metricsPort);
+        JobTrace.setSampleEvery(prefs.getInt("trace_sample_every", 0));
 
         // Multicast lock (mDNS)
         try {
@@ -85,8 +126,10 @@ public class Raw9101UsbShareService extends Service {
     }
 
     @Override public void onDestroy() {
-        running.set(false);
-        if (serverThread != null) { serverThread.interrupt(); serverThread = null; }
+        if (server != null) { server.stop(); server = null; }
+        if (spooler != null) { spooler.stop(); spooler = null; }
+        if (capture != null) { capture.close(); capture = null; }
+        if (metricsPort > 0) { MetricsServer.release(); metricsPort = 0; }
 
         try { if (nsdManager != null && regListener != null)
             nsdManager.unregisterService(regListener); } catch (Throwable ignored) {}
@@ -100,51 +143,90 @@ public class Raw9101UsbShareService extends Service {
 
     @Override public IBinder onBind(Intent intent) { return null; }
 
-    // === TCP server thread ===
-    private class ServerRunnable implements Runnable {
-        private final int port;
-        ServerRunnable(int port) { this.port = port; }
+    // === Writer thread: spool -> USB bulk OUT, bulk IN -> client ===
+    private class UsbSink implements PrintSpooler.Sink {
+        private final byte[] chunk = new byte[16384];
+        private final Metrics.Counter usbBytes = Metrics.get().counter("usb.bytes_written");
+        private final Metrics.Counter usbErrors = Metrics.get().counter("usb.transfer_errors");
+        private final Metrics.Histogram usbTransfer = Metrics.get().histogram("usb.bulk_transfer_us");
 
-        @Override public void run() {
-            try (ServerSocket server = new ServerSocket(port)) {
-                StatusLog.get().i(TAG, "Listening on tcp/" + port + " (USB raw)");
-                while (running.get()) {
-                    try (Socket socket = server.accept()) {
-                        StatusLog.get().i(TAG, "Client " + socket.getInetAddress().getHostAddress());
-                        handleClient(socket);
-                    } catch (Exception ex) {
-                        if (running.get()) StatusLog.get().w(TAG, "Client error: " + ex.getMessage());
+        @Override public void print(PrintSpooler.PrintJob job) throws IOException {
+            // Find a USB Printer-class device (bInterfaceClass == 7)
+            UsbHandle handle = openUsbPrinterOrRequestPermission();
+            if (handle == null) {
+                throw new IOException("USB printer not available or no permission");
+            }
+
+            UsbReplyReader replies = null;
+            if (handle.in != null && job.reply != null) {
+                replies = new UsbReplyReader(handle, job.reply);
+                replies.start();
+            }
+
+            SpoolStore.Segments in = job.open();
+            try {
+                ByteBuffer seg;
+                while ((seg = in.next()) != null) {
+                    while (seg.hasRemaining()) {
+                        int n = Math.min(chunk.length, seg.remaining());
+                        seg.get(chunk, 0, n);
+                        // Write to the USB printer bulk OUT endpoint
+                        long t = System.nanoTime();
+                        int wrote = handle.conn.bulkTransfer(handle.out, chunk, n, 10_000);
+                        usbTransfer.recordSince(t);
+                        JobTrace.spanSince(job.trace, JobTrace.USB_BULK, t, wrote);
+                        if (wrote < 0) {
+                            usbErrors.inc();
+                            throw new IOException("USB bulkTransfer failed");
+                        }
+                        usbBytes.add(wrote);
+                    }
+                }
+                // No flush() call is needed; bulkTransfer() already sends data to the device.
+
+                // Give the printer time to answer a trailing status query while the client listens
+                if (replies != null) {
+                    long until = System.currentTimeMillis() + REPLY_LINGER_MS;
+                    while (job.reply.isOpen() && System.currentTimeMillis() < until) {
+                        try { Thread.sleep(20); } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
                     }
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Server error: " + e.getMessage(), e);
+            } finally {
+                in.close();
+                if (replies != null) replies.finish();
+                try { handle.conn.releaseInterface(handle.intf); } catch (Throwable ignored) {}
+                try { handle.conn.close(); } catch (Throwable ignored) {}
             }
         }
     }
 
-    // === Bridge TCP -> USB bulk OUT ===
-    private void handleClient(Socket socket) throws Exception {
-        // Find a USB Printer-class device (bInterfaceClass == 7)
-        UsbHandle handle = openUsbPrinterOrRequestPermission();
-        if (handle == null) {
-            StatusLog.get().w(TAG, "USB printer not available or no permission");
-            return;
+    /** Forwards bulk IN data (status replies) to the client while a job prints. */
+    private static class UsbReplyReader extends Thread {
+        private final UsbHandle handle;
+        private final PrintSpooler.ReplyChannel reply;
+        private volatile boolean done;
+
+        UsbReplyReader(UsbHandle handle, PrintSpooler.ReplyChannel reply) {
+            super("RawUSB-Reply");
+            setDaemon(true);
+            this.handle = handle;
+            this.reply = reply;
         }
 
-        try (BufferedInputStream in = new BufferedInputStream(socket.getInputStream())) {
-            byte[] buf = new byte[8192];
-            int n;
-            while ((n = in.read(buf)) != -1) {
-                // Write to the USB printer bulk OUT endpoint
-                int wrote = handle.conn.bulkTransfer(handle.out, buf, n, 10_000);
-                if (wrote < 0) {
-                    throw new Exception("USB bulkTransfer failed");
-                }
+        @Override public void run() {
+            byte[] buf = new byte[Math.max(64, handle.in.getMaxPacketSize())];
+            while (!done && reply.isOpen()) {
+                int n = handle.conn.bulkTransfer(handle.in, buf, buf.length, 100);
+                if (n > 0) reply.send(buf, 0, n);
             }
-            // No flush() call is needed; bulkTransfer() already sends data to the device.
-        } finally {
-            try { handle.conn.releaseInterface(handle.intf); } catch (Throwable ignored) {}
-            try { handle.conn.close(); } catch (Throwable ignored) {}
+        }
+
+        void finish() {
+            done = true;
+            try { join(500); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
         }
     }
 
@@ -153,7 +235,7 @@ public class Raw9101UsbShareService extends Service {
         UsbDeviceConnection conn;
         UsbInterface intf;
         UsbEndpoint out;
-        UsbEndpoint in; // optional, not used
+        UsbEndpoint in; // optional; status replies
     }
 
     private UsbHandle openUsbPrinterOrRequestPermission() {
@@ -203,10 +285,10 @@ public class Raw9101UsbShareService extends Service {
                     UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                     if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
                         usbPermissionGranted = true;
-                        StatusLog.get().i(TAG, "USB permission granted for " + device);
+                        StatusLog.get().i(TAG, "USB permission granted for %s", device);
                     } else {
                         usbPermissionGranted = false;
-                        StatusLog.get().w(TAG, "USB permission denied for " + device);
+                        StatusLog.get().w(TAG, "USB permission denied for %s", device);
                     }
                 }
             }
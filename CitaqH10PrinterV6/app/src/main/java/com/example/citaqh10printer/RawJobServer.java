@@ -0,0 +1,292 @@
+package com.example.citaqh10printer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP side of the raw ESC/POS share: accepts clients on one port and receives
+ * each client's job through its {@link EscPosPipeline} into a
+ * {@link PrintSpooler}.
+ *
+ * Plain Java, so both share services ({@link Raw9100ShareService} to serial,
+ * {@link Raw9101UsbShareService} to USB) and the host-side simulator run the
+ * same receive path.
+ */
+public class RawJobServer {
+
+    /** Per-client settings, read when a client connects. */
+    public interface Config {
+        EscPosPipeline.Options rewriteOptions();
+        /** Where to record the client's bytes; null when capture is off. */
+        JobCapture capture();
+    }
+
+    /** A pause this long after a status query means the client is waiting for the answer. */
+    private static final int STATUS_IDLE_MS = 30;
+
+    private final String tag;
+    private final String threadName;
+    private final int port;
+    private final PrintSpooler spooler;
+    private final Config config;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong rewriteSaved = new AtomicLong();
+    private volatile ServerSocket server;
+    private Thread serverThread;
+    private int clientCount;
+
+    private final Metrics.Counter connections, bytesIn, bytesOut;
+    private final Metrics.Histogram firstByte, receiveTime;
+
+    /**
+     * @param threadName prefix for the server and client thread names
+     * @param spooler    where jobs go; null refuses every client (spool unavailable)
+     */
+    public RawJobServer(String tag, String threadName, int port, PrintSpooler spooler, Config config) {
+        this.tag = tag;
+        this.threadName = threadName;
+        this.port = port;
+        this.spooler = spooler;
+        this.config = config;
+
+        Metrics m = Metrics.get();
+        String p = "tcp" + port + ".";
+        connections = m.counter(p + "connections");
+        bytesIn = m.counter(p + "bytes_in");
+        bytesOut = m.counter(p + "bytes_spooled");
+        firstByte = m.histogram(p + "accept_to_first_byte_us");
+        receiveTime = m.histogram(p + "receive_us");
+    }
+
+    public synchronized void start() {
+        if (running.getAndSet(true)) return;
+        serverThread = new Thread(new Runnable() {
+            @Override public void run() { acceptLoop(); }
+        }, threadName + "-Server");
+        serverThread.start();
+    }
+
+    public synchronized void stop() {
+        running.set(false);
+        ServerSocket s = server;
+        if (s != null) try { s.close(); } catch (IOException ignored) {}
+        if (serverThread != null) {
+            serverThread.interrupt();
+            serverThread = null;
+        }
+    }
+
+    /** Bytes the rewrite pipeline has saved since start. */
+    public long rewriteSaved() {
+        return rewriteSaved.get();
+    }
+
+    private void acceptLoop() {
+        ServerSocket s = null;
+        try {
+            s = new ServerSocket(port);
+            server = s;
+            StatusLog.get().i(tag, "Listening on tcp/" + port + " for raw ESC/POS");
+
+            while (running.get()) {
+                try {
+                    final Socket socket = s.accept();
+                    final long acceptedNanos = System.nanoTime();
+                    // Each client is received on its own thread so accept() never waits on printing
+                    new Thread(new Runnable() {
+                        @Override public void run() {
+                            try {
+                                handleClient(socket, acceptedNanos);
+                            } finally {
+                                try { socket.close(); } catch (IOException ignored) {}
+                            }
+                        }
+                    }, threadName + "-Client-" + (++clientCount)).start();
+                } catch (IOException e) {
+                    if (running.get()) StatusLog.get().w(tag, "Accept error: " + e.getMessage());
+                }
+            }
+        } catch (Throwable t) {
+            if (running.get()) StatusLog.get().e(tag, "Server error: " + t.getMessage());
+        } finally {
+            if (s != null) try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Receives one job from the TCP client into the spooler.
+     * The whole job is read at network speed and queued; the client is
+     * released as soon as the job is accepted, not when it has printed.
+     * If the client pauses right after a status query (DLE EOT, GS r, ...)
+     * the bytes so far are queued early and the printer's answer is sent
+     * back on the same socket. The query is recognised by the parser, so the
+     * same bytes inside image data or a GS ( payload never split a job.
+     */
+    private void handleClient(Socket socket, long acceptedNanos) {
+        connections.inc();
+        String client = socket.getInetAddress().getHostAddress();
+        StatusLog.get().i(tag, "===== New client: %s", client);
+        PrintSpooler sp = spooler;
+        if (sp == null) return;
+        // Only clients that can send a job take a sample slot
+        long trace = JobTrace.begin();
+        JobTrace.spanSince(trace, JobTrace.ACCEPT, acceptedNanos, 0);
+
+        PrintSpooler.JobWriter job = null;
+        long eof = 0;
+        PrintSpooler.SocketReplyChannel reply = new PrintSpooler.SocketReplyChannel(socket);
+        JobCapture capture = config.capture();
+        JobCapture.Session recording = capture != null ? capture.open(client, port) : null;
+        try {
+            BufferedInputStream clientIn = new BufferedInputStream(socket.getInputStream());
+            job = sp.newJob(client, reply);
+            job.setTrace(trace);
+            EscPosPipeline rewrite = new EscPosPipeline(config.rewriteOptions());
+            rewrite.setTarget(job);
+
+            byte[] buf = new byte[4096];
+            int n;
+            boolean first = true;
+            CommandSummary summary = new CommandSummary();
+            EscPosParser parser = new EscPosParser(summary);
+            int readTimeout = 0;
+
+            while (true) {
+                long readStart = System.nanoTime();
+                try {
+                    n = clientIn.read(buf);
+                } catch (SocketTimeoutException idle) {
+                    if (summary.statusQuery && parser.isIdle()) {
+                        // Print what we have now so the query reaches the printer and the reply comes back
+                        rewrite.flush();
+                        job.setFilter(rewrite.printFilter());
+                        job.setAwaitsReply(true);
+                        StatusLog.get().i(tag, "Status query pending, queueing %d bytes early", job.length());
+                        long submitStart = System.nanoTime();
+                        boolean queued = sp.submit(job);
+                        JobTrace.spanSince(trace, JobTrace.SUBMIT, submitStart, 0);
+                        if (!queued) {
+                            // The rest of the job would print without its start; end the session
+                            StatusLog.get().w(tag, "Job from %s not queued, closing connection", client);
+                            return;
+                        }
+                        summary.statusQuery = false;
+                        socket.setSoTimeout(0);
+                        readTimeout = 0;
+                        job = sp.newJob(client, reply);
+                        job.setTrace(trace);
+                        rewrite.setTarget(job);
+                    }
+                    continue;
+                }
+                if (n == -1) {
+                    eof = System.nanoTime();
+                    break;
+                }
+                JobTrace.spanSince(trace, JobTrace.READ, readStart, n);
+                if (recording != null) recording.data(buf, 0, n);
+
+                bytesIn.add(n);
+                if (first) {
+                    firstByte.recordSince(acceptedNanos);
+                    JobTrace.spanSince(trace, JobTrace.FIRST_BYTE, acceptedNanos, n);
+                    StatusLog.get().i(tag, "Raw data %s", StatusLog.hex(buf, 0, n, 64));
+                    first = false;
+                }
+
+                parser.feed(buf, 0, n);
+                rewrite.write(buf, 0, n);
+                // Only a pending query needs the pause noticed; otherwise block until more arrives
+                int want = summary.statusQuery && parser.isIdle() ? STATUS_IDLE_MS : 0;
+                if (want != readTimeout) {
+                    socket.setSoTimeout(want);
+                    readTimeout = want;
+                }
+            }
+            parser.finish();
+            rewrite.finish();
+            receiveTime.recordSince(acceptedNanos);
+            JobTrace.spanSince(trace, JobTrace.RECEIVE, acceptedNanos, rewrite.bytesIn());
+            bytesOut.add(rewrite.bytesOut());
+            summary.log(rewrite.bytesIn());
+            if (!rewrite.isPassThrough()) {
+                StatusLog.get().i(tag, "Rewritten to %d bytes, saved %d (%d since start)", rewrite.bytesOut(),
+                        rewrite.bytesSaved(), rewriteSaved.addAndGet(rewrite.bytesSaved()));
+            }
+            job.setFilter(rewrite.printFilter());
+            job.setAwaitsReply(summary.statusQuery);
+            long submitStart = System.nanoTime();
+            if (job.length() > 0 && !sp.submit(job)) {
+                StatusLog.get().w(tag, "Job from %s not queued", client);
+            }
+            JobTrace.spanSince(trace, JobTrace.SUBMIT, submitStart, 0);
+        } catch (InterruptedException e) {
+            StatusLog.get().w(tag, "Client interrupted while waiting for queue space");
+        } catch (Throwable t) {
+            StatusLog.get().i(tag, "Client session error: %s", t.getMessage());
+        } finally {
+            if (job != null) job.abort();
+            if (recording != null) recording.close();
+            reply.close();
+            // From the client's EOF until it is released; covers queueing the job
+            if (eof != 0) JobTrace.spanSince(trace, JobTrace.CLOSE, eof, 0);
+            StatusLog.get().i(tag, "Client disconnected");
+        }
+    }
+
+    /** Return a hex preview of the first up-to-`max` bytes from buffer. */
+    /**
+     * Tallies the commands in one job for the status log; fed every chunk.
+     * Also notes whether the last thing received was a status query.
+     */
+    private class CommandSummary extends EscPosParser.Adapter {
+        private long textBytes;
+        private int rasters, bitImages, codes2d, cuts;
+        /** Last event was DLE EOT n, DLE ENQ n, GS r n, GS I n or GS a n (ASB): commands the printer answers. */
+        boolean statusQuery;
+
+        @Override public void onText(byte[] b, int off, int len) {
+            textBytes += len;
+            statusQuery = false;
+        }
+
+        @Override public void onControl(int c) { statusQuery = false; }
+
+        @Override public void onCommand(int cmd, byte[] p, int n) {
+            if (cmd == EscPosParser.GS_V_CUT) cuts++;
+            statusQuery = cmd == (EscPosParser.DLE << 8 | 0x04) || cmd == (EscPosParser.DLE << 8 | 0x05)
+                    || cmd == (EscPosParser.GS << 8 | 'r') || cmd == (EscPosParser.GS << 8 | 'I')
+                    || cmd == (EscPosParser.GS << 8 | 'a');
+        }
+
+        @Override public void onBlockData(byte[] b, int off, int len) { statusQuery = false; }
+
+        @Override public void onBlockEnd(int cmd) { statusQuery = false; }
+
+        @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) {
+            statusQuery = false;
+            if (cmd == EscPosParser.GS_V) {
+                if (rasters++ == 0) {
+                    int xBytes = EscPosParser.u16(p, 2);
+                    StatusLog.get().i(tag, "GS v0 header: m=%d, xBytes=%d (width=%d px), rows=%d, expectedData=%d bytes",
+                            p[1] & 0xFF, xBytes, xBytes * 8, EscPosParser.u16(p, 4), dataLen);
+                }
+            } else if (cmd == EscPosParser.ESC_STAR) {
+                bitImages++;
+            } else if (cmd == EscPosParser.GS_PAREN_K) {
+                codes2d++;
+            }
+        }
+
+        void log(long bytesIn) {
+            StatusLog.get().i(tag, "Received %d bytes: text=%d B, GS v 0 x%d, ESC * x%d, GS ( k x%d, cuts x%d",
+                    bytesIn, textBytes, rasters, bitImages, codes2d, cuts);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package com.example.citaqh10printer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A receipt layout compiled once into pre-encoded ESC/POS segments with patch
+ * points for the values that change. Rendering copies the segments and fills
+ * in the fields, so a receipt costs a few array copies.
+ *
+ * Template source, one line per printed line:
+ * <pre>
+ *   &#64;init
+ *   &#64;center
+ *   &#64;bold on
+ *   CORNER CAFE
+ *   &#64;bold off
+ *   Order ${order}   ${date:16r}
+ *   &#64;rule -
+ *   &#64;items name:* qty:3r price:8r
+ *   &#64;rule -
+ *   TOTAL${total:*r}
+ *   &#64;qr url 6 M
+ *   &#64;barcode CODE128 order 80 3 below
+ *   &#64;feed 3
+ *   &#64;cut
+ * </pre>
+ * A text line may hold fields: {@code ${name}} as is, {@code ${name:10}} padded
+ * or cut to 10 columns ({@code 10r} right-aligned), {@code ${name:*}} taking
+ * what the rest of the line leaves. Line widths come from the paper width in
+ * dots and the current font and character width. Directives:
+ * <pre>
+ *   &#64;init  &#64;left  &#64;center  &#64;right  &#64;cut
+ *   &#64;bold on|off   &#64;underline 0|1|2   &#64;reverse on|off
+ *   &#64;font a|b      &#64;size W H          &#64;feed N
+ *   &#64;rule [c]                      a full line of c ('-' by default)
+ *   &#64;items col:width[r] ...         one line per item, columns one space apart
+ *   &#64;qr field [size] [L|M|Q|H]
+ *   &#64;barcode TYPE field [height] [width] [none|above|below]
+ * </pre>
+ * {@code @@} at the start of a line prints a literal '@'. CODE128 values carry
+ * their code set prefix ({@code {B...}}), as GS k expects.
+ */
+public final class ReceiptTemplate {
+
+    private static final int FONT_A_DOTS = 12;
+    private static final int FONT_B_DOTS = 9;
+    private static final int MAX_CACHED = 16;
+
+    private static final Map<String, ReceiptTemplate> cache = new HashMap<>();
+
+    private final Segment[] segments;
+    private final String[] fieldNames;
+    private final int itemColumns;
+    private final int columns;
+
+    private ReceiptTemplate(Segment[] segments, String[] fieldNames, int itemColumns, int columns) {
+        this.segments = segments;
+        this.fieldNames = fieldNames;
+        this.itemColumns = itemColumns;
+        this.columns = columns;
+    }
+
+    /** Compiled template for this source and paper width, compiled on first use. */
+    public static ReceiptTemplate cached(String source, int paperDots) {
+        String key = paperDots + "\n" + source;
+        synchronized (cache) {
+            ReceiptTemplate t = cache.get(key);
+            if (t == null) {
+                t = compile(source, paperDots);
+                if (cache.size() >= MAX_CACHED) cache.clear();
+                cache.put(key, t);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * @param paperDots printable width, e.g. the paper_width setting (576 on 80 mm)
+     * @throws IllegalArgumentException with the line number, if the source is malformed
+     */
+    public static ReceiptTemplate compile(String source, int paperDots) {
+        return new Compiler(paperDots).compile(source);
+    }
+
+    /** Characters per line in font A at normal width. */
+    public int columns() { return columns; }
+
+    /** Index of a field for {@link Receipt#set(int, CharSequence)}, or -1. */
+    public int field(String name) {
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldNames[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /** Values for one receipt; reuse it with {@link Receipt#clear()}. */
+    public Receipt newReceipt() {
+        return new Receipt(this);
+    }
+
+    /** Appends the receipt to out. Missing fields print as blanks. */
+    public void render(Receipt r, EscPosBuilder out) {
+        if (r.template != this) throw new IllegalArgumentException("receipt belongs to another template");
+        for (Segment s : segments) s.render(r, out);
+    }
+
+    public static final class Receipt {
+        private final ReceiptTemplate template;
+        private final CharSequence[] values;
+        private CharSequence[] items = new CharSequence[0];
+        private int itemCount;
+
+        private Receipt(ReceiptTemplate template) {
+            this.template = template;
+            this.values = new CharSequence[template.fieldNames.length];
+        }
+
+        public Receipt set(int field, CharSequence value) {
+            if (field >= 0) values[field] = value;
+            return this;
+        }
+
+        /** By name; ignored if the template has no such field. */
+        public Receipt set(String name, CharSequence value) {
+            return set(template.field(name), value);
+        }
+
+        /** One line item, values in the order of the {@code @items} columns. */
+        public Receipt addItem(CharSequence... columns) {
+            int n = template.itemColumns;
+            int need = (itemCount + 1) * n;
+            if (items.length < need) items = Arrays.copyOf(items, Math.max(need, items.length * 2));
+            for (int i = 0; i < n; i++) items[itemCount * n + i] = i < columns.length ? columns[i] : null;
+            itemCount++;
+            return this;
+        }
+
+        public Receipt clear() {
+            Arrays.fill(values, null);
+            Arrays.fill(items, 0, itemCount * template.itemColumns, null);
+            itemCount = 0;
+            return this;
+        }
+    }
+
+    // ---- Segments ----
+
+    private abstract static class Segment {
+        abstract void render(Receipt r, EscPosBuilder out);
+    }
+
+    /** Pre-encoded bytes: text, commands, line feeds. */
+    private static final class Literal extends Segment {
+        final byte[] bytes;
+
+        Literal(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override void render(Receipt r, EscPosBuilder out) {
+            out.raw(bytes);
+        }
+    }
+
+    /** A field, as is (width 0) or fitted to a fixed width. */
+    private static final class Field extends Segment {
+        final int index, width;
+        final boolean right;
+
+        Field(int index, int width, boolean right) {
+            this.index = index;
+            this.width = width;
+            this.right = right;
+        }
+
+        @Override void render(Receipt r, EscPosBuilder out) {
+            CharSequence v = r.values[index];
+            if (v == null) v = "";
+            if (width == 0) out.text(v);
+            else out.column(v, width, right);
+        }
+    }
+
+    private static final class Items extends Segment {
+        final int[] widths;
+        final boolean[] right;
+
+        Items(int[] widths, boolean[] right) {
+            this.widths = widths;
+            this.right = right;
+        }
+
+        @Override void render(Receipt r, EscPosBuilder out) {
+            int n = widths.length;
+            for (int i = 0; i < r.itemCount; i++) {
+                for (int c = 0; c < n; c++) {
+                    if (c > 0) out.spaces(1);
+                    CharSequence v = r.items[i * n + c];
+                    out.column(v == null ? "" : v, widths[c], right[c]);
+                }
+                out.newline();
+            }
+        }
+    }
+
+    private static final class Qr extends Segment {
+        final int index, size, ecc;
+
+        Qr(int index, int size, int ecc) {
+            this.index = index;
+            this.size = size;
+            this.ecc = ecc;
+        }
+
+        @Override void render(Receipt r, EscPosBuilder out) {
+            CharSequence v = r.values[index];
+            if (v != null && v.length() > 0) out.qr(v, size, ecc);
+        }
+    }
+
+    private static final class Barcode extends Segment {
+        final int index, type, height, width, hri;
+
+        Barcode(int index, int type, int height, int width, int hri) {
+            this.index = index;
+            this.type = type;
+            this.height = height;
+            this.width = width;
+            this.hri = hri;
+        }
+
+        @Override void render(Receipt r, EscPosBuilder out) {
+            CharSequence v = r.values[index];
+            if (v != null && v.length() > 0) out.barcode(type, v, height, width, hri);
+        }
+    }
+
+    // ---- Compiler ----
+
+    private static final class Compiler {
+        private final int paperDots;
+        private final List<Segment> segments = new ArrayList<>();
+        private final List<String> fields = new ArrayList<>();
+        private final EscPosBuilder lit = new EscPosBuilder();
+        private int font, charWidth = 1;
+        private int itemColumns;
+        private int lineNo;
+
+        Compiler(int paperDots) {
+            this.paperDots = paperDots;
+        }
+
+        ReceiptTemplate compile(String source) {
+            String[] lines = source.split("\r?\n", -1);
+            int n = lines.length;
+            if (n > 0 && lines[n - 1].isEmpty()) n--;   // final newline
+            for (int i = 0; i < n; i++) {
+                lineNo = i + 1;
+                String line = lines[i];
+                if (line.startsWith("@@")) textLine(line.substring(1));
+                else if (line.startsWith("@")) directive(line.substring(1).trim().split("\\s+"));
+                else textLine(line);
+            }
+            flushLiteral();
+            return new ReceiptTemplate(segments.toArray(new Segment[0]),
+                    fields.toArray(new String[0]), itemColumns, paperDots / FONT_A_DOTS);
+        }
+
+        private int lineColumns() {
+            return paperDots / (font == 0 ? FONT_A_DOTS : FONT_B_DOTS) / charWidth;
+        }
+
+        private void directive(String[] a) {
+            String d = a[0].toLowerCase();
+            switch (d) {
+                case "init":
+                    lit.initialize();
+                    font = 0;
+                    charWidth = 1;
+                    break;
+                case "left":
+                    lit.align(EscPosBuilder.ALIGN_LEFT);
+                    break;
+                case "center":
+                    lit.align(EscPosBuilder.ALIGN_CENTER);
+                    break;
+                case "right":
+                    lit.align(EscPosBuilder.ALIGN_RIGHT);
+                    break;
+                case "cut":
+                    lit.cut();
+                    break;
+                case "bold":
+                    lit.bold(onOff(a));
+                    break;
+                case "reverse":
+                    lit.reverse(onOff(a));
+                    break;
+                case "underline":
+                    lit.underline(intArg(a, 1, 1));
+                    break;
+                case "font":
+                    font = "b".equalsIgnoreCase(arg(a, 1)) ? 1 : 0;
+                    lit.font(font);
+                    break;
+                case "size":
+                    charWidth = Math.max(1, Math.min(8, intArg(a, 1, 1)));
+                    lit.size(charWidth, intArg(a, 2, charWidth));
+                    break;
+                case "feed":
+                    lit.feed(intArg(a, 1, 1));
+                    break;
+                case "rule": {
+                    String c = a.length > 1 ? a[1] : "-";
+                    int cols = lineColumns();
+                    for (int i = 0; i < cols; i++) lit.text(c.substring(0, 1));
+                    lit.newline();
+                    break;
+                }
+                case "items":
+                    items(a);
+                    break;
+                case "qr": {
+                    int f = fieldArg(a);
+                    int size = intArg(a, 2, 6);
+                    String e = a.length > 3 ? a[3].toUpperCase() : "M";
+                    int ecc = "LMQH".indexOf(e.charAt(0));
+                    if (ecc < 0) throw error("ECC level must be L, M, Q or H");
+                    flushLiteral();
+                    segments.add(new Qr(f, size, EscPosBuilder.QR_ECC_L + ecc));
+                    break;
+                }
+                case "barcode": {
+                    int type = barcodeType(arg(a, 1));
+                    String[] rest = Arrays.copyOfRange(a, 1, a.length);
+                    int f = fieldArg(rest);
+                    String h = a.length > 5 ? a[5].toLowerCase() : "below";
+                    int hri = "none".equals(h) ? EscPosBuilder.HRI_NONE
+                            : "above".equals(h) ? EscPosBuilder.HRI_ABOVE : EscPosBuilder.HRI_BELOW;
+                    flushLiteral();
+                    segments.add(new Barcode(f, type, intArg(a, 3, 80), intArg(a, 4, 3), hri));
+                    break;
+                }
+                default:
+                    throw error("unknown directive @" + a[0]);
+            }
+        }
+
+        private void items(String[] a) {
+            if (itemColumns > 0) throw error("only one @items per template");
+            int n = a.length - 1;
+            if (n == 0) throw error("@items needs columns");
+            int[] widths = new int[n];
+            boolean[] right = new boolean[n];
+            int fixed = n - 1;   // separating spaces
+            int star = -1;
+            for (int i = 0; i < n; i++) {
+                String spec = a[i + 1];
+                int colon = spec.indexOf(':');
+                String w = colon < 0 ? "*" : spec.substring(colon + 1);
+                right[i] = w.endsWith("r");
+                if (right[i]) w = w.substring(0, w.length() - 1);
+                if (w.equals("*")) {
+                    if (star >= 0) throw error("only one * column");
+                    star = i;
+                } else {
+                    widths[i] = parseInt(w);
+                    fixed += widths[i];
+                }
+            }
+            if (star >= 0) widths[star] = lineColumns() - fixed;
+            if (star >= 0 ? widths[star] < 1 : fixed > lineColumns()) throw error("@items wider than the paper");
+            itemColumns = n;
+            flushLiteral();
+            segments.add(new Items(widths, right));
+        }
+
+        /** Text with ${...} fields, then LF. */
+        private void textLine(String line) {
+            // First pass: fixed widths, to size a * field
+            int used = 0;
+            int stars = 0;
+            boolean free = false;
+            for (int i = 0; i < line.length(); ) {
+                int open = line.indexOf("${", i);
+                if (open < 0) {
+                    used += line.length() - i;
+                    break;
+                }
+                used += open - i;
+                int close = line.indexOf('}', open);
+                if (close < 0) throw error("unclosed ${");
+                String spec = widthSpec(line.substring(open + 2, close));
+                if (spec == null) free = true;
+                else if (spec.startsWith("*")) stars++;
+                else used += parseInt(spec.endsWith("r") ? spec.substring(0, spec.length() - 1) : spec);
+                i = close + 1;
+            }
+            if (stars > 1 || (stars == 1 && free)) throw error("a * field needs every other width fixed");
+            int starWidth = Math.max(1, lineColumns() - used);
+
+            for (int i = 0; i < line.length(); ) {
+                int open = line.indexOf("${", i);
+                if (open < 0) {
+                    lit.text(line.substring(i));
+                    break;
+                }
+                lit.text(line.substring(i, open));
+                int close = line.indexOf('}', open);
+                String body = line.substring(open + 2, close);
+                String spec = widthSpec(body);
+                String name = spec == null ? body : body.substring(0, body.indexOf(':'));
+                int width = 0;
+                boolean right = false;
+                if (spec != null) {
+                    right = spec.endsWith("r");
+                    String w = right ? spec.substring(0, spec.length() - 1) : spec;
+                    width = w.equals("*") ? starWidth : parseInt(w);
+                }
+                flushLiteral();
+                segments.add(new Field(fieldIndex(name), width, right));
+                i = close + 1;
+            }
+            lit.newline();
+        }
+
+        private static String widthSpec(String body) {
+            int colon = body.indexOf(':');
+            return colon < 0 ? null : body.substring(colon + 1);
+        }
+
+        private int fieldIndex(String name) {
+            if (name.isEmpty()) throw error("empty field name");
+            int i = fields.indexOf(name);
+            if (i >= 0) return i;
+            fields.add(name);
+            return fields.size() - 1;
+        }
+
+        private int fieldArg(String[] a) {
+            if (a.length < 2) throw error("@" + a[0] + " needs a field");
+            String name = a[1];
+            if (name.startsWith("${") && name.endsWith("}")) name = name.substring(2, name.length() - 1);
+            return fieldIndex(name);
+        }
+
+        private void flushLiteral() {
+            if (lit.size() == 0) return;
+            // Merge with a literal just before, so segments stay few
+            int last = segments.size() - 1;
+            segments.add(new Literal(lit.toByteArray()));
+            lit.reset();
+            if (last >= 0 && segments.get(last) instanceof Literal) {
+                byte[] a = ((Literal) segments.get(last)).bytes;
+                byte[] b = ((Literal) segments.remove(last + 1)).bytes;
+                byte[] m = Arrays.copyOf(a, a.length + b.length);
+                System.arraycopy(b, 0, m, a.length, b.length);
+                segments.set(last, new Literal(m));
+            }
+        }
+
+        private int barcodeType(String name) {
+            switch (name.toUpperCase()) {
+                case "UPC_A": return EscPosBuilder.BARCODE_UPC_A;
+                case "EAN13": return EscPosBuilder.BARCODE_EAN13;
+                case "EAN8": return EscPosBuilder.BARCODE_EAN8;
+                case "CODE39": return EscPosBuilder.BARCODE_CODE39;
+                case "ITF": return EscPosBuilder.BARCODE_ITF;
+                case "CODABAR": return EscPosBuilder.BARCODE_CODABAR;
+                case "CODE93": return EscPosBuilder.BARCODE_CODE93;
+                case "CODE128": return EscPosBuilder.BARCODE_CODE128;
+                default: throw error("unknown barcode type " + name);
+            }
+        }
+
+        private boolean onOff(String[] a) {
+            return !"off".equalsIgnoreCase(arg(a, 1));
+        }
+
+        private String arg(String[] a, int i) {
+            return i < a.length ? a[i] : "";
+        }
+
+        private int intArg(String[] a, int i, int def) {
+            return i < a.length ? parseInt(a[i]) : def;
+        }
+
+        private int parseInt(String s) {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                throw error("not a number: " + s);
+            }
+        }
+
+        private IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException("line " + lineNo + ": " + msg);
+        }
+    }
+}
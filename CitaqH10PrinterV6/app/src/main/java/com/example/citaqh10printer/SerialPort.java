@@ -5,12 +5,25 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class SerialPort {
     static {
         System.loadLibrary("serial_port");
     }
 
+    /** Rates with a named termios constant; anything else goes through termios2 (BOTHER). */
+    public static final int[] STANDARD_BAUDS = {
+            1200, 2400, 4800, 9600, 19200, 38400, 57600, 115200, 230400,
+            460800, 500000, 576000, 921600, 1000000, 1152000, 1500000,
+            2000000, 2500000, 3000000, 3500000, 4000000
+    };
+
+    /** {@code flags} bit: hardware flow control, the printer pauses us with CTS. */
+    public static final int FLOW_RTS_CTS = 0x1;
+    /** {@code flags} bit: software flow control, the printer pauses us with XOFF/XON. */
+    public static final int FLOW_XON_XOFF = 0x2;
+
     private FileDescriptor mFd;
     private FileInputStream mInputStream;
     private FileOutputStream mOutputStream;
@@ -28,15 +41,88 @@ public class SerialPort {
         mOutputStream = new FileOutputStream(mFd);
     }
 
+    /** Builds the {@code flags} constructor argument from the flow-control settings. */
+    public static int flowFlags(boolean rtsCts, boolean xonXoff) {
+        return (rtsCts ? FLOW_RTS_CTS : 0) | (xonXoff ? FLOW_XON_XOFF : 0);
+    }
+
+    public static boolean isStandardBaud(int baud) {
+        for (int b : STANDARD_BAUDS) if (b == baud) return true;
+        return false;
+    }
+
     public FileInputStream getInputStream() { return mInputStream; }
     public FileOutputStream getOutputStream() { return mOutputStream; }
 
+    /**
+     * Writes buf from position to limit with a single native call per buffer
+     * (no heap copy for direct/mapped buffers) and advances its position.
+     */
+    public int write(ByteBuffer buf) throws IOException {
+        int n = buf.remaining();
+        if (n == 0) return 0;
+        if (!buf.isDirect()) {
+            return mOutputStream.getChannel().write(buf);
+        }
+        int done = writeNative(mFd, buf, buf.position(), n);
+        buf.position(buf.position() + done);
+        return done;
+    }
+
+    /**
+     * Reads printer responses, waiting at most {@code timeoutMs}.
+     *
+     * @return bytes read, 0 on timeout, -1 once the port has been closed
+     */
+    public int read(byte[] b, int off, int len, int timeoutMs) throws IOException {
+        FileDescriptor fd = mFd;
+        if (fd == null) return -1;
+        return readNative(fd, b, off, len, timeoutMs);
+    }
+
+    /** Bytes accepted by write() that the driver has not put on the wire yet (TIOCOUTQ). */
+    public int outputQueue() throws IOException {
+        return outputQueueNative(mFd);
+    }
+
+    /**
+     * Waits until the output queue is empty, polling at a rate matched to the
+     * line speed. Gives up after {@code timeoutMs},
+     * e.g. when the printer holds us off with flow control (paper out, cover open).
+     * Bytes still inside the UART FIFO itself (tens of bytes) are not counted.
+     *
+     * @return true if the queue emptied, false on timeout
+     */
+    public boolean drain(long timeoutMs, int baud) throws IOException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        int pending;
+        while ((pending = outputQueue()) > 0) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            try {
+                Thread.sleep(Math.min(left / 1_000_000L + 1, sendTimeMs(pending, baud)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new java.io.InterruptedIOException("drain interrupted");
+            }
+        }
+        return true;
+    }
+
+    /** Time to clock {@code bytes} out at 8N1 (10 bits per byte), at least 1 ms. */
+    public static long sendTimeMs(long bytes, int baud) {
+        return Math.max(1, bytes * 10_000L / Math.max(1, baud));
+    }
+
     public void close() {
         try { if (mInputStream != null) mInputStream.close(); } catch (IOException ignored) {}
         try { if (mOutputStream != null) mOutputStream.close(); } catch (IOException ignored) {}
         if (mFd != null) { closeNative(); mFd = null; }
     }
 
-    private native static FileDescriptor open(String path, int baudrate, int flags);
+    private native static FileDescriptor open(String path, int baudrate, int flags) throws IOException;
+    private native static int writeNative(FileDescriptor fd, ByteBuffer buf, int off, int len) throws IOException;
+    private native static int outputQueueNative(FileDescriptor fd) throws IOException;
+    private native static int readNative(FileDescriptor fd, byte[] b, int off, int len, int timeoutMs) throws IOException;
     private native void closeNative();
 }
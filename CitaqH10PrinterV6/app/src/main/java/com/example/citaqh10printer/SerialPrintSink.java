@@ -0,0 +1,146 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writer-thread side of a {@link PrintSpooler}: sends one spooled job to the
+ * serial printer through the shared {@link SerialSession}.
+ *
+ * The settings are read at the start of every job, so changes made in the
+ * settings screen apply from the next job on.
+ */
+public class SerialPrintSink implements PrintSpooler.Sink {
+
+    /** Where and how to reach the printer; read once per job. */
+    public interface Settings {
+        String devicePath();
+        int baudRate();
+        /** {@link SerialPort#flowFlags} bits. */
+        int flowFlags();
+        /** Close the port after this long unused; 0 keeps it open. */
+        long idleTimeoutMs();
+        /** Most bytes to keep queued in the tty driver. */
+        int inFlightBytes();
+    }
+
+    private static final long DRAIN_GRACE_MS = 30_000;
+    /** How long a job ending in a status query keeps the reply channel after its last byte. */
+    private static final long REPLY_LINGER_MS = 1000;
+
+    private final String tag;
+    private final Settings settings;
+
+    private final Metrics.Counter bytesWritten = Metrics.get().counter("serial.bytes_written");
+    private final Metrics.Histogram writeStall = Metrics.get().histogram("serial.write_stall_us");
+    private final Metrics.Histogram drainTime = Metrics.get().histogram("serial.drain_us");
+
+    public SerialPrintSink(String tag, Settings settings) {
+        this.tag = tag;
+        this.settings = settings;
+    }
+
+    @Override public void print(PrintSpooler.PrintJob job) throws IOException {
+        String path = settings.devicePath();
+        int baud = settings.baudRate();
+        int flags = settings.flowFlags();
+
+        SerialSession session = SerialSession.get();
+        session.setIdleTimeoutMs(settings.idleTimeoutMs());
+
+        int inFlight = Math.max(256, settings.inFlightBytes());
+
+        SpoolStore.Segments in = job.open();
+        try {
+            SerialPort sp = session.acquire(path, baud, flags);
+            boolean failed = true;
+            try {
+                session.setReplyChannel(job.reply);
+                long t0 = System.currentTimeMillis();
+                long written = 0;
+                int quarter = 1;
+                long lastWrite = System.nanoTime();
+                // Mapped spool segments go straight to the tty without a heap copy
+                ByteBuffer seg;
+                while ((seg = in.next()) != null) {
+                    while (seg.hasRemaining()) {
+                        // Keep at most inFlight bytes queued in the driver
+                        int queued = waitForRoom(sp, inFlight, baud, job.trace);
+                        int limit = seg.limit();
+                        seg.limit(seg.position() + Math.min(seg.remaining(), inFlight - queued));
+                        long before = written;
+                        long writeStart = System.nanoTime();
+                        while (seg.hasRemaining()) written += sp.write(seg);
+                        lastWrite = System.nanoTime();
+                        JobTrace.spanSince(job.trace, JobTrace.SERIAL_WRITE, writeStart, written - before);
+                        seg.limit(limit);
+                        bytesWritten.add(written - before);
+
+                        long onWire = written - sp.outputQueue();
+                        if (quarter < 4 && onWire * 4 >= job.length * quarter) {
+                            StatusLog.get().i(tag, "Job #%d: %d%% on wire (%d/%d bytes, %d ms)", job.id,
+                                    25 * quarter, onWire, job.length, System.currentTimeMillis() - t0);
+                            quarter++;
+                        }
+                    }
+                }
+                // Job boundary: finished only once the printer has taken every byte
+                long timeout = SerialPort.sendTimeMs(sp.outputQueue(), baud) + DRAIN_GRACE_MS;
+                long drainStart = System.nanoTime();
+                boolean drained = sp.drain(timeout, baud);
+                drainTime.recordSince(drainStart);
+                JobTrace.spanSince(job.trace, JobTrace.SERIAL_DRAIN, drainStart, 0);
+                if (!drained) {
+                    throw new IOException("Printer stalled with " + sp.outputQueue()
+                            + " bytes unsent after " + timeout + " ms");
+                }
+                // The printer answers the trailing query only now; hand the port on after the answer
+                if (job.awaitsReply && job.reply != null && job.reply.isOpen()) {
+                    try {
+                        if (!session.awaitReply(lastWrite, REPLY_LINGER_MS)) {
+                            StatusLog.get().w(tag, "Job #%d: no status reply within %d ms", job.id, REPLY_LINGER_MS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Writer interrupted");
+                    }
+                }
+                failed = false;
+            } finally {
+                session.release(failed);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Sleeps until at most half of the in-flight budget is queued; returns the queue depth.
+     * Time spent asleep is recorded as a write stall. Fails like the job-end drain if the
+     * printer holds the line (flow control, paper out) past the time the bytes need plus
+     * {@link #DRAIN_GRACE_MS}.
+     */
+    private int waitForRoom(SerialPort sp, int inFlight, int baud, long trace) throws IOException {
+        int queued = sp.outputQueue();
+        if (queued <= inFlight / 2) return queued;
+        long start = System.nanoTime();
+        long timeout = SerialPort.sendTimeMs(queued, baud) + DRAIN_GRACE_MS;
+        long deadline = System.currentTimeMillis() + timeout;
+        for (; queued > inFlight / 2; queued = sp.outputQueue()) {
+            if (System.currentTimeMillis() >= deadline) {
+                writeStall.recordSince(start);
+                throw new IOException("Printer stalled with " + queued + " bytes unsent after " + timeout + " ms");
+            }
+            try {
+                Thread.sleep(SerialPort.sendTimeMs(queued - inFlight / 2, baud));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Writer interrupted");
+            }
+        }
+        writeStall.recordSince(start);
+        JobTrace.spanSince(trace, JobTrace.SERIAL_STALL, start, 0);
+        return queued;
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide owner of the printer serial port.
+ *
+ * Opening the tty (open + tcgetattr/cfmakeraw/tcsetattr) costs more than a short
+ * kitchen ticket takes to send, so the port is kept open between jobs and shared
+ * by every producer (share service writer, main-screen print). Callers hold the
+ * port exclusively between {@link #acquire} and {@link #release}; jobs from
+ * different producers are never interleaved.
+ *
+ * While the port is open a reader thread forwards everything the printer sends
+ * (DLE EOT / GS r replies, ASB status) to the {@link PrintSpooler.ReplyChannel}
+ * set by the job currently printing, so clients get their answers while the
+ * write path keeps streaming. A job that ends with a query keeps the port
+ * (and so the channel) until {@link #awaitReply} sees the answer; release()
+ * clears the channel, so a late answer is logged rather than sent to the next
+ * job's client.
+ *
+ * The port is reopened only when the device path, baud rate or flags change, or
+ * after a caller reports an I/O error. It is closed after sitting unused for the
+ * idle timeout.
+ *
+ * <pre>
+ *   SerialPort sp = SerialSession.get().acquire(path, baud, 0);
+ *   boolean failed = true;
+ *   try { ...write...; failed = false; }
+ *   finally { SerialSession.get().release(failed); }
+ * </pre>
+ */
+public final class SerialSession {
+
+    private static final String TAG = "SerialSession";
+    private static final int READ_POLL_MS = 200;
+    public static final long DEFAULT_IDLE_MS = 30_000;
+
+    private static final SerialSession INSTANCE = new SerialSession();
+    public static SerialSession get() { return INSTANCE; }
+
+    // Fair, so a burst from one producer cannot starve the other
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final ScheduledThreadPoolExecutor timer;
+
+    private volatile SerialPort port;
+    private volatile PrintSpooler.ReplyChannel replyTo;
+    private final Object replyLock = new Object();
+    /** System.nanoTime() of the last bytes forwarded to a reply channel. */
+    private long lastReplyNanos;
+    private String path;
+    private int baud;
+    private int flags;
+    private volatile long idleMs = DEFAULT_IDLE_MS;
+    private ScheduledFuture<?> idleClose;
+    private long lastReleaseNanos;
+
+    private SerialSession() {
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SerialSession-Idle");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Idle period after which an unused port is closed; 0 keeps it open. */
+    public void setIdleTimeoutMs(long ms) {
+        idleMs = Math.max(0, ms);
+    }
+
+    /**
+     * Routes printer responses to {@code ch} until changed; null drops them (they
+     * are logged). Call while holding the port, at the start of each job.
+     */
+    public void setReplyChannel(PrintSpooler.ReplyChannel ch) {
+        replyTo = ch;
+    }
+
+    /**
+     * Waits until the printer sends something to the reply channel after
+     * {@code sinceNanos} (System.nanoTime()), at most {@code timeoutMs}. Call
+     * while holding the port, after writing a status query.
+     *
+     * @return false on timeout
+     */
+    public boolean awaitReply(long sinceNanos, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (replyLock) {
+            while (lastReplyNanos - sinceNanos <= 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(replyLock, left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Takes exclusive use of the port, opening or reopening it if needed.
+     * Blocks while another producer holds it. Must be paired with {@link #release}.
+     */
+    public SerialPort acquire(String path, int baud, int flags) throws IOException {
+        lock.lock();
+        try {
+            if (idleClose != null) {
+                idleClose.cancel(false);
+                idleClose = null;
+            }
+            if (port != null && (baud != this.baud || flags != this.flags || !path.equals(this.path))) {
+                StatusLog.get().i(TAG, "Settings changed, reopening %s @%d", path, baud);
+                closeLocked();
+            }
+            if (port == null) {
+                long t0 = System.nanoTime();
+                port = new SerialPort(path, baud, flags);
+                this.path = path;
+                this.baud = baud;
+                this.flags = flags;
+                StatusLog.get().i(TAG, "Opened %s @%d in %d us", path, baud, (System.nanoTime() - t0) / 1000);
+                startReader(port);
+            }
+            return port;
+        } catch (IOException | RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives the port back.
+     *
+     * @param ioError true if the caller hit an I/O error; the port is closed and
+     *                reopened by the next {@link #acquire}
+     */
+    public void release(boolean ioError) {
+        replyTo = null;
+        try {
+            if (ioError) {
+                StatusLog.get().w(TAG, "I/O error reported, closing %s", path);
+                closeLocked();
+            } else if (port != null && idleMs > 0) {
+                lastReleaseNanos = System.nanoTime();
+                idleClose = timer.schedule(new Runnable() {
+                    @Override public void run() { closeIfIdle(); }
+                }, idleMs, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the port now; the next {@link #acquire} reopens it. */
+    public void close() {
+        lock.lock();
+        try {
+            closeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeIfIdle() {
+        // Somebody is printing: they reschedule on release
+        if (!lock.tryLock()) return;
+        try {
+            // A stale timer that fired while the port was reused
+            if (System.nanoTime() - lastReleaseNanos < TimeUnit.MILLISECONDS.toNanos(idleMs)) return;
+            if (port != null) {
+                StatusLog.get().i(TAG, "Idle for %d ms, closing %s", idleMs, path);
+                closeLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeLocked() {
+        if (idleClose != null) {
+            idleClose.cancel(false);
+            idleClose = null;
+        }
+        SerialPort p = port;
+        if (p != null) {
+            port = null; // reader thread exits on its next poll
+            try { p.close(); } catch (Throwable ignored) {}
+        }
+    }
+
+    private void startReader(final SerialPort p) {
+        Thread t = new Thread(new Runnable() {
+            @Override public void run() { readLoop(p); }
+        }, "SerialSession-Reader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void readLoop(SerialPort p) {
+        byte[] buf = new byte[256];
+        while (port == p) {
+            int n;
+            try {
+                n = p.read(buf, 0, buf.length, READ_POLL_MS);
+            } catch (IOException e) {
+                if (port == p) StatusLog.get().w(TAG, "Read error: %s", e.getMessage());
+                break;
+            }
+            if (n < 0) break;
+            if (n == 0) continue;
+            PrintSpooler.ReplyChannel ch = replyTo;
+            if (ch != null && ch.isOpen()) {
+                ch.send(buf, 0, n);
+                synchronized (replyLock) {
+                    lastReplyNanos = System.nanoTime();
+                    replyLock.notifyAll();
+                }
+            } else {
+                StatusLog.get().i(TAG, "Printer sent %d byte(s), no client waiting: %s", n, StatusLog.hex(buf, 0, n, 16));
+            }
+        }
+    }
+}
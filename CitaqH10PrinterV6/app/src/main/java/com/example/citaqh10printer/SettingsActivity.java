@@ -1,7 +1,9 @@
 package com.example.citaqh10printer;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.view.View;
@@ -10,11 +12,22 @@ import android.widget.EditText;
 import android.widget.Switch;
 import android.widget.Toast;
 
+import java.io.File;
+
 public class SettingsActivity extends Activity {
 
-    private EditText etDevicePath, etBaudRate, etPaperWidth;
+    private EditText etDevicePath, etBaudRate, etPaperWidth, etSerialIdle, etSerialInflight;
+    private Switch   swFlowRtsCts, swFlowXonXoff;
     private Switch   swShare;
     private EditText etSharePort;
+    private EditText etSpoolDepth, etSpoolMaxJobKb, etSpoolMaxMb;
+    private Switch   swSpoolBlock;
+    private Switch   swCapture;
+    private EditText etCaptureMaxMb, etMetricsPort, etTraceSampleEvery;
+    private Switch   swRwBlankRows, swRwTrimRight, swRwScale, swRwLogoCache, swRwBitImages, swRwBands;
+    private Switch   swRwOptimize, swRwCollapse, swRwUsbOptimize, swRwUsbCollapse;
+    private EditText etBandRows, etPrinterBuffer;
+    private EditText etNvCapacityKb, etLogoThreshold;
 
     private Switch   swShareUsb;
     private EditText etShareUsbPort;
@@ -26,38 +39,112 @@ public class SettingsActivity extends Activity {
 
         etDevicePath = findViewById(R.id.etDevicePath);
         etBaudRate = findViewById(R.id.etBaudRate);
+        etSerialIdle = findViewById(R.id.etSerialIdle);
+        swFlowRtsCts = findViewById(R.id.swFlowRtsCts);
+        swFlowXonXoff = findViewById(R.id.swFlowXonXoff);
+        etSerialInflight = findViewById(R.id.etSerialInflight);
         etPaperWidth = findViewById(R.id.etPaperWidth);
         // New: sharing
         swShare     = findViewById(R.id.swShare);
         etSharePort = findViewById(R.id.etSharePort);
+        etSpoolDepth    = findViewById(R.id.etSpoolDepth);
+        etSpoolMaxJobKb = findViewById(R.id.etSpoolMaxJobKb);
+        etSpoolMaxMb    = findViewById(R.id.etSpoolMaxMb);
+        swSpoolBlock    = findViewById(R.id.swSpoolBlock);
+        swCapture       = findViewById(R.id.swCapture);
+        etCaptureMaxMb  = findViewById(R.id.etCaptureMaxMb);
+        etMetricsPort   = findViewById(R.id.etMetricsPort);
+        etTraceSampleEvery = findViewById(R.id.etTraceSampleEvery);
+        swRwBlankRows   = findViewById(R.id.swRwBlankRows);
+        swRwTrimRight   = findViewById(R.id.swRwTrimRight);
+        swRwScale       = findViewById(R.id.swRwScale);
+        swRwLogoCache   = findViewById(R.id.swRwLogoCache);
+        swRwBitImages   = findViewById(R.id.swRwBitImages);
+        swRwBands       = findViewById(R.id.swRwBands);
+        swRwOptimize    = findViewById(R.id.swRwOptimize);
+        swRwCollapse    = findViewById(R.id.swRwCollapse);
+        etBandRows      = findViewById(R.id.etBandRows);
+        etPrinterBuffer = findViewById(R.id.etPrinterBuffer);
+        etNvCapacityKb  = findViewById(R.id.etNvCapacityKb);
+        etLogoThreshold = findViewById(R.id.etLogoThreshold);
 
         swShareUsb     = findViewById(R.id.swShareUsb);
         etShareUsbPort = findViewById(R.id.etShareUsbPort);
+        swRwUsbOptimize = findViewById(R.id.swRwUsbOptimize);
+        swRwUsbCollapse = findViewById(R.id.swRwUsbCollapse);
 
         Button btnSave = findViewById(R.id.btnSave);
 
         final android.content.SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         etDevicePath.setText(prefs.getString("device_path", "/dev/ttyS1"));
         etBaudRate.setText(String.valueOf(prefs.getInt("baud_rate", 115200)));
+        etSerialIdle.setText(String.valueOf(prefs.getInt("serial_idle_sec", 30)));
+        swFlowRtsCts.setChecked(prefs.getBoolean("flow_rtscts", false));
+        swFlowXonXoff.setChecked(prefs.getBoolean("flow_xonxoff", false));
+        etSerialInflight.setText(String.valueOf(prefs.getInt("serial_inflight_bytes", 4096)));
         etPaperWidth.setText(String.valueOf(prefs.getInt("paper_width", 576)));
 
         // New: load sharing prefs
         swShare.setChecked(prefs.getBoolean("share_enabled", false));
         etSharePort.setText(String.valueOf(prefs.getInt("share_port", 9100)));
+        etSpoolDepth.setText(String.valueOf(prefs.getInt("spool_queue_depth", 16)));
+        etSpoolMaxJobKb.setText(String.valueOf(prefs.getInt("spool_max_job_kb", 1024)));
+        etSpoolMaxMb.setText(String.valueOf(prefs.getInt("spool_max_mb", 64)));
+        swSpoolBlock.setChecked(prefs.getBoolean("spool_block_when_full", false));
+        swCapture.setChecked(prefs.getBoolean("capture_enabled", false));
+        etCaptureMaxMb.setText(String.valueOf(prefs.getInt("capture_max_mb", 32)));
+        etMetricsPort.setText(String.valueOf(prefs.getInt("metrics_port", 9180)));
+        etTraceSampleEvery.setText(String.valueOf(prefs.getInt("trace_sample_every", 0)));
+        swRwBlankRows.setChecked(prefs.getBoolean("rw_serial_blank_rows", false));
+        swRwTrimRight.setChecked(prefs.getBoolean("rw_serial_trim_right", false));
+        swRwScale.setChecked(prefs.getBoolean("rw_serial_scale", false));
+        swRwLogoCache.setChecked(prefs.getBoolean("rw_serial_logo_cache", false));
+        swRwBitImages.setChecked(prefs.getBoolean("rw_serial_bit_images", false));
+        swRwBands.setChecked(prefs.getBoolean("rw_serial_bands", false));
+        swRwOptimize.setChecked(prefs.getBoolean("rw_serial_optimize", false));
+        swRwCollapse.setChecked(prefs.getBoolean("rw_serial_collapse_spaces", false));
+        etBandRows.setText(String.valueOf(prefs.getInt("raster_band_rows", 0)));
+        etPrinterBuffer.setText(String.valueOf(prefs.getInt("printer_buffer_bytes", 4096)));
+        etNvCapacityKb.setText(String.valueOf(prefs.getInt("nv_capacity_kb", 64)));
+        etLogoThreshold.setText(String.valueOf(prefs.getInt("nv_logo_threshold", 3)));
 
         swShareUsb.setChecked(prefs.getBoolean("share_usb_enabled", false));
         etShareUsbPort.setText(String.valueOf(prefs.getInt("share_usb_port", 9101)));
+        swRwUsbOptimize.setChecked(prefs.getBoolean("rw_usb_optimize", false));
+        swRwUsbCollapse.setChecked(prefs.getBoolean("rw_usb_collapse_spaces", false));
 
         btnSave.setOnClickListener(new View.OnClickListener() {
             @Override public void onClick(View v) {
                 String path = etDevicePath.getText().toString().trim();
-                int baud; int width; int sharePort;
+                int baud; int width; int sharePort; int idleSec; int inflight;
                 try { baud = Integer.parseInt(etBaudRate.getText().toString().trim()); } catch (Exception e) { baud = 115200; }
+                if (baud <= 0) baud = 115200;
+                try { idleSec = Integer.parseInt(etSerialIdle.getText().toString().trim()); } catch (Exception e) { idleSec = 30; }
+                try { inflight = Integer.parseInt(etSerialInflight.getText().toString().trim()); } catch (Exception e) { inflight = 4096; }
                 try { width = Integer.parseInt(etPaperWidth.getText().toString().trim()); } catch (Exception e) { width = 576; }
                 try { sharePort = Integer.parseInt(etSharePort.getText().toString().trim()); } catch (Exception e) { sharePort = 9100; }
 
                 boolean shareEnabled = swShare.isChecked();
 
+                int spoolDepth, spoolMaxKb, spoolMaxMb;
+                try { spoolDepth = Integer.parseInt(etSpoolDepth.getText().toString().trim()); } catch (Exception e) { spoolDepth = 16; }
+                try { spoolMaxKb = Integer.parseInt(etSpoolMaxJobKb.getText().toString().trim()); } catch (Exception e) { spoolMaxKb = 1024; }
+                try { spoolMaxMb = Integer.parseInt(etSpoolMaxMb.getText().toString().trim()); } catch (Exception e) { spoolMaxMb = 64; }
+                boolean spoolBlock = swSpoolBlock.isChecked();
+                int captureMaxMb;
+                try { captureMaxMb = Integer.parseInt(etCaptureMaxMb.getText().toString().trim()); } catch (Exception e) { captureMaxMb = 32; }
+                int metricsPort;
+                try { metricsPort = Integer.parseInt(etMetricsPort.getText().toString().trim()); } catch (Exception e) { metricsPort = 9180; }
+                int traceSampleEvery;
+                try { traceSampleEvery = Integer.parseInt(etTraceSampleEvery.getText().toString().trim()); } catch (Exception e) { traceSampleEvery = 0; }
+
+                int nvKb, logoThreshold;
+                try { nvKb = Integer.parseInt(etNvCapacityKb.getText().toString().trim()); } catch (Exception e) { nvKb = 64; }
+                try { logoThreshold = Integer.parseInt(etLogoThreshold.getText().toString().trim()); } catch (Exception e) { logoThreshold = 3; }
+                int bandRows, printerBuffer;
+                try { bandRows = Integer.parseInt(etBandRows.getText().toString().trim()); } catch (Exception e) { bandRows = 0; }
+                try { printerBuffer = Integer.parseInt(etPrinterBuffer.getText().toString().trim()); } catch (Exception e) { printerBuffer = 4096; }
+
                 boolean shareUsb = swShareUsb.isChecked();
                 int usbPort;
                 try { usbPort = Integer.parseInt(etShareUsbPort.getText().toString().trim()); }
@@ -66,12 +153,40 @@ public class SettingsActivity extends Activity {
                 prefs.edit()
                         .putString("device_path", path.isEmpty()?"/dev/ttyS1":path)
                         .putInt("baud_rate", baud)
+                        .putInt("serial_idle_sec", Math.max(0, idleSec))
+                        .putBoolean("flow_rtscts", swFlowRtsCts.isChecked())
+                        .putBoolean("flow_xonxoff", swFlowXonXoff.isChecked())
+                        .putInt("serial_inflight_bytes", Math.max(256, inflight))
                         .putInt("paper_width", width)
                         .putBoolean("share_enabled", shareEnabled)
                         .putInt("share_port", sharePort)
+                        .putInt("spool_queue_depth", Math.max(1, spoolDepth))
+                        .putInt("spool_max_job_kb", Math.max(1, spoolMaxKb))
+                        .putInt("spool_max_mb", Math.max(1, spoolMaxMb))
+                        .putBoolean("spool_block_when_full", spoolBlock)
+                        .putBoolean("capture_enabled", swCapture.isChecked())
+                        .putInt("capture_max_mb", Math.max(1, captureMaxMb))
+                        .putInt("metrics_port", Math.max(0, metricsPort))
+                        .putInt("trace_sample_every", Math.max(0, traceSampleEvery))
+                        .putBoolean("rw_serial_blank_rows", swRwBlankRows.isChecked())
+                        .putBoolean("rw_serial_trim_right", swRwTrimRight.isChecked())
+                        .putBoolean("rw_serial_scale", swRwScale.isChecked())
+                        .putBoolean("rw_serial_logo_cache", swRwLogoCache.isChecked())
+                        .putBoolean("rw_serial_bit_images", swRwBitImages.isChecked())
+                        .putBoolean("rw_serial_bands", swRwBands.isChecked())
+                        .putBoolean("rw_serial_optimize", swRwOptimize.isChecked())
+                        .putBoolean("rw_serial_collapse_spaces", swRwCollapse.isChecked())
+                        .putInt("raster_band_rows", Math.max(0, bandRows))
+                        .putInt("printer_buffer_bytes", Math.max(256, printerBuffer))
+                        .putInt("nv_capacity_kb", Math.max(1, nvKb))
+                        .putInt("nv_logo_threshold", Math.max(1, logoThreshold))
                         .putBoolean("share_usb_enabled", shareUsb)
                         .putInt("share_usb_port", usbPort)
+                        .putBoolean("rw_usb_optimize", swRwUsbOptimize.isChecked())
+                        .putBoolean("rw_usb_collapse_spaces", swRwUsbCollapse.isChecked())
                         .apply();
+                // The services read it only when they start; tracing follows the setting at once
+                JobTrace.setSampleEvery(Math.max(0, traceSampleEvery));
 
                 // start/stop the USB share service now
                 Intent usbSvc = new Intent(SettingsActivity.this, Raw9101UsbShareService.class);
@@ -80,9 +195,44 @@ public class SettingsActivity extends Activity {
                 Intent svc = new Intent(SettingsActivity.this, Raw9100ShareService.class);
                 if (shareEnabled) startService(svc); else stopService(svc);
 
-                Toast.makeText(SettingsActivity.this, "Saved", Toast.LENGTH_SHORT).show();
+                if (!SerialPort.isStandardBaud(baud)) {
+                    Toast.makeText(SettingsActivity.this, "Saved. " + baud
+                            + " baud needs a custom UART divisor; check the status log if printing fails",
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(SettingsActivity.this, "Saved", Toast.LENGTH_SHORT).show();
+                }
                 finish();
             }
         });
     }
+
+    /**
+     * Where the share services write {@link JobCapture} files: app-specific
+     * external storage, so they can be pulled with adb without root.
+     */
+    static File captureDir(Context c) {
+        File base = c.getExternalFilesDir(null);
+        return new File(base != null ? base : c.getFilesDir(), "captures");
+    }
+
+    /**
+     * Rewrite stages enabled for a share service.
+     * @param port "serial" (tcp/9100) or "usb" (tcp/9101)
+     */
+    static EscPosPipeline.Options rewriteOptions(SharedPreferences prefs, String port) {
+        EscPosPipeline.Options o = new EscPosPipeline.Options();
+        o.skipBlankRows = prefs.getBoolean("rw_" + port + "_blank_rows", false);
+        o.trimRight = prefs.getBoolean("rw_" + port + "_trim_right", false);
+        o.mergeBitImages = prefs.getBoolean("rw_" + port + "_bit_images", false);
+        o.splitBands = prefs.getBoolean("rw_" + port + "_bands", false);
+        o.optimizeModes = prefs.getBoolean("rw_" + port + "_optimize", false);
+        o.collapseSpaces = prefs.getBoolean("rw_" + port + "_collapse_spaces", false);
+        o.bandRows = prefs.getInt("raster_band_rows", 0);
+        o.printerBufferBytes = prefs.getInt("printer_buffer_bytes", 4096);
+        if (prefs.getBoolean("rw_" + port + "_scale", false)) {
+            o.scaleToDots = prefs.getInt("paper_width", 576);
+        }
+        return o;
+    }
 }
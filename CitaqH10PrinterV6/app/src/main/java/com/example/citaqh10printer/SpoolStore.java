@@ -0,0 +1,345 @@
+package com.example.citaqh10printer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append-only, disk-backed job spool.
+ *
+ * Layout of the spool directory:
+ * <pre>
+ *   job-&lt;id&gt;.spl   raw job bytes, written and read through FileChannel.map()
+ *                    in fixed-size segments (only one segment mapped at a time)
+ *   index.dat        append-only records:
+ *                      COMMIT: [1][id:8][receivedAtMs:8][length:8][source:UTF]
+ *                      DONE:   [2][id:8]
+ * </pre>
+ * A job file becomes visible only once its COMMIT record is in the index, so a
+ * crash mid-receive leaves an orphan file that {@link #recover()} deletes. Jobs
+ * committed but not marked DONE are handed back by {@link #recover()} in id
+ * order, which lets a restarted service replay them. Job bytes never live on
+ * the Java heap; heap use is a few objects per job regardless of its size.
+ */
+public class SpoolStore {
+
+    private static final String INDEX = "index.dat";
+    private static final String INDEX_TMP = "index.tmp";
+    private static final String JOB_PREFIX = "job-";
+    private static final String JOB_SUFFIX = ".spl";
+    private static final byte REC_COMMIT = 1;
+    private static final byte REC_DONE = 2;
+
+    /** A committed job on disk. */
+    public static final class Entry {
+        public final long id;
+        public final String source;
+        public final long receivedAtMs;
+        public final long length;
+        final File file;
+
+        Entry(long id, String source, long receivedAtMs, long length, File file) {
+            this.id = id;
+            this.source = source;
+            this.receivedAtMs = receivedAtMs;
+            this.length = length;
+            this.file = file;
+        }
+    }
+
+    /** A job's bytes as successive buffers: a {@link Reader}, or a view that rewrites one. */
+    public interface Segments {
+        /** @return the next buffer, or null when the whole job has been returned */
+        ByteBuffer next() throws IOException;
+        void close();
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    private long usedBytes;
+    private long nextId = 1;
+    private FileOutputStream indexFile;
+    private DataOutputStream index;
+    private boolean closed;
+
+    /**
+     * @param dir          spool directory (created if missing)
+     * @param segmentBytes size of each mapped window of a job file
+     * @param maxBytes     total bytes of pending and in-flight jobs before appends fail
+     */
+    public SpoolStore(File dir, int segmentBytes, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spool dir " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reads the index, deletes orphaned job files and compacts the index down to
+     * the jobs that were committed but never printed.
+     *
+     * @return pending jobs, oldest first
+     */
+    public synchronized List<Entry> recover() throws IOException {
+        closeIndex();
+        LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+        File idx = new File(dir, INDEX);
+        if (idx.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    long id = in.readLong();
+                    if (type == REC_COMMIT) {
+                        long receivedAt = in.readLong();
+                        long length = in.readLong();
+                        String source = in.readUTF();
+                        pending.put(id, new Entry(id, source, receivedAt, length, jobFile(id)));
+                    } else if (type == REC_DONE) {
+                        pending.remove(id);
+                    } else {
+                        break; // corrupt tail
+                    }
+                    if (id >= nextId) nextId = id + 1;
+                }
+            } catch (EOFException ignored) {
+                // torn last record after a crash
+            } finally {
+                in.close();
+            }
+        }
+
+        ArrayList<Entry> out = new ArrayList<>();
+        for (Entry e : pending.values()) {
+            if (e.file.length() >= e.length) out.add(e);
+        }
+        Collections.sort(out, new Comparator<Entry>() {
+            @Override public int compare(Entry a, Entry b) { return Long.compare(a.id, b.id); }
+        });
+
+        // Drop job files the compacted index no longer references
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String n = f.getName();
+                if (!n.startsWith(JOB_PREFIX) || !n.endsWith(JOB_SUFFIX)) continue;
+                boolean keep = false;
+                for (Entry e : out) if (e.file.equals(f)) { keep = true; break; }
+                if (!keep) f.delete();
+            }
+        }
+
+        // Rewrite the index with only the pending COMMIT records
+        File tmp = new File(dir, INDEX_TMP);
+        DataOutputStream w = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            for (Entry e : out) writeCommit(w, e);
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(idx)) throw new IOException("Cannot replace spool index");
+
+        usedBytes = 0;
+        for (Entry e : out) usedBytes += e.length;
+        openIndex();
+        return out;
+    }
+
+    /**
+     * Starts a new job file. Call {@link Appender#commit} or {@link Appender#abort} when done.
+     *
+     * @throws IOException if the store has been closed
+     */
+    public Appender append() throws IOException {
+        long id;
+        synchronized (this) {
+            if (closed) throw new IOException("Spool closed");
+            if (index == null) openIndex();
+            id = nextId++;
+        }
+        return new Appender(id);
+    }
+
+    /** Opens a sequential reader over a committed job. */
+    public Reader open(Entry e) throws IOException {
+        return new Reader(e);
+    }
+
+    /** Marks a job printed (or abandoned) and deletes its file. */
+    public synchronized void complete(Entry e) {
+        if (index == null) return; // store closed; the job is replayed on next recover()
+        try {
+            index.writeByte(REC_DONE);
+            index.writeLong(e.id);
+            index.flush();
+        } catch (IOException ex) {
+            StatusLog.get().w("Spool", "Index write failed: " + ex.getMessage());
+        }
+        e.file.delete();
+        usedBytes -= e.length;
+    }
+
+    public synchronized long usedBytes() { return usedBytes; }
+
+    /** Closes the index for good; later appends fail and unfinished jobs are replayed by the next store. */
+    public synchronized void close() {
+        closed = true;
+        closeIndex();
+    }
+
+    private synchronized boolean reserve(long n) {
+        if (usedBytes + n > maxBytes) return false;
+        usedBytes += n;
+        return true;
+    }
+
+    private synchronized void release(long n) {
+        usedBytes -= n;
+    }
+
+    private synchronized void commit(Entry e) throws IOException {
+        if (closed || index == null) throw new IOException("Spool closed");
+        writeCommit(index, e);
+        index.flush();
+        indexFile.getFD().sync();
+    }
+
+    private void openIndex() throws IOException {
+        indexFile = new FileOutputStream(new File(dir, INDEX), true);
+        index = new DataOutputStream(new BufferedOutputStream(indexFile));
+    }
+
+    private void closeIndex() {
+        if (index != null) try { index.close(); } catch (IOException ignored) {}
+        index = null;
+        indexFile = null;
+    }
+
+    private static void writeCommit(DataOutputStream w, Entry e) throws IOException {
+        w.writeByte(REC_COMMIT);
+        w.writeLong(e.id);
+        w.writeLong(e.receivedAtMs);
+        w.writeLong(e.length);
+        w.writeUTF(e.source == null ? "" : e.source);
+    }
+
+    private File jobFile(long id) {
+        return new File(dir, JOB_PREFIX + id + JOB_SUFFIX);
+    }
+
+    /** Writes one job through a sliding mapped window. Not thread-safe; one per client. */
+    public final class Appender {
+        public final long id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel ch;
+        private MappedByteBuffer window;
+        private long windowPos;
+        private long length;
+        private boolean closed;
+
+        Appender(long id) throws IOException {
+            this.id = id;
+            this.file = jobFile(id);
+            this.raf = new RandomAccessFile(file, "rw");
+            this.ch = raf.getChannel();
+        }
+
+        public void write(byte[] b, int off, int n) throws IOException {
+            if (!reserve(n)) {
+                throw new IOException("Spool full (" + (maxBytes >> 20) + " MB)");
+            }
+            try {
+                while (n > 0) {
+                    if (window == null || !window.hasRemaining()) {
+                        if (window != null) windowPos += segmentBytes;
+                        window = ch.map(FileChannel.MapMode.READ_WRITE, windowPos, segmentBytes);
+                    }
+                    int k = Math.min(n, window.remaining());
+                    window.put(b, off, k);
+                    off += k;
+                    n -= k;
+                    length += k;
+                }
+            } finally {
+                // A failed map leaves bytes reserved that length (and so abort()) never counts
+                if (n > 0) release(n);
+            }
+        }
+
+        public long length() { return length; }
+
+        /** Flushes the job to disk and records it in the index. */
+        public Entry commit(String source, long receivedAtMs) throws IOException {
+            if (window != null) window.force();
+            window = null;
+            ch.truncate(length);
+            closed = true;
+            raf.close();
+            Entry e = new Entry(id, source, receivedAtMs, length, file);
+            try {
+                SpoolStore.this.commit(e);
+            } catch (IOException ex) {
+                release(length);
+                file.delete();
+                throw ex;
+            }
+            return e;
+        }
+
+        /** Drops a partially received job. Safe to call after {@link #commit}. */
+        public void abort() {
+            if (closed) return;
+            closed = true;
+            window = null;
+            try { raf.close(); } catch (IOException ignored) {}
+            file.delete();
+            release(length);
+        }
+    }
+
+    /** Returns a committed job as successive read-only mapped segments. */
+    public final class Reader implements Segments {
+        private final RandomAccessFile raf;
+        private final FileChannel ch;
+        private final long length;
+        private long pos;
+
+        Reader(Entry e) throws IOException {
+            this.raf = new RandomAccessFile(e.file, "r");
+            this.ch = raf.getChannel();
+            this.length = e.length;
+        }
+
+        @Override public ByteBuffer next() throws IOException {
+            if (pos >= length) return null;
+            int n = (int) Math.min(segmentBytes, length - pos);
+            ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, pos, n);
+            pos += n;
+            return b;
+        }
+
+        @Override public void close() {
+            try { raf.close(); } catch (IOException ignored) {}
+        }
+    }
+}
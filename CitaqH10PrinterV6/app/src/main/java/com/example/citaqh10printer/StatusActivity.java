@@ -1,83 +1,226 @@
 package com.example.citaqh10printer;
 
 import android.app.Activity;
+import android.content.res.ColorStateList;
+import android.graphics.Color;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.TextView;
 
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Shows the lines held in {@link StatusLog}.
+ *
+ * The list reads the log's ring directly by sequence number instead of
+ * keeping a copy. New lines only mark the view stale; it is brought up to
+ * date at most once per frame from a {@link Choreographer} callback, however
+ * many lines arrived. With a level or tag filter, matching sequence numbers
+ * are added to a small index as lines arrive; only changing the filter
+ * rescans the ring.
+ */
 public class StatusActivity extends Activity implements StatusLog.Listener {
 
-    private ArrayAdapter<String> adapter;
-    private final ArrayList<String> data = new ArrayList<>();
+    private static final String[] LEVELS = {"All", "Warnings", "Errors"};
+
+    private final StatusLog log = StatusLog.get();
+    private final LogAdapter adapter = new LogAdapter();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private volatile boolean cleared;
+    private Choreographer choreographer;
+
+    private ListView list;
     private TextView tvCount;
 
+    // Lines shown, fixed between refreshes: [winFirst, winEnd) unfiltered, else index
+    private long winFirst, winEnd;
+
+    // Filter and the sequence numbers that match it, oldest first (circular)
+    private int minLevel = StatusLog.INFO;
+    private String tagFilter = "";
+    private final long[] index = new long[StatusLog.CAPACITY];
+    private int indexHead, indexLen;
+    private long scanned;
+
+    private final Choreographer.FrameCallback frame = new Choreographer.FrameCallback() {
+        @Override public void doFrame(long frameTimeNanos) {
+            frameScheduled.set(false);
+            refresh(false);
+        }
+    };
+
     @Override protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_status);
+        choreographer = Choreographer.getInstance();
 
-        ListView list = findViewById(R.id.list);
+        list = findViewById(R.id.list);
         tvCount = findViewById(R.id.tvCount);
         Button btnRefresh = findViewById(R.id.btnRefresh);
         Button btnClear = findViewById(R.id.btnClear);
+        Spinner spLevel = findViewById(R.id.spLevel);
+        EditText etTagFilter = findViewById(R.id.etTagFilter);
 
-        adapter = new ArrayAdapter<>(this,
-                android.R.layout.simple_list_item_1, data);
         list.setAdapter(adapter);
 
-        btnRefresh.setOnClickListener(v -> reload());
-        btnClear.setOnClickListener(v -> {
-            StatusLog.get().clear();
-            reload();
+        ArrayAdapter<String> levels = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, LEVELS);
+        levels.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spLevel.setAdapter(levels);
+        spLevel.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (position == minLevel) return;
+                minLevel = position;   // LEVELS follow StatusLog.INFO / WARN / ERROR
+                refresh(true);
+            }
+            @Override public void onNothingSelected(AdapterView<?> parent) {}
+        });
+        etTagFilter.addTextChangedListener(new TextWatcher() {
+            @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            @Override public void onTextChanged(CharSequence s, int start, int before, int count) {}
+            @Override public void afterTextChanged(Editable s) {
+                tagFilter = s.toString().trim().toLowerCase();
+                refresh(true);
+            }
+        });
+
+        btnRefresh.setOnClickListener(v -> {
+            refresh(true);
+            list.setSelection(adapter.getCount() - 1);
         });
+        btnClear.setOnClickListener(v -> log.clear());
     }
 
     @Override protected void onResume() {
         super.onResume();
-        StatusLog.get().register(this);
-        reload();
+        log.register(this);
+        refresh(true);
+        list.setSelection(adapter.getCount() - 1);
     }
 
     @Override protected void onPause() {
-        StatusLog.get().unregister(this);
+        log.unregister(this);
+        choreographer.removeFrameCallback(frame);
+        frameScheduled.set(false);
         super.onPause();
     }
 
-    private void reload() {
-        data.clear();
-        data.addAll(StatusLog.get().snapshot());
-        adapter.notifyDataSetChanged();
-        tvCount.setText(data.size() + " lines");
-        // auto-scroll to last
-        if (!data.isEmpty()) {
-            ((ListView) findViewById(R.id.list))
-                    .setSelection(data.size() - 1);
-        }
+    // StatusLog.Listener, on the log's notifier thread
+
+    @Override public void onLogAppended(StatusLog.Entry entry) {
+        scheduleFrame();
+    }
+
+    @Override public void onLogCleared() {
+        cleared = true;
+        scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if (frameScheduled.compareAndSet(false, true)) choreographer.postFrameCallback(frame);
+    }
+
+    // ---- Window over the log ----
+
+    private boolean filtering() {
+        return minLevel > StatusLog.INFO || !tagFilter.isEmpty();
+    }
+
+    private boolean matches(StatusLog.Entry e) {
+        return e.level >= minLevel && (tagFilter.isEmpty() || e.tag.toLowerCase().contains(tagFilter));
     }
 
-    // StatusLog.Listener
-    @Override public void onLogAppended(final String line) {
-        runOnUiThread(new Runnable() {
-            @Override public void run() {
-                data.add(line);
-                adapter.notifyDataSetChanged();
-                tvCount.setText(data.size() + " lines");
-                ((ListView) findViewById(R.id.list))
-                        .setSelection(data.size() - 1);
+    /** Brings the window up to the end of the log; rebuild rescans the filter index. */
+    private void refresh(boolean rebuild) {
+        if (cleared) {
+            cleared = false;
+            rebuild = true;
+        }
+        // Follow new lines only if the last line is on screen
+        boolean follow = list.getLastVisiblePosition() >= adapter.getCount() - 1;
+
+        long first = log.first();
+        long end = log.end();
+        if (filtering()) {
+            if (rebuild) {
+                indexHead = 0;
+                indexLen = 0;
+                scanned = first;
             }
-        });
+            // Forget lines the ring no longer holds
+            while (indexLen > 0 && index[indexHead] < first) {
+                indexHead = (indexHead + 1) % index.length;
+                indexLen--;
+            }
+            long s = Math.max(scanned, first);
+            for (; s < end; s++) {
+                StatusLog.Entry e = log.entry(s);
+                if (e == null) {
+                    if (s >= log.first()) break;   // still being written; next frame
+                    continue;
+                }
+                if (!matches(e)) continue;
+                if (indexLen == index.length) {
+                    indexHead = (indexHead + 1) % index.length;
+                    indexLen--;
+                }
+                index[(indexHead + indexLen) % index.length] = s;
+                indexLen++;
+            }
+            scanned = s;
+        }
+        winFirst = first;
+        winEnd = end;
+        adapter.notifyDataSetChanged();
+
+        long held = end - first;
+        tvCount.setText(filtering() ? adapter.getCount() + " of " + held + " lines" : held + " lines");
+        if (follow && adapter.getCount() > 0) list.setSelection(adapter.getCount() - 1);
     }
 
-    @Override public void onLogCleared() {
-        runOnUiThread(new Runnable() {
-            @Override public void run() {
-                data.clear();
-                adapter.notifyDataSetChanged();
-                tvCount.setText("0 lines");
+    /** Rows are sequence numbers; the text is read from the log when a row is drawn. */
+    private class LogAdapter extends BaseAdapter {
+        private ColorStateList textColors;
+
+        @Override public int getCount() {
+            return filtering() ? indexLen : (int) (winEnd - winFirst);
+        }
+
+        @Override public Object getItem(int position) {
+            return log.entry(getItemId(position));
+        }
+
+        @Override public long getItemId(int position) {
+            return filtering() ? index[(indexHead + position) % index.length] : winFirst + position;
+        }
+
+        @Override public View getView(int position, View convertView, ViewGroup parent) {
+            TextView tv = (TextView) (convertView != null ? convertView
+                    : LayoutInflater.from(parent.getContext())
+                            .inflate(android.R.layout.simple_list_item_1, parent, false));
+            if (textColors == null) textColors = tv.getTextColors();
+            StatusLog.Entry e = log.entry(getItemId(position));
+            if (e == null) {
+                tv.setText("…");   // overwritten since the last refresh
+                tv.setTextColor(Color.GRAY);
+            } else {
+                tv.setText(e.line());
+                if (e.level == StatusLog.ERROR) tv.setTextColor(Color.RED);
+                else if (e.level == StatusLog.WARN) tv.setTextColor(0xFFE65100);
+                else tv.setTextColor(textColors);
             }
-        });
+            return tv;
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,55 +1,252 @@
 package com.example.citaqh10printer;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
-/** Thread-safe in-memory log with listener callbacks (API 22 compatible). */
+/**
+ * In-memory log of the last {@link #CAPACITY} lines, shared by every thread.
+ *
+ * Adding a line never locks: the writer takes a sequence number and stores
+ * an immutable {@link Entry} (time, level, tag and the message or a format
+ * template with its arguments) in that slot of a ring, replacing the line
+ * CAPACITY back. Nothing is formatted until someone reads the line.
+ * Listeners are called on a separate thread, in order, so a slow one only
+ * delays itself.
+ */
 public class StatusLog {
 
+    public static final int INFO = 0;
+    public static final int WARN = 1;
+    public static final int ERROR = 2;
+
+    /** Lines kept; a power of two. */
+    public static final int CAPACITY = 4096;
+
+    /** Called on the log's notifier thread, never on the thread that logged. */
     public interface Listener {
-        void onLogAppended(String line);
+        void onLogAppended(Entry entry);
         void onLogCleared();
     }
 
+    /** One log line; immutable. */
+    public static final class Entry {
+        public final long seq;
+        public final long epochNanos;
+        public final int level;
+        public final String tag;
+        private final String msg;
+        private final Object[] args;
+        private String line;
+
+        Entry(long seq, long epochNanos, int level, String tag, String msg, Object[] args) {
+            this.seq = seq;
+            this.epochNanos = epochNanos;
+            this.level = level;
+            this.tag = tag;
+            this.msg = msg;
+            this.args = args;
+        }
+
+        public String message() {
+            return args == null ? msg : String.format(Locale.US, msg, args);
+        }
+
+        /** "[HH:mm:ss.SSS][tag] WARN: message", formatted on first use. */
+        public String line() {
+            String l = line;
+            if (l == null) {
+                StringBuilder sb = new StringBuilder(32 + tag.length() + msg.length());
+                sb.append('[');
+                appendTime(sb, epochNanos / 1_000_000);
+                sb.append("][").append(tag).append("] ");
+                if (level == WARN) sb.append("WARN: ");
+                else if (level == ERROR) sb.append("ERROR: ");
+                l = sb.append(message()).toString();
+                line = l;   // racy but idempotent
+            }
+            return l;
+        }
+
+        @Override public String toString() { return line(); }
+    }
+
+    private static final int MASK = CAPACITY - 1;
     private static final StatusLog INSTANCE = new StatusLog();
     public static StatusLog get() { return INSTANCE; }
 
-    private final ArrayList<String> lines = new ArrayList<>();
-    private final ArrayList<Listener> listeners = new ArrayList<>();
-    private final SimpleDateFormat ts = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+    private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong next = new AtomicLong();
+    private volatile long clearedBefore;
+    private final AtomicInteger clears = new AtomicInteger();
+    private final long epochOffsetNanos = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Thread notifier;
 
     private StatusLog() {}
 
-    public synchronized void add(String tag, String msg) {
-        String line = "[" + ts.format(new Date()) + "][" + tag + "] " + msg;
-        lines.add(line);
-        for (Listener l : new ArrayList<>(listeners)) {
-            try { l.onLogAppended(line); } catch (Throwable ignored) {}
-        }
+    public void add(String tag, String msg) { append(INFO, tag, msg, null); }
+
+    public void i(String tag, String msg) { append(INFO, tag, msg, null); }
+    public void w(String tag, String msg) { append(WARN, tag, msg, null); }
+    public void e(String tag, String msg) { append(ERROR, tag, msg, null); }
+
+    /** Like {@link #i(String, String)}; the template is only formatted when the line is read. */
+    public void i(String tag, String template, Object... args) { append(INFO, tag, template, args); }
+    public void w(String tag, String template, Object... args) { append(WARN, tag, template, args); }
+    public void e(String tag, String template, Object... args) { append(ERROR, tag, template, args); }
+
+    /**
+     * The first max bytes of b[off..off+len) as hex, for a template argument: the
+     * bytes are copied now (b is usually a reused buffer) and only formatted when
+     * the line is read.
+     */
+    public static Object hex(byte[] b, int off, int len, int max) {
+        final byte[] head = Arrays.copyOfRange(b, off, off + Math.min(len, max));
+        return new Object() {
+            @Override public String toString() {
+                char[] c = new char[Math.max(0, head.length * 3 - 1)];
+                for (int i = 0; i < head.length; i++) {
+                    if (i > 0) c[i * 3 - 1] = ' ';
+                    c[i * 3] = HEX[(head[i] >> 4) & 0xF];
+                    c[i * 3 + 1] = HEX[head[i] & 0xF];
+                }
+                return new String(c);
+            }
+        };
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private void append(int level, String tag, String msg, Object[] args) {
+        long seq = next.getAndIncrement();
+        ring.set((int) seq & MASK, new Entry(seq, epochOffsetNanos + System.nanoTime(), level, tag, msg, args));
+        Thread t = notifier;
+        if (t != null) LockSupport.unpark(t);
     }
 
-    public void i(String tag, String msg) { add(tag, msg); }
-    public void w(String tag, String msg) { add(tag, "WARN: " + msg); }
-    public void e(String tag, String msg) { add(tag, "ERROR: " + msg); }
+    // ---- Reading ----
+
+    /** Sequence number of the oldest line still held. */
+    public long first() {
+        return Math.max(clearedBefore, next.get() - CAPACITY);
+    }
+
+    /** Sequence number the next line will get. */
+    public long end() {
+        return next.get();
+    }
 
-    public synchronized ArrayList<String> snapshot() {
-        return new ArrayList<>(lines);
+    /** The line with this sequence number, or null if it has been overwritten, cleared or is still being written. */
+    public Entry entry(long seq) {
+        if (seq < clearedBefore) return null;
+        Entry e = ring.get((int) seq & MASK);
+        return e != null && e.seq == seq ? e : null;
     }
 
-    public synchronized void clear() {
-        lines.clear();
-        for (Listener l : new ArrayList<>(listeners)) {
-            try { l.onLogCleared(); } catch (Throwable ignored) {}
+    /** Formatted copy of every line held, oldest first. */
+    public ArrayList<String> snapshot() {
+        long end = end();
+        ArrayList<String> out = new ArrayList<>((int) (end - first()));
+        for (long s = first(); s < end; s++) {
+            Entry e = entry(s);
+            if (e != null) out.add(e.line());
         }
+        return out;
     }
 
-    public synchronized void register(Listener l) {
-        if (!listeners.contains(l)) listeners.add(l);
+    public void clear() {
+        clearedBefore = next.get();
+        clears.incrementAndGet();
+        Thread t = notifier;
+        if (t != null) LockSupport.unpark(t);
     }
 
-    public synchronized void unregister(Listener l) {
+    // ---- Listeners ----
+
+    public void register(Listener l) {
+        listeners.addIfAbsent(l);
+        startNotifier();
+    }
+
+    public void unregister(Listener l) {
         listeners.remove(l);
     }
-}
\ No newline at end of file
+
+    private synchronized void startNotifier() {
+        if (notifier != null) return;
+        Thread t = new Thread(new Runnable() {
+            @Override public void run() { notifyLoop(); }
+        }, "StatusLog-Notify");
+        t.setDaemon(true);
+        notifier = t;
+        t.start();
+    }
+
+    /** Delivers lines to listeners in order; lines overwritten before delivery are skipped. */
+    private void notifyLoop() {
+        long delivered = next.get();
+        int clearsSeen = clears.get();
+        int waits = 0;
+        while (true) {
+            if (clears.get() != clearsSeen) {
+                clearsSeen = clears.get();
+                delivered = Math.max(delivered, clearedBefore);
+                for (Listener l : listeners) {
+                    try { l.onLogCleared(); } catch (Throwable ignored) {}
+                }
+            }
+            long end = next.get();
+            delivered = Math.max(delivered, end - CAPACITY);
+            while (delivered < end) {
+                Entry e = ring.get((int) delivered & MASK);
+                if (e == null || e.seq < delivered) {
+                    // Still being written; give up on it if its writer was lapped while stalled
+                    if (++waits < 1000) break;
+                    e = null;
+                }
+                waits = 0;
+                if (e == null) {
+                    delivered++;
+                    continue;
+                }
+                if (e.seq == delivered && delivered >= clearedBefore) {
+                    for (Listener l : listeners) {
+                        try { l.onLogAppended(e); } catch (Throwable ignored) {}
+                    }
+                }
+                delivered++;
+            }
+            if (delivered < end) {
+                LockSupport.parkNanos(100_000);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // ---- Formatting ----
+
+    private static void appendTime(StringBuilder sb, long epochMs) {
+        long local = epochMs + TimeZone.getDefault().getOffset(epochMs);
+        long msOfDay = local % 86_400_000L;
+        if (msOfDay < 0) msOfDay += 86_400_000L;
+        pad(sb, (int) (msOfDay / 3_600_000), 2).append(':');
+        pad(sb, (int) (msOfDay / 60_000 % 60), 2).append(':');
+        pad(sb, (int) (msOfDay / 1000 % 60), 2).append('.');
+        pad(sb, (int) (msOfDay % 1000), 3);
+    }
+
+    private static StringBuilder pad(StringBuilder sb, int v, int digits) {
+        if (digits == 3 && v < 100) sb.append('0');
+        if (v < 10) sb.append('0');
+        return sb.append(v);
+    }
+}
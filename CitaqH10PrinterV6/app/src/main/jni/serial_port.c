@@ -2,46 +2,145 @@
 #include <termios.h>
 #include <unistd.h>
 #include <fcntl.h>
+#include <errno.h>
+#include <stdio.h>
+#include <string.h>
 #include <sys/types.h>
 #include <sys/stat.h>
+#include <sys/ioctl.h>
+#include <poll.h>
 #include <android/log.h>
 
 #define LOG_TAG "SerialPortJNI"
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 
+/* Must match SerialPort.FLOW_* */
+#define FLOW_RTS_CTS  0x1
+#define FLOW_XON_XOFF 0x2
+
+/* java.io.FileDescriptor's int field: "descriptor" on Android, "fd" on a host JDK */
+#ifndef FD_FIELD
+#define FD_FIELD "descriptor"
+#endif
+
+static jfieldID gDescriptorField;
+
+/* Every rate termios knows by name; 0 when the rate needs a custom divisor. */
 static speed_t getBaud(jint baudrate) {
     switch (baudrate) {
+        case 1200: return B1200;
+        case 2400: return B2400;
+        case 4800: return B4800;
         case 9600: return B9600;
         case 19200: return B19200;
         case 38400: return B38400;
         case 57600: return B57600;
         case 115200: return B115200;
         case 230400: return B230400;
-        default: return B115200;
+#ifdef B460800
+        case 460800: return B460800;
+#endif
+#ifdef B500000
+        case 500000: return B500000;
+#endif
+#ifdef B576000
+        case 576000: return B576000;
+#endif
+#ifdef B921600
+        case 921600: return B921600;
+#endif
+#ifdef B1000000
+        case 1000000: return B1000000;
+#endif
+#ifdef B1152000
+        case 1152000: return B1152000;
+#endif
+#ifdef B1500000
+        case 1500000: return B1500000;
+#endif
+#ifdef B2000000
+        case 2000000: return B2000000;
+#endif
+#ifdef B2500000
+        case 2500000: return B2500000;
+#endif
+#ifdef B3000000
+        case 3000000: return B3000000;
+#endif
+#ifdef B3500000
+        case 3500000: return B3500000;
+#endif
+#ifdef B4000000
+        case 4000000: return B4000000;
+#endif
+        default: return 0;
+    }
+}
+
+/* Non-standard rate through termios2/BOTHER. Returns 0 on success. */
+static int setCustomBaud(int fd, jint baudrate) {
+#if defined(TCGETS2) && defined(TCSETS2) && defined(BOTHER)
+    struct termios2 t2;
+    if (ioctl(fd, TCGETS2, &t2)) return -1;
+    t2.c_cflag &= ~CBAUD;
+    t2.c_cflag |= BOTHER;
+    t2.c_ispeed = (speed_t) baudrate;
+    t2.c_ospeed = (speed_t) baudrate;
+    if (ioctl(fd, TCSETS2, &t2)) return -1;
+    if (ioctl(fd, TCGETS2, &t2)) return -1;
+    if (t2.c_ospeed != (speed_t) baudrate) {
+        LOGW("Requested %d baud, UART runs at %u", baudrate, (unsigned) t2.c_ospeed);
+    }
+    return 0;
+#else
+    (void) fd; (void) baudrate;
+    errno = ENOTSUP;
+    return -1;
+#endif
+}
+
+static void throwIOException(JNIEnv* env, const char* fmt, const char* a, int err) {
+    char msg[256];
+    snprintf(msg, sizeof(msg), fmt, a, strerror(err));
+    LOGE("%s", msg);
+    jclass cls = (*env)->FindClass(env, "java/io/IOException");
+    if (cls != NULL) (*env)->ThrowNew(env, cls, msg);
+}
+
+static int getFd(JNIEnv* env, jobject fileDescriptor) {
+    if (gDescriptorField == NULL) {
+        jclass cFileDescriptor = (*env)->FindClass(env, "java/io/FileDescriptor");
+        gDescriptorField = (*env)->GetFieldID(env, cFileDescriptor, FD_FIELD, "I");
     }
+    return (*env)->GetIntField(env, fileDescriptor, gDescriptorField);
 }
 
 JNIEXPORT jobject JNICALL
 Java_com_example_citaqh10printer_SerialPort_open(JNIEnv* env, jclass clazz, jstring path, jint baudrate, jint flags) {
     const char* cpath = (*env)->GetStringUTFChars(env, path, NULL);
-    int fd = open(cpath, O_RDWR | O_NOCTTY | O_SYNC);
+    /* No O_SYNC: write() returns once the tty layer has the bytes; callers
+     * wait for TIOCOUTQ to empty at job boundaries instead of paying on every write. */
+    int fd = open(cpath, O_RDWR | O_NOCTTY);
     if (fd == -1) {
-        LOGE("Cannot open %s", cpath);
+        throwIOException(env, "Cannot open %s: %s", cpath, errno);
         (*env)->ReleaseStringUTFChars(env, path, cpath);
         return NULL;
     }
 
     struct termios cfg;
     if (tcgetattr(fd, &cfg)) {
-        LOGE("tcgetattr() failed");
+        throwIOException(env, "tcgetattr(%s) failed: %s", cpath, errno);
         close(fd);
         (*env)->ReleaseStringUTFChars(env, path, cpath);
         return NULL;
     }
 
+    speed_t speed = getBaud(baudrate);
     cfmakeraw(&cfg);
-    cfsetispeed(&cfg, getBaud(baudrate));
-    cfsetospeed(&cfg, getBaud(baudrate));
+    /* Custom rates start from a valid named speed and are patched below */
+    cfsetispeed(&cfg, speed != 0 ? speed : B38400);
+    cfsetospeed(&cfg, speed != 0 ? speed : B38400);
 
     cfg.c_cflag |= (CLOCAL | CREAD);
     cfg.c_cflag &= ~CSIZE;
@@ -49,11 +148,32 @@ Java_com_example_citaqh10printer_SerialPort_open(JNIEnv* env, jclass clazz, jstr
     cfg.c_cflag &= ~PARENB;
     cfg.c_cflag &= ~CSTOPB;
 
+    /* Flow control: let the printer pace us instead of overrunning its buffer */
+    cfg.c_cflag &= ~CRTSCTS;
+    cfg.c_iflag &= ~(IXON | IXOFF | IXANY);
+    if (flags & FLOW_RTS_CTS) {
+        cfg.c_cflag |= CRTSCTS;
+    }
+    if (flags & FLOW_XON_XOFF) {
+        cfg.c_iflag |= (IXON | IXOFF);
+        cfg.c_cc[VSTART] = 0x11; /* DC1 */
+        cfg.c_cc[VSTOP]  = 0x13; /* DC3 */
+    }
+
     cfg.c_cc[VMIN] = 1;
     cfg.c_cc[VTIME] = 0;
 
     if (tcsetattr(fd, TCSANOW, &cfg)) {
-        LOGE("tcsetattr() failed");
+        throwIOException(env, "tcsetattr(%s) failed: %s", cpath, errno);
+        close(fd);
+        (*env)->ReleaseStringUTFChars(env, path, cpath);
+        return NULL;
+    }
+
+    if (speed == 0 && setCustomBaud(fd, baudrate)) {
+        char rate[16];
+        snprintf(rate, sizeof(rate), "%d", baudrate);
+        throwIOException(env, "Baud rate %s not supported by this UART: %s", rate, errno);
         close(fd);
         (*env)->ReleaseStringUTFChars(env, path, cpath);
         return NULL;
@@ -63,13 +183,78 @@ Java_com_example_citaqh10printer_SerialPort_open(JNIEnv* env, jclass clazz, jstr
 
     jclass cFileDescriptor = (*env)->FindClass(env, "java/io/FileDescriptor");
     jmethodID iCtor = (*env)->GetMethodID(env, cFileDescriptor, "<init>", "()V");
-    jfieldID descriptorID = (*env)->GetFieldID(env, cFileDescriptor, "descriptor", "I");
+    jfieldID descriptorID = (*env)->GetFieldID(env, cFileDescriptor, FD_FIELD, "I");
     jobject fileDescriptor = (*env)->NewObject(env, cFileDescriptor, iCtor);
     (*env)->SetIntField(env, fileDescriptor, descriptorID, (jint)fd);
 
     return fileDescriptor;
 }
 
+/* Writes all of buf[off, off+len) from a direct ByteBuffer. Returns bytes written. */
+JNIEXPORT jint JNICALL
+Java_com_example_citaqh10printer_SerialPort_writeNative(JNIEnv* env, jclass clazz, jobject fdObj,
+                                                        jobject buf, jint off, jint len) {
+    int fd = getFd(env, fdObj);
+    char* base = (char*) (*env)->GetDirectBufferAddress(env, buf);
+    if (base == NULL) {
+        throwIOException(env, "%s: %s", "Not a direct buffer", EINVAL);
+        return -1;
+    }
+    jint done = 0;
+    while (done < len) {
+        ssize_t n = write(fd, base + off + done, (size_t) (len - done));
+        if (n < 0) {
+            if (errno == EINTR) continue;
+            throwIOException(env, "%s: %s", "write", errno);
+            return done;
+        }
+        done += (jint) n;
+    }
+    return done;
+}
+
+/* Reads up to len bytes, waiting at most timeoutMs. Returns 0 on timeout, -1 once the fd is gone. */
+JNIEXPORT jint JNICALL
+Java_com_example_citaqh10printer_SerialPort_readNative(JNIEnv* env, jclass clazz, jobject fdObj,
+                                                       jbyteArray buf, jint off, jint len, jint timeoutMs) {
+    int fd = getFd(env, fdObj);
+    if (fd < 0) return -1;
+    struct pollfd p;
+    p.fd = fd;
+    p.events = POLLIN;
+    p.revents = 0;
+    int r = poll(&p, 1, timeoutMs);
+    if (r < 0) {
+        if (errno == EINTR) return 0;
+        throwIOException(env, "%s: %s", "poll", errno);
+        return -1;
+    }
+    if (r == 0) return 0;
+    if (p.revents & (POLLNVAL | POLLERR | POLLHUP)) return -1;
+
+    jbyte tmp[1024];
+    ssize_t n = read(fd, tmp, (size_t) (len < (jint) sizeof(tmp) ? len : (jint) sizeof(tmp)));
+    if (n < 0) {
+        if (errno == EINTR || errno == EAGAIN) return 0;
+        throwIOException(env, "%s: %s", "read", errno);
+        return -1;
+    }
+    (*env)->SetByteArrayRegion(env, buf, off, (jsize) n, tmp);
+    return (jint) n;
+}
+
+/* Bytes written but not yet sent by the tty/UART driver (TIOCOUTQ). */
+JNIEXPORT jint JNICALL
+Java_com_example_citaqh10printer_SerialPort_outputQueueNative(JNIEnv* env, jclass clazz, jobject fdObj) {
+    int fd = getFd(env, fdObj);
+    int pending = 0;
+    if (ioctl(fd, TIOCOUTQ, &pending)) {
+        throwIOException(env, "%s: %s", "TIOCOUTQ", errno);
+        return -1;
+    }
+    return pending;
+}
+
 JNIEXPORT void JNICALL
 Java_com_example_citaqh10printer_SerialPort_closeNative(JNIEnv* env, jobject thiz) {
     // Streams close the fd; nothing to do.
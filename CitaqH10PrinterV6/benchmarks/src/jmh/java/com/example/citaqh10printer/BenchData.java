@@ -0,0 +1,82 @@
+package com.example.citaqh10printer;
+
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Synthetic inputs shared by the benchmarks. */
+public final class BenchData {
+
+    private BenchData() {}
+
+    /** Bytes moved per benchmark call; JMH reports it as bytes/s next to ops/s. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /** Photo-like ARGB image: gradients, a few shapes and noise. */
+    static DitherEngine.PixelSource image(final int w, final int h) {
+        final int[] px = new int[w * h];
+        Random rnd = new Random(42);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int g = (x * 255 / w + y * 128 / h) / 2 + rnd.nextInt(32);
+                int dx = x - w / 2, dy = y - h / 2;
+                if (dx * dx + dy * dy < h * h / 9) g = 255 - g;
+                g = Math.max(0, Math.min(255, g));
+                px[y * w + x] = 0xFF000000 | g << 16 | (g * 3 / 4) << 8 | (255 - g);
+            }
+        }
+        return new DitherEngine.PixelSource() {
+            @Override public int width() { return w; }
+            @Override public int height() { return h; }
+            @Override public void getRows(int[] dst, int y, int rows) {
+                System.arraycopy(px, y * w, dst, 0, rows * w);
+            }
+        };
+    }
+
+    /** A typical driver job: styled text lines, a 576-dot logo, item lines, QR, cut. */
+    static byte[] receiptJob() {
+        EscPosBuilder b = new EscPosBuilder(64 * 1024);
+        b.initialize().align(EscPosBuilder.ALIGN_CENTER)
+                .image(image(576, 160), DitherEngine.Mode.FLOYD_STEINBERG, 0)
+                .bold(true).size(2, 2).line("CORNER CAFE").size(1, 1).bold(false)
+                .align(EscPosBuilder.ALIGN_LEFT);
+        for (int i = 0; i < 30; i++) {
+            b.align(EscPosBuilder.ALIGN_LEFT).bold(false).font(0)
+                    .column("Item number " + i, 36, false).column(i + ".50", 12, true).newline();
+        }
+        b.bold(true).column("TOTAL", 36, false).column("123.40", 12, true).newline().bold(false)
+                .align(EscPosBuilder.ALIGN_CENTER)
+                .qr("https://example.com/r/000123456789", 6, EscPosBuilder.QR_ECC_M)
+                .barcode(EscPosBuilder.BARCODE_CODE128, "{B000123456789", 80, 3, EscPosBuilder.HRI_BELOW)
+                .feed(3).cut();
+        return b.toByteArray();
+    }
+
+    /** Sink that only counts. */
+    static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override public void write(int b) {
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
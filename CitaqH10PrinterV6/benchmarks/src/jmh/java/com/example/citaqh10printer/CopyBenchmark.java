@@ -0,0 +1,105 @@
+package com.example.citaqh10printer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The share services' receive loop: a loopback socket read through a
+ * BufferedInputStream in 4 KB reads into an {@link EscPosPipeline}, with all
+ * rewrites off (pass-through) or on. A background thread keeps the socket
+ * full with receipt jobs; one operation receives one job.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CopyBenchmark {
+
+    @Param({"false", "true"})
+    public boolean rewrite;
+
+    private ServerSocket server;
+    private Socket client;
+    private Socket accepted;
+    private Thread pump;
+    private volatile boolean running;
+
+    private InputStream in;
+    private final byte[] buf = new byte[4096];
+    private final BenchData.CountingSink sink = new BenchData.CountingSink();
+    private EscPosPipeline pipeline;
+    private int jobLength;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final byte[] job = BenchData.receiptJob();
+        jobLength = job.length;
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        accepted = server.accept();
+        in = new BufferedInputStream(accepted.getInputStream());
+
+        running = true;
+        final OutputStream out = client.getOutputStream();
+        pump = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    while (running) out.write(job);
+                } catch (IOException ignored) {
+                    // socket closed in tearDown
+                }
+            }
+        }, "CopyBenchmark-pump");
+        pump.setDaemon(true);
+        pump.start();
+
+        EscPosPipeline.Options o = new EscPosPipeline.Options();
+        if (rewrite) {
+            o.optimizeModes = true;
+            o.skipBlankRows = true;
+            o.trimRight = true;
+            o.mergeBitImages = true;
+            o.splitBands = true;
+        }
+        pipeline = new EscPosPipeline(o);
+        pipeline.setTarget(sink);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        running = false;
+        client.close();
+        accepted.close();
+        server.close();
+        pump.join(1000);
+    }
+
+    @Benchmark
+    public long receiveJob(BenchData.Bytes bytes) throws IOException {
+        int left = jobLength;
+        while (left > 0) {
+            int n = in.read(buf, 0, Math.min(buf.length, left));
+            if (n < 0) throw new IOException("pump stopped");
+            pipeline.write(buf, 0, n);
+            left -= n;
+        }
+        bytes.bytes += jobLength;
+        return sink.count;
+    }
+}
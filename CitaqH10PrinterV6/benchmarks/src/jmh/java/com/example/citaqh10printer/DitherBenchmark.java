@@ -0,0 +1,57 @@
+package com.example.citaqh10printer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One receipt image through {@link DitherEngine}, in the 64-row pieces
+ * printBitmap uses. bytes/s counts packed output.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class DitherBenchmark {
+
+    private static final int HEIGHT = 800;
+    private static final int PIECE_ROWS = 64;
+
+    /** 58 mm, 80 mm and 104 mm heads. */
+    @Param({"384", "576", "832"})
+    public int width;
+
+    @Param({"THRESHOLD", "FLOYD_STEINBERG", "ORDERED", "ATKINSON"})
+    public DitherEngine.Mode mode;
+
+    /** 1 = caller thread only, 0 = all cores. */
+    @Param({"1", "0"})
+    public int threads;
+
+    private DitherEngine.PixelSource src;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        src = BenchData.image(width, HEIGHT);
+        out = new byte[(width + 7) / 8 * PIECE_ROWS];
+    }
+
+    @Benchmark
+    public byte[] dither(BenchData.Bytes bytes) {
+        DitherEngine e = new DitherEngine(width, mode);
+        if (threads > 0) e.setThreads(threads);
+        for (int y = 0; y < HEIGHT; y += PIECE_ROWS) {
+            int n = Math.min(PIECE_ROWS, HEIGHT - y);
+            e.convert(src, y, n, out, 0);
+            bytes.bytes += n * e.bytesPerRow();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.citaqh10printer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Command encoding: QR through {@link EscPosBuilder}, a receipt through {@link ReceiptTemplate}. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    private static final String URL = "https://example.com/r/000123456789?store=42&till=7";
+    private static final String TEMPLATE = "@init\n@center\n@bold on\nCORNER CAFE\n@bold off\n"
+            + "Order ${order}   ${date:16r}\n@left\n@rule -\n@items name:* qty:3r price:8r\n@rule -\n"
+            + "TOTAL${total:*r}\n@center\n@qr url 6 M\n@feed 3\n@cut\n";
+
+    private final EscPosBuilder builder = new EscPosBuilder();
+    private ReceiptTemplate template;
+    private ReceiptTemplate.Receipt receipt;
+
+    @Setup
+    public void setUp() {
+        template = ReceiptTemplate.compile(TEMPLATE, 576);
+        receipt = template.newReceipt()
+                .set("order", "A-1042").set("date", "2026-10-17 10:22")
+                .set("total", "42.10").set("url", URL);
+        for (int i = 0; i < 12; i++) receipt.addItem("Item number " + i, "1", i + ".50");
+    }
+
+    @Benchmark
+    public EscPosBuilder qr(BenchData.Bytes bytes) {
+        builder.reset().qr(URL, 6, EscPosBuilder.QR_ECC_H);
+        bytes.bytes += builder.size();
+        return builder;
+    }
+
+    @Benchmark
+    public EscPosBuilder receiptTemplate(BenchData.Bytes bytes) {
+        builder.reset();
+        template.render(receipt, builder);
+        bytes.bytes += builder.size();
+        return builder;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.citaqh10printer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * ESC/POS stream scanning: the parser alone, as the share services run it
+ * for the job summary, and the full rewrite pipeline. Input arrives in the
+ * services' 4 KB reads; bytes/s counts input.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ScanBenchmark {
+
+    private static final int CHUNK = 4096;
+
+    private byte[] job;
+    private final BenchData.CountingSink sink = new BenchData.CountingSink();
+
+    private static final class Counter extends EscPosParser.Adapter {
+        int commands;
+
+        @Override public void onCommand(int cmd, byte[] p, int n) {
+            commands++;
+        }
+
+        @Override public void onBlockStart(int cmd, byte[] p, int n, long dataLen) {
+            commands++;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        job = BenchData.receiptJob();
+    }
+
+    @Benchmark
+    public int parse(BenchData.Bytes bytes) throws IOException {
+        Counter c = new Counter();
+        EscPosParser parser = new EscPosParser(c);
+        for (int off = 0; off < job.length; off += CHUNK) {
+            parser.feed(job, off, Math.min(CHUNK, job.length - off));
+        }
+        parser.finish();
+        bytes.bytes += job.length;
+        return c.commands;
+    }
+
+    @Benchmark
+    public long rewrite(BenchData.Bytes bytes) throws IOException {
+        EscPosPipeline.Options o = new EscPosPipeline.Options();
+        o.optimizeModes = true;
+        o.collapseSpaces = true;
+        o.skipBlankRows = true;
+        o.trimRight = true;
+        o.scaleToDots = 576;
+        o.mergeBitImages = true;
+        o.splitBands = true;
+        EscPosPipeline p = new EscPosPipeline(o);
+        p.setTarget(sink);
+        for (int off = 0; off < job.length; off += CHUNK) {
+            p.write(job, off, Math.min(CHUNK, job.length - off));
+        }
+        p.finish();
+        bytes.bytes += job.length;
+        return p.bytesOut();
+    }
+}
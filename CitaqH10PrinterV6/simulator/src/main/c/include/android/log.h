@@ -0,0 +1,13 @@
+/* Host build: the JNI code's Android logging goes to stderr. */
+#ifndef SIM_ANDROID_LOG_H
+#define SIM_ANDROID_LOG_H
+
+#include <stdio.h>
+
+#define ANDROID_LOG_WARN  5
+#define ANDROID_LOG_ERROR 6
+
+#define __android_log_print(prio, tag, ...) \
+    (fprintf(stderr, "%s: ", (tag)), fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+
+#endif
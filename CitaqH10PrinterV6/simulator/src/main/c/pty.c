@@ -0,0 +1,46 @@
+#define _GNU_SOURCE
+#include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+/* Pseudo-terminal pair for the simulator: the master end is the printer. */
+
+static void throwIOException(JNIEnv* env, const char* what, int err) {
+    char msg[128];
+    snprintf(msg, sizeof(msg), "%s: %s", what, strerror(err));
+    jclass cls = (*env)->FindClass(env, "java/io/IOException");
+    if (cls != NULL) (*env)->ThrowNew(env, cls, msg);
+}
+
+static jobject newFileDescriptor(JNIEnv* env, int fd) {
+    jclass c = (*env)->FindClass(env, "java/io/FileDescriptor");
+    jmethodID ctor = (*env)->GetMethodID(env, c, "<init>", "()V");
+    jfieldID field = (*env)->GetFieldID(env, c, "fd", "I");
+    jobject o = (*env)->NewObject(env, c, ctor);
+    (*env)->SetIntField(env, o, field, fd);
+    return o;
+}
+
+/* Opens a master; returns {FileDescriptor master, String slavePath}. */
+JNIEXPORT jobjectArray JNICALL
+Java_com_example_citaqh10printer_sim_Pty_openNative(JNIEnv* env, jclass clazz) {
+    int fd = posix_openpt(O_RDWR | O_NOCTTY);
+    if (fd < 0) {
+        throwIOException(env, "posix_openpt", errno);
+        return NULL;
+    }
+    char name[128];
+    if (grantpt(fd) || unlockpt(fd) || ptsname_r(fd, name, sizeof(name))) {
+        int err = errno;
+        close(fd);
+        throwIOException(env, "pty setup", err);
+        return NULL;
+    }
+    jobjectArray r = (*env)->NewObjectArray(env, 2, (*env)->FindClass(env, "java/lang/Object"), NULL);
+    (*env)->SetObjectArrayElement(env, r, 0, newFileDescriptor(env, fd));
+    (*env)->SetObjectArrayElement(env, r, 1, (*env)->NewStringUTF(env, name));
+    return r;
+}
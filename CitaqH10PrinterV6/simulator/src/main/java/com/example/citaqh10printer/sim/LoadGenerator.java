@@ -0,0 +1,96 @@
+package com.example.citaqh10printer.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * N concurrent raw TCP clients, each sending its share of jobs one connection
+ * per job, as POS terminals do. Every job ends with a {@code #SIMJOB:<id>#}
+ * trailer so the printer can tell when it has all of it; with
+ * {@code statusQuery} the client then sends DLE EOT 1 and waits for the answer
+ * before closing.
+ */
+final class LoadGenerator {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] DLE_EOT_1 = {0x10, 0x04, 0x01};
+
+    private final InetSocketAddress address;
+    private final int clients;
+    private final int jobsPerClient;
+    private final byte[] body;
+    private final boolean statusQuery;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    /** Job id to System.nanoTime() when its client connected. */
+    final ConcurrentHashMap<Long, Long> starts = new ConcurrentHashMap<>();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong statusTimeouts = new AtomicLong();
+
+    LoadGenerator(InetSocketAddress address, int clients, int jobsPerClient, byte[] body, boolean statusQuery) {
+        this.address = address;
+        this.clients = clients;
+        this.jobsPerClient = jobsPerClient;
+        this.body = body;
+        this.statusQuery = statusQuery;
+    }
+
+    int totalJobs() {
+        return clients * jobsPerClient;
+    }
+
+    /** Runs every client to completion. */
+    void run() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Thread t = new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int j = 0; j < jobsPerClient; j++) sendJob(nextId.getAndIncrement());
+                }
+            }, "LoadClient-" + (c + 1));
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) t.join();
+    }
+
+    private void sendJob(long id) {
+        byte[] trailer = ("\n#SIMJOB:" + id + "#\n").getBytes(ASCII);
+        starts.put(id, System.nanoTime());
+        Socket s = new Socket();
+        try {
+            s.connect(address, 5000);
+            OutputStream out = s.getOutputStream();
+            out.write(body);
+            out.write(trailer);
+            if (statusQuery) {
+                out.write(DLE_EOT_1);
+                out.flush();
+                s.setSoTimeout(5_000);
+                InputStream in = s.getInputStream();
+                try {
+                    if (in.read() < 0) statusTimeouts.incrementAndGet();
+                } catch (java.net.SocketTimeoutException e) {
+                    statusTimeouts.incrementAndGet();
+                }
+            }
+            out.flush();
+            s.shutdownOutput();
+            bytesSent.addAndGet(body.length + trailer.length + (statusQuery ? DLE_EOT_1.length : 0));
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            starts.remove(id);
+        } finally {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.citaqh10printer.sim;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Pseudo-terminal pair. The slave path stands in for /dev/ttyS1 and is opened
+ * with the app's SerialPort; the simulated printer reads and writes the master.
+ */
+final class Pty implements Closeable {
+    static {
+        System.loadLibrary("simpty");
+    }
+
+    final String slavePath;
+    final FileInputStream master;
+    final FileOutputStream masterOut;
+    // Held open so the master never sees a hangup while SerialSession reopens the slave
+    private final FileInputStream slaveHold;
+
+    private Pty(FileDescriptor fd, String slavePath) throws IOException {
+        this.slavePath = slavePath;
+        this.master = new FileInputStream(fd);
+        this.masterOut = new FileOutputStream(fd);
+        this.slaveHold = new FileInputStream(slavePath);
+    }
+
+    static Pty open() throws IOException {
+        Object[] r = openNative();
+        return new Pty((FileDescriptor) r[0], (String) r[1]);
+    }
+
+    @Override public void close() {
+        try { slaveHold.close(); } catch (IOException ignored) {}
+        try { master.close(); } catch (IOException ignored) {}
+    }
+
+    private static native Object[] openNative() throws IOException;
+}
@@ -0,0 +1,240 @@
+package com.example.citaqh10printer.sim;
+
+import com.example.citaqh10printer.JobCapture;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends jobs recorded by {@link JobCapture} back to a share port.
+ *
+ * Each recorded connection becomes one client connection, sent chunk by chunk
+ * as it was read on the device. At the original rate the connections start
+ * with their recorded spacing and chunks keep their recorded gaps; a factor
+ * speeds both up, and "max" sends everything back to back. At most
+ * {@code --concurrency} connections are open at once; a job that cannot start
+ * on time is counted as late. A job is done when the bridge closes the
+ * connection, i.e. once it is spooled.
+ */
+public final class Replay {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: Replay [options] <capture file or directory>...",
+            "  --host H          bridge address (127.0.0.1)",
+            "  --port N          send every job to this port (default: the port it was captured on)",
+            "  --rate R          original | max | speed-up factor, e.g. 4 (original)",
+            "  --concurrency N   most connections open at once (8)",
+            "  --loop N          play the capture set N times (1)");
+
+    /** One recorded connection. */
+    private static final class Job {
+        long startMicros;          // absolute, from the file's start time
+        int port;
+        String source;
+        final List<byte[]> chunks = new ArrayList<>();
+        final List<Long> offsets = new ArrayList<>();   // micros since the job's start
+        long bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 0, concurrency = 8, loops = 1;
+        double factor = 1;
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            switch (a) {
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--concurrency": concurrency = Math.max(1, Integer.parseInt(args[++i])); break;
+                case "--loop": loops = Math.max(1, Integer.parseInt(args[++i])); break;
+                case "--rate": {
+                    String r = args[++i];
+                    factor = r.equals("original") ? 1 : r.equals("max") ? 0 : Double.parseDouble(r);
+                    break;
+                }
+                case "--help":
+                    System.out.println(USAGE);
+                    return;
+                default:
+                    if (a.startsWith("--")) {
+                        System.err.println("Unknown option " + a + "\n" + USAGE);
+                        System.exit(2);
+                    }
+                    inputs.add(new File(a));
+            }
+        }
+        List<Job> jobs = new ArrayList<>();
+        for (File f : inputs) load(f, jobs);
+        if (jobs.isEmpty()) {
+            System.err.println("No captured jobs found\n" + USAGE);
+            System.exit(1);
+        }
+        Collections.sort(jobs, new Comparator<Job>() {
+            @Override public int compare(Job a, Job b) { return Long.compare(a.startMicros, b.startMicros); }
+        });
+        long origin = jobs.get(0).startMicros;
+        Job last = jobs.get(jobs.size() - 1);
+        long span = last.startMicros - origin + (last.offsets.isEmpty() ? 0 : last.offsets.get(last.offsets.size() - 1));
+        long recordedBytes = 0;
+        for (Job j : jobs) recordedBytes += j.bytes;
+        System.out.printf(Locale.US, "Captured: %d jobs, %d bytes over %.1f s%n",
+                jobs.size(), recordedBytes, span / 1e6);
+
+        for (int loop = 1; loop <= loops; loop++) {
+            if (loops > 1) System.out.println("Pass " + loop);
+            run(jobs, origin, host, port, factor, concurrency);
+        }
+    }
+
+    private static void run(final List<Job> jobs, final long origin, final String host, final int port,
+                            final double factor, int concurrency) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong sent = new AtomicLong(), replies = new AtomicLong();
+        final AtomicInteger failed = new AtomicInteger(), late = new AtomicInteger();
+        final List<Long> durations = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> lags = Collections.synchronizedList(new ArrayList<Long>());
+        final long t0 = System.nanoTime();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < concurrency; c++) {
+            Thread t = new Thread(new Runnable() {
+                @Override public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < jobs.size()) {
+                        Job job = jobs.get(i);
+                        long due = t0 + (factor > 0 ? (long) ((job.startMicros - origin) * 1000 / factor) : 0);
+                        sleepUntil(due);
+                        long start = System.nanoTime();
+                        if (factor > 0) {
+                            long lag = (start - due) / 1_000_000;
+                            lags.add(lag);
+                            if (lag > 100) late.incrementAndGet();
+                        }
+                        try {
+                            replies.addAndGet(send(job, host, port > 0 ? port : job.port, factor, start));
+                            sent.addAndGet(job.bytes);
+                            durations.add((System.nanoTime() - start) / 1_000_000);
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                            System.err.println("Job from " + job.source + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }, "Replay-" + (c + 1));
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) t.join();
+        double secs = (System.nanoTime() - t0) / 1e9;
+
+        List<Long> d, l;
+        synchronized (durations) { d = new ArrayList<>(durations); }
+        synchronized (lags) { l = new ArrayList<>(lags); }
+        Collections.sort(d);
+        Collections.sort(l);
+        System.out.printf(Locale.US, "Replayed:   %d of %d jobs in %.2f s, %d failed, %d reply bytes%n",
+                d.size(), jobs.size(), secs, failed.get(), replies.get());
+        System.out.printf(Locale.US, "Throughput: %.2f jobs/s, %.0f B/s%n", d.size() / secs, sent.get() / secs);
+        System.out.printf(Locale.US, "Job time:   p50 %d ms, p99 %d ms, max %d ms (connect to spooled)%n",
+                pct(d, 50), pct(d, 99), pct(d, 100));
+        if (factor > 0) {
+            System.out.printf(Locale.US, "Start lag:  p50 %d ms, p99 %d ms, %d jobs over 100 ms late%n",
+                    pct(l, 50), pct(l, 99), late.get());
+        }
+    }
+
+    /** Sends one job; returns the number of reply bytes the bridge sent back. */
+    private static long send(Job job, String host, int port, double factor, long start) throws IOException {
+        long replyBytes = 0;
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(host, port), 5000);
+            s.setSoTimeout(30_000);
+            OutputStream out = s.getOutputStream();
+            InputStream in = s.getInputStream();
+            byte[] rbuf = new byte[256];
+            for (int i = 0; i < job.chunks.size(); i++) {
+                if (factor > 0) sleepUntil(start + (long) (job.offsets.get(i) * 1000 / factor));
+                out.write(job.chunks.get(i));
+                out.flush();
+                // Status replies; the recorded client may have waited for them before its next chunk
+                while (in.available() > 0) replyBytes += Math.max(0, in.read(rbuf));
+            }
+            s.shutdownOutput();
+            int n;
+            try {
+                while ((n = in.read(rbuf)) != -1) replyBytes += n;
+            } catch (SocketTimeoutException e) {
+                throw new IOException("bridge kept the connection open for 30 s");
+            }
+        }
+        return replyBytes;
+    }
+
+    /** Reads one capture file, or every capture file in a directory. */
+    private static void load(File f, List<Job> jobs) throws IOException {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            if (files == null) return;
+            for (File c : files) {
+                if (c.getName().endsWith(JobCapture.SUFFIX)) load(c, jobs);
+            }
+            return;
+        }
+        // Connection numbers are only unique within a file
+        Map<Integer, Job> open = new HashMap<>();
+        try (JobCapture.Reader r = new JobCapture.Reader(new BufferedInputStream(new FileInputStream(f)))) {
+            long base = r.startEpochMs() * 1000;
+            JobCapture.Record rec;
+            while ((rec = r.next()) != null) {
+                if (rec.type == JobCapture.OPEN) {
+                    Job j = new Job();
+                    j.startMicros = base + rec.timeMicros;
+                    j.port = rec.localPort;
+                    j.source = rec.source;
+                    open.put(rec.conn, j);
+                    jobs.add(j);
+                } else {
+                    Job j = open.get(rec.conn);
+                    if (j == null) continue;
+                    if (rec.type == JobCapture.DATA) {
+                        j.chunks.add(rec.data);
+                        j.offsets.add(base + rec.timeMicros - j.startMicros);
+                        j.bytes += rec.data.length;
+                    } else {
+                        open.remove(rec.conn);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void sleepUntil(long nanos) {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+    }
+
+    /** Nearest-rank percentile of a sorted list; 0 when empty. */
+    private static long pct(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) return 0;
+        int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, i)));
+    }
+}
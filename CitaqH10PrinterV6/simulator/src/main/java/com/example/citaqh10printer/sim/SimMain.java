@@ -0,0 +1,266 @@
+package com.example.citaqh10printer.sim;
+
+import com.example.citaqh10printer.DitherEngine;
+import com.example.citaqh10printer.EscPosBuilder;
+import com.example.citaqh10printer.EscPosPipeline;
+import com.example.citaqh10printer.JobCapture;
+import com.example.citaqh10printer.JobTrace;
+import com.example.citaqh10printer.Metrics;
+import com.example.citaqh10printer.PrintSpooler;
+import com.example.citaqh10printer.RawJobServer;
+import com.example.citaqh10printer.SerialPort;
+import com.example.citaqh10printer.SerialPrintSink;
+import com.example.citaqh10printer.SerialSession;
+import com.example.citaqh10printer.SpoolStore;
+import com.example.citaqh10printer.StatusLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End-to-end run of the raw 9100 bridge against a simulated printer:
+ * load generator -> RawJobServer -> PrintSpooler -> SerialPrintSink ->
+ * SerialPort on a pty -> SimulatedPrinter. Prints jobs/s, bytes/s, job
+ * latency (client connect to last byte at the printer) and spool queue wait.
+ */
+public final class SimMain {
+
+    private static final String TAG = "Sim";
+
+    private static final String USAGE = String.join("\n",
+            "Options:",
+            "  --clients N       concurrent TCP clients (4)",
+            "  --jobs N          jobs per client (10)",
+            "  --baud N          line speed (115200)",
+            "  --buffer N        printer receive buffer in bytes (4096)",
+            "  --print-rate N    bytes/s the print engine takes from the buffer, 0 = unlimited (0)",
+            "  --flow            RTS/CTS: the printer holds off the sender when its buffer is full",
+            "  --in-flight N     bytes SerialPrintSink keeps queued in the tty (4096)",
+            "  --queue N         spool queue depth (16)",
+            "  --rewrite         run the rewrite pipeline (skip blank rows, trim, merge, bands)",
+            "  --status          each client sends DLE EOT 1 after its job and waits for the reply",
+            "  --job FILE        send this file as every job instead of the built-in receipt",
+            "  --port N          TCP port (19100)",
+            "  --metrics         print the bridge's metrics at the end",
+            "  --trace FILE      write per-job timelines as a Chrome trace (open in ui.perfetto.dev)",
+            "  --trace-every N   trace one job in N (1)",
+            "  --verbose         print the bridge's status log");
+
+    public static void main(String[] args) throws Exception {
+        int clients = 4, jobs = 10, baud = 115200, buffer = 4096, printRate = 0;
+        int inFlight = 4096, queue = 16, port = 19100;
+        boolean flow = false, rewrite = false, status = false, verbose = false, metrics = false;
+        String jobFile = null, traceFile = null;
+        int traceEvery = 1;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            switch (a) {
+                case "--clients": clients = Integer.parseInt(args[++i]); break;
+                case "--jobs": jobs = Integer.parseInt(args[++i]); break;
+                case "--baud": baud = Integer.parseInt(args[++i]); break;
+                case "--buffer": buffer = Integer.parseInt(args[++i]); break;
+                case "--print-rate": printRate = Integer.parseInt(args[++i]); break;
+                case "--in-flight": inFlight = Integer.parseInt(args[++i]); break;
+                case "--queue": queue = Integer.parseInt(args[++i]); break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--job": jobFile = args[++i]; break;
+                case "--flow": flow = true; break;
+                case "--rewrite": rewrite = true; break;
+                case "--status": status = true; break;
+                case "--verbose": verbose = true; break;
+                case "--metrics": metrics = true; break;
+                case "--trace": traceFile = args[++i]; break;
+                case "--trace-every": traceEvery = Integer.parseInt(args[++i]); break;
+                case "--help":
+                    System.out.println(USAGE);
+                    return;
+                default:
+                    System.err.println("Unknown option " + a + "\n" + USAGE);
+                    System.exit(2);
+            }
+        }
+        if (!SerialPort.isStandardBaud(baud)) {
+            System.err.println("Not a standard baud rate: " + baud);
+            System.exit(2);
+        }
+        if (verbose) {
+            StatusLog.get().register(new StatusLog.Listener() {
+                @Override public void onLogAppended(StatusLog.Entry entry) { System.out.println(entry.line()); }
+                @Override public void onLogCleared() {}
+            });
+        }
+
+        if (traceFile != null) JobTrace.setSampleEvery(traceEvery);
+
+        byte[] body = jobFile != null ? Files.readAllBytes(new File(jobFile).toPath()) : sampleReceipt();
+
+        final Pty pty = Pty.open();
+        SimulatedPrinter printer = new SimulatedPrinter(pty, baud, buffer, printRate, flow);
+        printer.start();
+
+        File spoolDir = Files.createTempDirectory("sim-spool").toFile();
+        final List<Long> queueWaits = Collections.synchronizedList(new ArrayList<Long>());
+        final int fBaud = baud, fInFlight = inFlight;
+        final int flags = SerialPort.flowFlags(flow, false);
+        final SerialPrintSink serial = new SerialPrintSink(TAG, new SerialPrintSink.Settings() {
+            @Override public String devicePath() { return pty.slavePath; }
+            @Override public int baudRate() { return fBaud; }
+            @Override public int flowFlags() { return flags; }
+            @Override public long idleTimeoutMs() { return 0; }
+            @Override public int inFlightBytes() { return fInFlight; }
+        });
+        SpoolStore store = new SpoolStore(spoolDir, 256 * 1024, 512L * 1024 * 1024);
+        PrintSpooler spooler = new PrintSpooler(TAG, "tcp" + port, store, queue, 16 * 1024 * 1024,
+                PrintSpooler.OverflowPolicy.BLOCK, new PrintSpooler.Sink() {
+                    @Override public void print(PrintSpooler.PrintJob job) throws IOException {
+                        queueWaits.add(System.currentTimeMillis() - job.receivedAtMs);
+                        serial.print(job);
+                    }
+                });
+        spooler.start();
+
+        final boolean fRewrite = rewrite;
+        RawJobServer server = new RawJobServer(TAG, "Sim", port, spooler, new RawJobServer.Config() {
+            @Override public EscPosPipeline.Options rewriteOptions() {
+                EscPosPipeline.Options o = new EscPosPipeline.Options();
+                if (fRewrite) {
+                    o.skipBlankRows = true;
+                    o.trimRight = true;
+                    o.mergeBitImages = true;
+                    o.splitBands = true;
+                }
+                return o;
+            }
+
+            @Override public JobCapture capture() { return null; }
+        });
+        server.start();
+        waitForPort(port);
+
+        LoadGenerator load = new LoadGenerator(new InetSocketAddress("127.0.0.1", port),
+                clients, jobs, body, status);
+        System.out.printf(Locale.US, "%d clients x %d jobs of %d bytes, %d baud, %d byte buffer%s%s%n",
+                clients, jobs, body.length, baud, buffer, flow ? ", RTS/CTS" : "",
+                printRate > 0 ? ", printing " + printRate + " B/s" : "");
+
+        long t0 = System.nanoTime();
+        load.run();
+        long sentNanos = System.nanoTime() - t0;
+
+        // Everything queued; wait for the printer to see every trailer, or for it to stop making progress
+        int expected = load.starts.size();
+        long lastBytes = -1, lastChange = System.nanoTime();
+        while (printer.arrivals.size() < expected) {
+            Thread.sleep(50);
+            long b = printer.bytesReceived;
+            if (b != lastBytes) {
+                lastBytes = b;
+                lastChange = System.nanoTime();
+            } else if (System.nanoTime() - lastChange > 10_000_000_000L) {
+                System.out.println("Printer idle for 10 s, giving up");
+                break;
+            }
+        }
+        long totalNanos = System.nanoTime() - t0;
+
+        server.stop();
+        spooler.stop();
+        SerialSession.get().close();
+        printer.stop();
+        pty.close();
+        store.close();
+        deleteTree(spoolDir);
+
+        report(load, printer, queueWaits, sentNanos, totalNanos, baud);
+        if (metrics) System.out.print("\nMetrics (durations in us):\n" + Metrics.get().toText());
+        if (traceFile != null) {
+            Files.write(new File(traceFile).toPath(), JobTrace.toJson(0).getBytes("UTF-8"));
+            System.out.println("Trace written to " + traceFile);
+        }
+        System.exit(0);
+    }
+
+    private static void report(LoadGenerator load, SimulatedPrinter printer, List<Long> queueWaits,
+                               long sentNanos, long totalNanos, int baud) {
+        List<Long> latencies = new ArrayList<>();
+        for (Map.Entry<Long, Long> e : load.starts.entrySet()) {
+            Long end = printer.arrivals.get(e.getKey());
+            if (end != null) latencies.add((end - e.getValue()) / 1_000_000);
+        }
+        Collections.sort(latencies);
+        List<Long> waits;
+        synchronized (queueWaits) {
+            waits = new ArrayList<>(queueWaits);
+        }
+        Collections.sort(waits);
+
+        double secs = totalNanos / 1e9;
+        int done = latencies.size();
+        System.out.printf(Locale.US, "Jobs:        %d of %d printed, %d failed to send, %d status replies missing%n",
+                done, load.totalJobs(), load.failures.get(), load.statusTimeouts.get());
+        System.out.printf(Locale.US, "Time:        %.2f s (clients done after %.2f s)%n", secs, sentNanos / 1e9);
+        System.out.printf(Locale.US, "Throughput:  %.2f jobs/s, %.0f B/s at the printer (line max %d B/s)%n",
+                done / secs, printer.bytesReceived / secs, baud / 10);
+        System.out.printf(Locale.US, "Latency:     p50 %d ms, p99 %d ms, max %d ms%n",
+                pct(latencies, 50), pct(latencies, 99), pct(latencies, 100));
+        System.out.printf(Locale.US, "Queue wait:  p50 %d ms, p99 %d ms, max %d ms (%d spool jobs)%n",
+                pct(waits, 50), pct(waits, 99), pct(waits, 100), waits.size());
+        System.out.printf(Locale.US, "Printer:     %d bytes in, %d overrun, buffer peak %d, %d status replies%n",
+                printer.bytesReceived, printer.overruns, printer.maxFill, printer.statusReplies);
+    }
+
+    /** Nearest-rank percentile of a sorted list; 0 when empty. */
+    private static long pct(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) return 0;
+        int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, i)));
+    }
+
+    /** A typical receipt: text lines, a 384-dot logo and a QR code. */
+    private static byte[] sampleReceipt() {
+        EscPosBuilder b = new EscPosBuilder(16 * 1024);
+        b.initialize().align(EscPosBuilder.ALIGN_CENTER);
+        b.image(new DitherEngine.PixelSource() {
+            @Override public int width() { return 384; }
+            @Override public int height() { return 96; }
+            @Override public void getRows(int[] dst, int y, int rows) {
+                for (int r = 0; r < rows; r++) {
+                    for (int x = 0; x < 384; x++) {
+                        int v = ((x + y + r) * 255 / 480) & 0xFF;
+                        dst[r * 384 + x] = 0xFF000000 | v << 16 | v << 8 | v;
+                    }
+                }
+            }
+        }, DitherEngine.Mode.ORDERED, 24);
+        b.bold(true).line("SIMULATED STORE").bold(false).align(EscPosBuilder.ALIGN_LEFT);
+        for (int i = 1; i <= 12; i++) {
+            b.column("Item " + i, 24, false).column(i + ".99", 8, true).newline();
+        }
+        b.align(EscPosBuilder.ALIGN_CENTER).qr("https://example.com/r/0000000000", 6, EscPosBuilder.QR_ECC_M);
+        return b.feed(3).cut().toByteArray();
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (java.net.Socket s = new java.net.Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) deleteTree(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.citaqh10printer.sim;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Printer on the master end of the pty.
+ *
+ * Bytes are taken off the line no faster than the baud rate allows (8N1, ten
+ * bits per byte) into a receive buffer of fixed size, which the print engine
+ * empties at {@code printBytesPerSec} (0 = as fast as they arrive). With flow
+ * control the printer stops taking bytes while the buffer is full, as it
+ * would by dropping CTS; without it the bytes that do not fit are lost and
+ * counted as overruns. DLE EOT n is answered as soon as it arrives, like the
+ * real-time command it is. Job trailers {@code #SIMJOB:<id>#} written by the
+ * {@link LoadGenerator} are timestamped on arrival.
+ */
+final class SimulatedPrinter {
+
+    /** DLE EOT 1..4 answers: online, no error, paper present. */
+    private static final byte[] STATUS = {0x16, 0x12, 0x12, 0x12};
+    private static final byte[] MARKER = "#SIMJOB:".getBytes();
+
+    private final Pty pty;
+    private final long nanosPerByte;
+    private final int bufferBytes;
+    private final int printBytesPerSec;
+    private final boolean flowControl;
+
+    /** Job id to System.nanoTime() when its trailer arrived. */
+    final ConcurrentHashMap<Long, Long> arrivals = new ConcurrentHashMap<>();
+    volatile long bytesReceived;
+    volatile long overruns;
+    volatile long statusReplies;
+    volatile int maxFill;
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    // Receive buffer, as a fill level
+    private double fill;
+    private long lastDrainNanos;
+
+    // Scanner state
+    private int dle;           // 0, or 1 after DLE, 2 after DLE EOT
+    private int markerPos;     // bytes of MARKER matched, MARKER.length = reading the id
+    private long markerId;
+
+    SimulatedPrinter(Pty pty, int baud, int bufferBytes, int printBytesPerSec, boolean flowControl) {
+        this.pty = pty;
+        this.nanosPerByte = 10_000_000_000L / baud;
+        this.bufferBytes = bufferBytes;
+        this.printBytesPerSec = printBytesPerSec;
+        this.flowControl = flowControl;
+    }
+
+    void start() {
+        thread = new Thread(new Runnable() {
+            @Override public void run() { receive(); }
+        }, "SimulatedPrinter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    private void receive() {
+        // Read about a millisecond of line time at once
+        int chunk = (int) Math.max(16, 1_000_000L / nanosPerByte);
+        byte[] buf = new byte[chunk];
+        long lineFreeAt = System.nanoTime();
+        lastDrainNanos = lineFreeAt;
+        while (running) {
+            int want = chunk;
+            if (flowControl) {
+                drain();
+                int room = bufferBytes - (int) Math.ceil(fill);
+                if (room <= 0) {
+                    LockSupport.parkNanos(200_000);
+                    continue;
+                }
+                want = Math.min(want, room);
+            }
+            int n;
+            try {
+                n = pty.master.read(buf, 0, want);
+            } catch (IOException e) {
+                // No slave open at the moment (EIO); wait for the bridge to reopen it
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+            if (n <= 0) continue;
+
+            // The bytes took n character times on the wire
+            long now = System.nanoTime();
+            lineFreeAt = Math.max(lineFreeAt, now - nanosPerByte) + n * nanosPerByte;
+            drain();
+            int accepted = n;
+            if (!flowControl && fill + n > bufferBytes) {
+                accepted = Math.max(0, bufferBytes - (int) Math.ceil(fill));
+                overruns += n - accepted;
+            }
+            fill += accepted;
+            if (fill > maxFill) maxFill = (int) Math.ceil(fill);
+            bytesReceived += n;
+            scan(buf, accepted);
+
+            long wait = lineFreeAt - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+        }
+    }
+
+    /** Print engine: empties the buffer at the print rate. */
+    private void drain() {
+        long now = System.nanoTime();
+        if (printBytesPerSec <= 0) {
+            fill = 0;
+        } else {
+            fill = Math.max(0, fill - (now - lastDrainNanos) * (double) printBytesPerSec / 1e9);
+        }
+        lastDrainNanos = now;
+    }
+
+    private void scan(byte[] b, int n) {
+        for (int i = 0; i < n; i++) {
+            int c = b[i] & 0xFF;
+            // DLE EOT n
+            if (dle == 2) {
+                dle = 0;
+                if (c >= 1 && c <= 4) reply(STATUS[c - 1]);
+            } else if (dle == 1) {
+                dle = c == 0x04 ? 2 : c == 0x10 ? 1 : 0;
+            } else if (c == 0x10) {
+                dle = 1;
+            }
+            // #SIMJOB:<id>#
+            if (markerPos == MARKER.length) {
+                if (c >= '0' && c <= '9') {
+                    markerId = markerId * 10 + (c - '0');
+                    continue;
+                }
+                if (c == '#') arrivals.put(markerId, System.nanoTime());
+                markerPos = 0;
+            }
+            if (c == MARKER[markerPos]) {
+                if (++markerPos == MARKER.length) markerId = 0;
+            } else {
+                markerPos = c == MARKER[0] ? 1 : 0;
+            }
+        }
+    }
+
+    private void reply(byte status) {
+        try {
+            pty.masterOut.write(status);
+            statusReplies++;
+        } catch (IOException ignored) {
+            // slave closed; the client gets no answer, as with a real printer
+        }
+    }
+}